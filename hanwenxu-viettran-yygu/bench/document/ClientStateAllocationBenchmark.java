@@ -0,0 +1,162 @@
+package document;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * Measures how many bytes the ClientState hot paths allocate per call. Each
+ * case is run once in the old style (a property map for every copy) and once
+ * in the new style (factories, copy-on-write copy(), in-place compare), so the
+ * before/after numbers come out of the same run.
+ *
+ * The engine cases only use the public push/pushRemoteOp API, so they can
+ * also be run against an older tree to get the engine's "before" numbers.
+ *
+ * Run with: java -cp bin document.ClientStateAllocationBenchmark [sites]
+ *
+ * Uses the HotSpot specific com.sun.management.ThreadMXBean to read the
+ * number of bytes allocated by the current thread.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class ClientStateAllocationBenchmark {
+
+    /** Number of calls measured per case */
+    private static final int ITERATIONS = 200000;
+
+    /** Number of calls made before measuring, so the JIT has settled */
+    private static final int WARMUP = 50000;
+
+    /** Keeps results alive so the JIT can't throw the work away */
+    private static long sink = 0;
+
+    /**
+     * A single measured case
+     */
+    private interface Case {
+        void run(int i) throws OperationEngineException;
+    }
+
+    public static void main(String[] args) throws OperationEngineException {
+        int sites = 16;
+        if (args.length > 0) {
+            sites = Integer.parseInt(args[0]);
+        }
+
+        final int[] state = new int[sites];
+        for (int i = 0; i < sites; i++) {
+            state[i] = i * 3;
+        }
+        final ClientState cs = ClientState.fromArray(state);
+        final ClientState other = ClientState.fromArray(state.clone());
+
+        System.out.println("sites = " + sites + ", bytes per call:");
+
+        report("copy (property map)", new Case() {
+            public void run(int i) throws OperationEngineException {
+                HashMap<String, Object> args = new HashMap<String, Object>();
+                args.put("contextVector", cs);
+                sink += new ClientState(args).getSize();
+            }
+        });
+        report("copy (copy-on-write)", new Case() {
+            public void run(int i) throws OperationEngineException {
+                sink += cs.copy().getSize();
+            }
+        });
+        report("copy + set one seq (property map)", new Case() {
+            public void run(int i) throws OperationEngineException {
+                HashMap<String, Object> args = new HashMap<String, Object>();
+                args.put("contextVector", cs);
+                ClientState c = new ClientState(args);
+                c.setSeqForClient(0, i);
+                sink += c.getSize();
+            }
+        });
+        report("copy + set one seq (copy-on-write)", new Case() {
+            public void run(int i) throws OperationEngineException {
+                ClientState c = cs.copy();
+                c.setSeqForClient(0, i);
+                sink += c.getSize();
+            }
+        });
+        report("equals + compare", new Case() {
+            public void run(int i) {
+                if (cs.equals(other)) {
+                    sink += cs.compare(other);
+                }
+            }
+        });
+        report("dominates + merge", new Case() {
+            public void run(int i) {
+                if (cs.dominates(other)) {
+                    other.merge(cs);
+                    sink++;
+                }
+            }
+        });
+
+        // engine: a remote op in the same context as the receiving site
+        final OperationEngine sender = new OperationEngine(1);
+        final OperationEngine receiver = new OperationEngine(2);
+        final int[] empty = new int[0];
+        final Operation[] ops = new Operation[WARMUP + ITERATIONS];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = sender.push(true, "document", "a", "insert", 0, 1, empty,
+                    0);
+            ops[i].setOrder(i);
+        }
+        final int[] next = { 0 };
+        report("pushRemoteOp, no concurrency", new Case() {
+            public void run(int i) throws OperationEngineException {
+                Operation top = receiver.pushRemoteOp(ops[next[0]++]);
+                sink += top.getPosition();
+            }
+        });
+
+        final Operation processed = ops[0];
+        report("hasProcessedOp", new Case() {
+            public void run(int i) {
+                if (receiver.hasProcessedOp(processed)) {
+                    sink++;
+                }
+            }
+        });
+
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Warms up and then measures a case, printing the bytes allocated per
+     * call.
+     *
+     * @param name
+     *            label to print
+     * @param c
+     *            case to run
+     * @throws OperationEngineException
+     */
+    private static void report(String name, Case c)
+            throws OperationEngineException {
+        for (int i = 0; i < WARMUP; i++) {
+            c.run(i);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            c.run(i);
+        }
+        long after = allocatedBytes();
+        System.out.printf("  %-40s %8.1f%n", name, (after - before)
+                / (double) ITERATIONS);
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
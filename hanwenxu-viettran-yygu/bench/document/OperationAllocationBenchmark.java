@@ -0,0 +1,134 @@
+package document;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * Measures how many bytes copying and transforming operations allocates per
+ * call. The copy is run once the old way (a property map, boxed fields, and
+ * createOperationFromType) and once through copy(), which is now field-wise,
+ * so the before/after numbers come out of the same run.
+ *
+ * The transform case is a remote operation that has to be transformed
+ * against a few concurrent operations from another site, which is what the
+ * server does for every keystroke when several users type at once.
+ *
+ * Run with: java -cp bin document.OperationAllocationBenchmark [concurrent]
+ *
+ * Uses the HotSpot specific com.sun.management.ThreadMXBean to read the
+ * number of bytes allocated by the current thread.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class OperationAllocationBenchmark {
+
+    /** Number of calls measured per case */
+    private static final int ITERATIONS = 200000;
+
+    /** Number of calls made before measuring, so the JIT has settled */
+    private static final int WARMUP = 50000;
+
+    /** Keeps results alive so the JIT can't throw the work away */
+    private static long sink = 0;
+
+    /**
+     * A single measured case
+     */
+    private interface Case {
+        void run(int i) throws OperationEngineException;
+    }
+
+    public static void main(String[] args) throws OperationEngineException {
+        int concurrent = 4;
+        if (args.length > 0) {
+            concurrent = Integer.parseInt(args[0]);
+        }
+
+        final Operation op = Operation.create(OpType.INSERT, "document", "a",
+                3, 1, 5, ClientState.fromArray(new int[] { 0, 4, 7, 2 }), 12,
+                false);
+        op.setImmutable(true);
+
+        System.out.println("concurrent = " + concurrent + ", bytes per call:");
+
+        report("copy (property map)", new Case() {
+            public void run(int i) throws OperationEngineException {
+                HashMap<String, Object> args = new HashMap<String, Object>();
+                HashMap<String, Object> cv = new HashMap<String, Object>();
+                cv.put("contextVector", op.getClientState());
+                args.put("siteId", Integer.valueOf(op.getSiteId()));
+                args.put("seqId", Integer.valueOf(op.getSeqId()));
+                args.put("contextVector", new ClientState(cv));
+                args.put("key", op.getKey());
+                args.put("value", op.getValue());
+                args.put("position", Integer.valueOf(op.getPosition()));
+                args.put("order", Long.valueOf(op.getOrder()));
+                args.put("local", Boolean.FALSE);
+                sink += Operation.createOperationFromType(op.getType(), args)
+                        .getPosition();
+            }
+        });
+        report("copy (field-wise)", new Case() {
+            public void run(int i) throws OperationEngineException {
+                sink += op.copy().getPosition();
+            }
+        });
+
+        // site 2 applies concurrent ops from site 1, then a site 3 op
+        // arrives in the context before them. A fresh engine and fresh ops
+        // per call keep the history and the transform caches the same size
+        // every time.
+        final int n = concurrent;
+        report("pushRemoteOp, " + n + " concurrent ops", new Case() {
+            public void run(int i) throws OperationEngineException {
+                OperationEngine oe = new OperationEngine(2);
+                for (int j = 0; j < n; j++) {
+                    oe.pushRemoteOp(Operation.create(OpType.INSERT,
+                            "document", "x", j, 1, j + 1,
+                            ClientState.fromArray(new int[] { 0, j }), j,
+                            false));
+                }
+                Operation top = oe.pushRemoteOp(Operation.create(
+                        OpType.INSERT, "document", "y", 0, 3, 1,
+                        ClientState.withSize(4), n, false));
+                sink += top.getPosition();
+            }
+        });
+
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Warms up and then measures a case, printing the bytes allocated per
+     * call.
+     *
+     * @param name
+     *            label to print
+     * @param c
+     *            case to run
+     * @throws OperationEngineException
+     */
+    private static void report(String name, Case c)
+            throws OperationEngineException {
+        for (int i = 0; i < WARMUP; i++) {
+            c.run(i);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            c.run(i);
+        }
+        long after = allocatedBytes();
+        System.out.printf("  %-40s %8.1f%n", name, (after - before)
+                / (double) ITERATIONS);
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
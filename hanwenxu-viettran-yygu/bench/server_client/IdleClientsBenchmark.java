@@ -0,0 +1,180 @@
+package server_client;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import document.ClientState;
+
+/**
+ * Measures what a connected but idle client costs the server, in each mode of
+ * CollabServer. For each mode, starts a headless server in this JVM, connects
+ * the given number of clients, has each of them pick the default document and
+ * then stay idle, and prints the growth of:
+ *
+ * - the heap in use after a full GC, per client
+ *
+ * - the resident memory of the process (Linux only), per client. This
+ * includes the thread stacks, which are not on the heap
+ *
+ * - the number of live platform threads
+ *
+ * The clients' own sockets are in this JVM too, so their cost is in both
+ * numbers. It is the same in both modes, so compare the modes with each
+ * other, not with zero. In the THREAD_PER_CLIENT mode, the clients get
+ * virtual threads on Java 21 and later, and platform threads with small
+ * stacks before that, so run it on both.
+ *
+ * Run with: java -cp bin server_client.IdleClientsBenchmark [clients]
+ *
+ * The process needs two file descriptors per client (ulimit -n).
+ *
+ * @author youyanggu
+ *
+ */
+public class IdleClientsBenchmark {
+
+    /** Default number of clients per mode */
+    private static final int CLIENTS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = CLIENTS;
+        if (args.length > 0) {
+            clients = Integer.parseInt(args[0]);
+        }
+        System.out.println(clients + " idle clients, Java "
+                + System.getProperty("java.version"));
+        System.out.printf("  %-18s %14s %14s %9s%n", "mode", "heap B/client",
+                "RSS B/client", "threads");
+        for (CollabServer.Mode mode : CollabServer.Mode.values()) {
+            measure(mode, clients);
+        }
+    }
+
+    /**
+     * Connects the clients to a new server in a mode, prints the costs, then
+     * disconnects them and shuts the server down.
+     *
+     * @param mode
+     *            - mode of the server
+     * @param clients
+     *            - number of clients
+     * @throws Exception
+     */
+    private static void measure(CollabServer.Mode mode, int clients)
+            throws Exception {
+        PrintStream stdout = System.out;
+        // the server prints a line per client
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        final CollabServer server = new CollabServer("localhost", 0,
+                "Anonymous", true);
+        server.setMode(mode);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+        // one client first, so the server's threads and classes are there
+        // before the baseline
+        SocketChannel first = connect(server.getPort());
+
+        long heap = usedHeap();
+        long rss = residentBytes();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        SocketChannel[] channels = new SocketChannel[clients];
+        for (int i = 0; i < clients; i++) {
+            channels[i] = connect(server.getPort());
+        }
+
+        long heapPerClient = (usedHeap() - heap) / clients;
+        long rssPerClient = (residentBytes() - rss) / clients;
+        int moreThreads = ManagementFactory.getThreadMXBean().getThreadCount()
+                - threads;
+
+        first.close();
+        for (SocketChannel c : channels) {
+            c.close();
+        }
+        server.shutdown();
+        System.setOut(stdout);
+        System.out.printf("  %-18s %14d %14s %9d%n", mode, heapPerClient,
+                rss < 0 ? "n/a" : Long.toString(rssPerClient), moreThreads);
+    }
+
+    /**
+     * Connects a client and picks the default document, reading the
+     * document list, client ID, text and ClientState the server sends
+     *
+     * @param port
+     *            - port of the server
+     * @return the client's channel, blocking
+     * @throws Exception
+     */
+    private static SocketChannel connect(int port) throws Exception {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                "localhost", port));
+        channel.socket().setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(
+                Channels.newInputStream(channel));
+        OutputStream out = Channels.newOutputStream(channel);
+        FrameCodec.read(in);
+        FrameCodec.write(out, "default");
+        FrameCodec.read(in);
+        FrameCodec.read(in);
+        if (!(FrameCodec.read(in) instanceof ClientState)) {
+            throw new RuntimeException("Expected ClientState");
+        }
+        return channel;
+    }
+
+    /**
+     * @return bytes of heap in use after a full GC
+     */
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    /**
+     * @return resident memory of the process in bytes, -1 if unknown
+     */
+    private static long residentBytes() {
+        try {
+            BufferedReader status = new BufferedReader(new FileReader(
+                    "/proc/self/status"));
+            try {
+                String line;
+                while ((line = status.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        String kb = line.substring(6).trim().split("\\s+")[0];
+                        return Long.parseLong(kb) * 1024;
+                    }
+                }
+            } finally {
+                status.close();
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
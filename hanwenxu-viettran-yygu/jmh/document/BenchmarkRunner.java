@@ -0,0 +1,33 @@
+package document;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the document package JMH benchmarks with the GC profiler on, so every
+ * result comes with its allocation rate (gc.alloc.rate.norm is bytes per
+ * call). Any JMH command line option can be given, e.g. a regex of the
+ * benchmarks to run, or -p sites=8 to fix a parameter.
+ *
+ * Run with: java -cp jmh-bin:bin:(JMH jars) document.BenchmarkRunner [options]
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException,
+            CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        if (cmd.getIncludes().isEmpty()) {
+            options.include("document\\..*Benchmark");
+        }
+        options.addProfiler(GCProfiler.class);
+        new Runner(options.parent(cmd).build()).run();
+    }
+}
@@ -0,0 +1,112 @@
+package document;
+
+/**
+ * Builds the histories the JMH benchmarks run against: an engine at site 0,
+ * like the server, that has received operations from a number of remote
+ * sites. Keeps track of the ClientState and total order the sites have seen,
+ * so the benchmarks can make the next operation in any context they like.
+ *
+ * Every operation is an insert of one character, at a position that moves
+ * around the document so transforms don't all take the same branch.
+ *
+ * @author Hanwen Xu
+ *
+ */
+class BenchmarkSession {
+
+    /** Key of every operation */
+    static final String KEY = "document";
+
+    /** Engine receiving the operations, site 0 */
+    final OperationEngine engine;
+
+    /** Number of remote sites, numbered 1 to sites */
+    final int sites;
+
+    /** Sequence number of the last operation of each site, by site */
+    final int[] state;
+
+    /** Place in the total order of the next operation */
+    int order = 0;
+
+    /** Length of the document */
+    int length = 0;
+
+    /**
+     * Creates a session with an empty history.
+     *
+     * @param sites
+     *            number of remote sites, requires > 0
+     * @throws OperationEngineException
+     */
+    BenchmarkSession(int sites) throws OperationEngineException {
+        this.engine = new OperationEngine(0);
+        this.sites = sites;
+        this.state = new int[sites + 1];
+    }
+
+    /**
+     * Makes the next operation of a site, in a given context, without
+     * pushing it.
+     *
+     * @param site
+     *            remote site, from 1 to sites
+     * @param context
+     *            sequence numbers the site had seen, not referenced
+     *            afterwards
+     * @return remote operation with the next place in the total order
+     */
+    Operation next(int site, int[] context) {
+        int seq = this.state[site] + 1;
+        int position = (seq * 7 + site) % (this.length + 1);
+        return Operation.create(OpType.INSERT, KEY, "a", position, site, seq,
+                ClientState.fromArray(context.clone()), this.order, false);
+    }
+
+    /**
+     * Pushes an operation made by next into the engine.
+     *
+     * @param op
+     *            next operation of its site
+     * @throws OperationEngineException
+     */
+    void push(Operation op) throws OperationEngineException {
+        this.state[op.getSiteId()] = op.getSeqId();
+        ++this.order;
+        ++this.length;
+        this.engine.pushRemoteOp(op);
+    }
+
+    /**
+     * Pushes operations from every site in turn, each made after all the
+     * ones before it, so none of them needs a transform.
+     *
+     * @param count
+     *            number of operations
+     * @throws OperationEngineException
+     */
+    void sequential(int count) throws OperationEngineException {
+        for (int i = 0; i < count; i++) {
+            int site = 1 + i % this.sites;
+            this.push(this.next(site, this.state));
+        }
+    }
+
+    /**
+     * Pushes one operation from each of the given sites, all made
+     * concurrently in the current context, as if they had typed at the same
+     * time.
+     *
+     * @param count
+     *            number of sites taking part, from site 1 on
+     * @return the context they were made in
+     * @throws OperationEngineException
+     */
+    int[] burst(int count) throws OperationEngineException {
+        int[] base = this.state.clone();
+        for (int site = 1; site <= count; site++) {
+            this.push(this.next(site, base));
+        }
+        return base;
+    }
+}
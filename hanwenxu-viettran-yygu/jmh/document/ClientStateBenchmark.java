@@ -0,0 +1,85 @@
+package document;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the ClientState operations the engine runs for every
+ * remote operation. The two states differ by a few operations at every
+ * site, like the state of the server and the context of an op made while
+ * the others were typing.
+ *
+ * @author Hanwen Xu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientStateBenchmark {
+
+    /** Number of sites in the states */
+    @Param({ "2", "8", "32", "128" })
+    public int sites;
+
+    /** state that has seen the most */
+    private ClientState state;
+
+    /** state that is a few operations behind at every site */
+    private ClientState context;
+
+    /** equal to state, but a different object */
+    private ClientState same;
+
+    @Setup
+    public void setUp() {
+        int[] a = new int[this.sites];
+        int[] b = new int[this.sites];
+        for (int i = 0; i < this.sites; i++) {
+            a[i] = 100 + i * 3;
+            b[i] = a[i] - i % 3;
+        }
+        this.state = ClientState.fromArray(a);
+        this.context = ClientState.fromArray(b);
+        this.same = ClientState.fromArray(a.clone());
+    }
+
+    @Benchmark
+    public StateDifference subtract() {
+        return this.state.subtract(this.context);
+    }
+
+    @Benchmark
+    public int compareDifferent() {
+        return this.state.compare(this.context);
+    }
+
+    /** an equal state has to be compared all the way to the end */
+    @Benchmark
+    public int compareEqual() {
+        return this.state.compare(this.same);
+    }
+
+    @Benchmark
+    public boolean equals() {
+        return this.state.equals(this.same);
+    }
+
+    @Benchmark
+    public boolean dominates() {
+        return this.state.dominates(this.context);
+    }
+}
@@ -0,0 +1,102 @@
+package document;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the HistoryBuffer lookups made while transforming, on a
+ * history of depth operations from the given number of sites. None of them
+ * change the history, so it is built once per trial.
+ *
+ * - recentOne: the last operation, what an op one step behind needs
+ *
+ * - recentPerSite: the last operation of every site, what an op made
+ * during a burst of typing needs
+ *
+ * - recentPerSiteByDifference: the same through a StateDifference, the way
+ * the engine used to ask
+ *
+ * - contextSorted: every operation sorted by context
+ *
+ * @author Hanwen Xu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBufferBenchmark {
+
+    /** Number of remote sites */
+    @Param({ "2", "8", "32" })
+    public int sites;
+
+    /** Number of operations in the history */
+    @Param({ "100", "1000", "10000" })
+    public int depth;
+
+    private HistoryBuffer history;
+
+    /** state after the whole history */
+    private ClientState state;
+
+    /** state before the last operation */
+    private ClientState oneBehind;
+
+    /** state before the last operation of every site */
+    private ClientState siteBehind;
+
+    private StateDifference siteDifference;
+
+    @Setup
+    public void setUp() throws OperationEngineException {
+        BenchmarkSession session = new BenchmarkSession(this.sites);
+        session.sequential(this.depth);
+        this.history = session.engine.getHistoryBuffer();
+
+        this.state = ClientState.fromArray(session.state.clone());
+        int[] a = session.state.clone();
+        a[1 + (this.depth - 1) % this.sites]--;
+        this.oneBehind = ClientState.fromArray(a);
+        int[] b = session.state.clone();
+        for (int site = 1; site <= this.sites; site++) {
+            b[site] = Math.max(0, b[site] - 1);
+        }
+        this.siteBehind = ClientState.fromArray(b);
+        this.siteDifference = this.state.subtract(this.siteBehind);
+    }
+
+    @Benchmark
+    public Operation[] recentOne() throws OperationEngineException {
+        return this.history.getOpsForDifference(this.state, this.oneBehind);
+    }
+
+    @Benchmark
+    public Operation[] recentPerSite() throws OperationEngineException {
+        return this.history.getOpsForDifference(this.state, this.siteBehind);
+    }
+
+    @Benchmark
+    public Operation[] recentPerSiteByDifference()
+            throws OperationEngineException {
+        return this.history.getOpsForDifference(this.siteDifference);
+    }
+
+    @Benchmark
+    public Operation[] contextSorted() {
+        return this.history.getContextSortedOperations();
+    }
+}
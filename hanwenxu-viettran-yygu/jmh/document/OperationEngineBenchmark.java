@@ -0,0 +1,138 @@
+package document;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the OperationEngine entry points, on a history of depth
+ * operations from the given number of sites:
+ *
+ * - pushLocal: a local edit, which never needs a transform
+ *
+ * - pushRemoteNoConcurrency: a remote op made after everything in the
+ * history, which is the common case when one user types at a time
+ *
+ * - pushRemoteLightConcurrency: a remote op concurrent with the last
+ * operation of the history, i.e. two users typing at once
+ *
+ * - pushRemoteHeavyConcurrency: every site typed at the same time, and the
+ * op is concurrent with one op of each of the other sites. Those were made in
+ * different contexts, so this takes the nested transforms.
+ *
+ * The histories are built once per trial. Pushing an operation changes the
+ * engine, so the push is undone after every call, outside of the
+ * measurement: the op is taken out of the history and the engine's
+ * ClientState is put back. That way the allocation rate given by -prof gc
+ * is only the push itself.
+ *
+ * @author Hanwen Xu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperationEngineBenchmark {
+
+    /** Number of remote sites */
+    @Param({ "2", "8", "32" })
+    public int sites;
+
+    /** Number of operations in the history before the measured one */
+    @Param({ "100", "1000" })
+    public int depth;
+
+    /** history for the local, in order and light cases */
+    private BenchmarkSession session;
+
+    /** history ending in a burst of all sites but the last */
+    private BenchmarkSession heavy;
+
+    /** ClientState of each engine before the measured push */
+    private ClientState sessionState;
+    private ClientState heavyState;
+
+    /** remote op made after the whole history */
+    private Operation inOrder;
+
+    /** remote op concurrent with the last op of the history */
+    private Operation concurrent;
+
+    /** op of the last site, concurrent with the burst */
+    private Operation burst;
+
+    /** engine and operation of the last call, to undo */
+    private BenchmarkSession pushedTo;
+    private Operation pushed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws OperationEngineException {
+        this.session = new BenchmarkSession(this.sites);
+        this.session.sequential(this.depth);
+        int[] before = this.session.state.clone();
+        this.session.push(this.session.next(1, before));
+        this.concurrent = this.session.next(2, before);
+        this.inOrder = this.session.next(2, this.session.state);
+        this.sessionState = this.session.engine.copyClientState();
+
+        this.heavy = new BenchmarkSession(this.sites);
+        this.heavy.sequential(this.depth);
+        int[] base = this.heavy.burst(this.sites - 1);
+        this.burst = this.heavy.next(this.sites, base);
+        this.heavyState = this.heavy.engine.copyClientState();
+    }
+
+    @TearDown(Level.Invocation)
+    public void undo() throws OperationEngineException {
+        OperationEngine engine = this.pushedTo.engine;
+        engine.getHistoryBuffer().removeOperation(this.pushed);
+        engine.setCV((this.pushedTo == this.heavy ? this.heavyState
+                : this.sessionState).copy());
+    }
+
+    @Benchmark
+    public Operation pushLocal() throws OperationEngineException {
+        this.pushedTo = this.session;
+        this.pushed = this.session.engine.push(true, BenchmarkSession.KEY,
+                "b", OpType.INSERT, 0, 0, null, 0);
+        return this.pushed;
+    }
+
+    @Benchmark
+    public Operation pushRemoteNoConcurrency() throws OperationEngineException {
+        this.pushedTo = this.session;
+        this.pushed = this.inOrder;
+        return this.session.engine.pushRemoteOp(this.inOrder);
+    }
+
+    @Benchmark
+    public Operation pushRemoteLightConcurrency()
+            throws OperationEngineException {
+        this.pushedTo = this.session;
+        this.pushed = this.concurrent;
+        return this.session.engine.pushRemoteOp(this.concurrent);
+    }
+
+    @Benchmark
+    public Operation pushRemoteHeavyConcurrency()
+            throws OperationEngineException {
+        this.pushedTo = this.heavy;
+        this.pushed = this.burst;
+        return this.heavy.engine.pushRemoteOp(this.burst);
+    }
+}
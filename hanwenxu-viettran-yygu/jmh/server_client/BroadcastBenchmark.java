@@ -0,0 +1,123 @@
+package server_client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import document.ClientState;
+import document.OpType;
+import document.Operation;
+
+/**
+ * JMH benchmarks of relaying an operation to the clients of its document,
+ * without the sockets: the clients only count the bytes they are sent. The
+ * server encodes the operation once and sends the same frame to every
+ * client; encodeEach encodes it again for each client, as the server did
+ * when it wrote the operation to an ObjectOutputStream per client.
+ *
+ * Run with: java -cp jmh-bin:bin:(JMH jars) document.BenchmarkRunner
+ * server_client
+ *
+ * @author youyanggu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /** Number of clients editing the document */
+    @Param({ "1", "10", "100" })
+    public int clients;
+
+    /** the document of the clients, made by the server */
+    private static final String DOCUMENT = "default";
+
+    /** headless server, never serving */
+    private CollabServer server;
+
+    /** its clients */
+    private final ArrayList<Connection> connections = new ArrayList<Connection>();
+
+    /** a keystroke */
+    private Operation op;
+
+    @Setup
+    public void setUp() {
+        this.server = new CollabServer("localhost", 0, "Anonymous", true);
+        ServerDocument document = this.server.getDocuments().get(DOCUMENT);
+        int[] seqs = new int[this.clients + 1];
+        for (int i = 0; i < this.clients; i++) {
+            Connection c = new CountingConnection(this.server.getKeys());
+            c.setActive(true);
+            document.subscribe(c);
+            this.connections.add(c);
+            seqs[i + 1] = 100 + i;
+        }
+        this.op = Operation.create(OpType.INSERT, DOCUMENT, "x", 1234, 1,
+                seqs[1], ClientState.fromArray(seqs), 0, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.shutdown();
+    }
+
+    @Benchmark
+    public void transmit() throws IOException {
+        this.server.transmit(this.op);
+    }
+
+    @Benchmark
+    public void encodeEach() throws IOException {
+        DocumentKeys keys = this.server.getKeys();
+        for (Connection c : this.connections) {
+            c.sendFrame(FrameCodec.encode(this.op, keys));
+        }
+    }
+
+    /**
+     * A client that takes every frame right away
+     */
+    private static class CountingConnection extends Connection {
+
+        CountingConnection(DocumentKeys keys) {
+            super(keys);
+        }
+
+        @Override
+        void queue(byte[] frame) {
+            written(frame.length);
+        }
+
+        @Override
+        long dropQueued() {
+            return 0;
+        }
+
+        @Override
+        void abort() {
+        }
+
+        @Override
+        boolean close() {
+            return true;
+        }
+    }
+}
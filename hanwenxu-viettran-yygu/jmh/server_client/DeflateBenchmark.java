@@ -0,0 +1,82 @@
+package server_client;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of deflating the text a client is sent when it joins a
+ * document, and of inflating it on the client. The text is made of words
+ * picked at random from a short list, so it compresses about like prose.
+ * The length of the frame before and after is printed once per trial.
+ *
+ * Run with: java -cp jmh-bin:bin:(JMH jars) document.BenchmarkRunner
+ * Deflate
+ *
+ * @author youyanggu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeflateBenchmark {
+
+    /** words the text is made of */
+    private static final String[] WORDS = { "the", "document", "server",
+            "client", "operation", "of", "and", "to", "a", "is", "edit",
+            "text", "in", "that", "transform", "state", "site", "order",
+            "with", "for", "each", "every", "insert", "delete", "change",
+            "collaborative", "real", "time", "user", "it", "when", "then" };
+
+    /** Length of the text, in characters */
+    @Param({ "16384", "1048576" })
+    public int chars;
+
+    /** the frame of the text */
+    private byte[] frame;
+
+    /** the frame, deflated */
+    private byte[] deflated;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(this.chars + 16);
+        while (text.length() < this.chars) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+        }
+        text.setLength(this.chars);
+        this.frame = FrameCodec.encode(text.toString());
+        this.deflated = FrameCodec.deflate(this.frame);
+        System.out.printf("%n%d chars: %d B, deflated %d B (%.1f%%)%n",
+                this.chars, this.frame.length, this.deflated.length,
+                100.0 * this.deflated.length / this.frame.length);
+    }
+
+    @Benchmark
+    public byte[] deflate() throws IOException {
+        return FrameCodec.deflate(this.frame);
+    }
+
+    @Benchmark
+    public Object inflate() throws IOException {
+        return FrameCodec.decode(this.deflated, FrameCodec.HEADER,
+                this.deflated.length - FrameCodec.HEADER);
+    }
+}
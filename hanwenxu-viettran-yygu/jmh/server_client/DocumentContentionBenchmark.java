@@ -0,0 +1,159 @@
+package server_client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import document.ClientState;
+import document.OpType;
+import document.Operation;
+
+/**
+ * JMH benchmark of edits on different documents at once. Each JMH thread is
+ * a client of a document of its own: it joins it through the server like a
+ * real client, without the sockets, then types and deletes a character in
+ * turn, acknowledging every few operations so the history stays short. The
+ * server applies each edit and relays it back to the client. Documents don't
+ * share anything, so the throughput should grow with the threads: run it with
+ * -t 1, then -t 2, 4 and 8, on as many cores.
+ *
+ * Run with: java -cp jmh-bin:bin:(JMH jars) document.BenchmarkRunner
+ * DocumentContention -t 4
+ *
+ * @author youyanggu
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class DocumentContentionBenchmark {
+
+    /** operations between two acknowledgements */
+    private static final int ACK_INTERVAL = 32;
+
+    /**
+     * The server, shared by all the threads
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        /** headless server, never serving */
+        CollabServer server;
+
+        /** numbers the documents of the threads */
+        final AtomicInteger documents = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            this.server = new CollabServer("localhost", 0, "Anonymous", true);
+        }
+
+        @TearDown
+        public void tearDown() {
+            this.server.shutdown();
+        }
+    }
+
+    /**
+     * The client of a thread, and its document
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        /** its connection, taking every frame right away */
+        Connection connection;
+
+        /** its document */
+        String document;
+
+        /** its site ID */
+        int site;
+
+        /** sequence number of its last operation */
+        int seq;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            this.connection = new CountingConnection(server.server.getKeys());
+            this.document = "document" + server.documents.incrementAndGet();
+            server.server.receive(this.connection, this.document);
+            server.server.receive(this.connection, this.document + " user");
+            this.site = this.connection.getClientID();
+        }
+
+        /** @return the state of the client, with all its operations */
+        ClientState state() {
+            int[] seqs = new int[this.site + 1];
+            seqs[this.site] = this.seq;
+            return ClientState.fromArray(seqs);
+        }
+    }
+
+    /**
+     * Types a character, or deletes the one it typed, on the document of the
+     * thread
+     */
+    @Benchmark
+    public void edit(Server server, Client client) throws IOException {
+        ClientState context = client.state();
+        client.seq++;
+        Operation op;
+        if (client.seq % 2 == 1) {
+            op = Operation.create(OpType.INSERT, client.document, "x", 0,
+                    client.site, client.seq, context, 0, false);
+        } else {
+            op = Operation.createDelete(client.document, 0, 1, client.site,
+                    client.seq, context, 0, false);
+        }
+        server.server.receive(client.connection, op);
+        if (client.seq % ACK_INTERVAL == 0) {
+            server.server.receive(client.connection, client.state());
+        }
+    }
+
+    /**
+     * A client that takes every frame right away
+     */
+    private static class CountingConnection extends Connection {
+
+        CountingConnection(DocumentKeys keys) {
+            super(keys);
+        }
+
+        @Override
+        void queue(byte[] frame) {
+            written(frame.length);
+        }
+
+        @Override
+        long dropQueued() {
+            return 0;
+        }
+
+        @Override
+        void abort() {
+        }
+
+        @Override
+        boolean close() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package server_client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import document.ClientState;
+import document.OpType;
+import document.Operation;
+
+/**
+ * JMH benchmarks of the frames of the two messages that make most of the
+ * traffic, a keystroke and an acknowledgement, encoded by FrameCodec and by
+ * Java serialization, which it replaced. Java serialization writes a new
+ * stream for every message, like the server did to share a frame between
+ * clients. The length of each frame is printed once per trial.
+ *
+ * Run with: java -cp jmh-bin:bin:(JMH jars) document.BenchmarkRunner
+ * server_client
+ *
+ * @author youyanggu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    /** Number of sites in the ClientStates */
+    @Param({ "2", "32" })
+    public int sites;
+
+    /** numbers of the documents, as on the server */
+    private final DocumentKeys keys = new DocumentKeys();
+
+    /** a keystroke */
+    private Operation op;
+
+    /** an acknowledgement */
+    private ClientState state;
+
+    /** the frames of op */
+    private byte[] opFrame;
+    private byte[] opSerialized;
+
+    /** the frames of state */
+    private byte[] stateFrame;
+    private byte[] stateSerialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.keys.add("default");
+        int[] seqs = new int[this.sites];
+        for (int i = 0; i < this.sites; i++) {
+            seqs[i] = 100 + i * 37;
+        }
+        this.state = ClientState.fromArray(seqs);
+        this.op = Operation.create(OpType.INSERT, "default", "x", 1234, 1,
+                seqs[1], ClientState.fromArray(seqs.clone()), 4567, false);
+        this.opFrame = FrameCodec.encode(this.op, this.keys);
+        this.opSerialized = serialize(this.op);
+        this.stateFrame = FrameCodec.encode(this.state, this.keys);
+        this.stateSerialized = serialize(this.state);
+        System.out.printf("%n%d sites: operation %d B (serialized %d B),"
+                + " ClientState %d B (serialized %d B)%n", this.sites,
+                this.opFrame.length, this.opSerialized.length,
+                this.stateFrame.length, this.stateSerialized.length);
+    }
+
+    /** the old frame: the length, then the object in a stream of its own */
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[FrameCodec.HEADER]);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] frame) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                frame, FrameCodec.HEADER, frame.length - FrameCodec.HEADER));
+        return in.readObject();
+    }
+
+    @Benchmark
+    public byte[] encodeOperation() throws IOException {
+        return FrameCodec.encode(this.op, this.keys);
+    }
+
+    @Benchmark
+    public Object decodeOperation() throws IOException {
+        return FrameCodec.decode(this.opFrame, FrameCodec.HEADER,
+                this.opFrame.length - FrameCodec.HEADER, this.keys);
+    }
+
+    @Benchmark
+    public byte[] serializeOperation() throws IOException {
+        return serialize(this.op);
+    }
+
+    @Benchmark
+    public Object deserializeOperation() throws Exception {
+        return deserialize(this.opSerialized);
+    }
+
+    @Benchmark
+    public byte[] encodeState() throws IOException {
+        return FrameCodec.encode(this.state, this.keys);
+    }
+
+    @Benchmark
+    public Object decodeState() throws IOException {
+        return FrameCodec.decode(this.stateFrame, FrameCodec.HEADER,
+                this.stateFrame.length - FrameCodec.HEADER, this.keys);
+    }
+
+    @Benchmark
+    public byte[] serializeState() throws IOException {
+        return serialize(this.state);
+    }
+
+    @Benchmark
+    public Object deserializeState() throws Exception {
+        return deserialize(this.stateSerialized);
+    }
+}
@@ -2,9 +2,7 @@ package controller;
 
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
-import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
-import javax.swing.text.SimpleAttributeSet;
 
 import model.CollabModel;
 import ui.ClientGui;
@@ -18,7 +16,8 @@ import document.OperationEngineException;
 /**
  * This class is the controller listener for changes in the main document, then
  * it will access the collabModel and make the update for the document
- * appropriately
+ * appropriately. Local edits go through the model's EditCoalescer, so that a
+ * burst of typing becomes a single operation.
  * 
  * @author viettran
  * 
@@ -72,9 +71,8 @@ public class TextChangeListener implements DocumentListener {
 		}
 
 		if (!model.remote) {
-			AttributeSet normal = new SimpleAttributeSet();
 			try {
-				model.addString(pos, change, normal);
+				model.localInsert(pos, change);
 			} catch (OperationEngineException e1) {
 				e1.printStackTrace();
 			}
@@ -100,9 +98,8 @@ public class TextChangeListener implements DocumentListener {
 		change = e.getLength();
 
 		if (!model.remote) {
-			AttributeSet normal = new SimpleAttributeSet();
 			try {
-				model.deleteString(pos, change, normal);
+				model.localDelete(pos, change);
 			} catch (OperationEngineException e1) {
 				e1.printStackTrace();
 			}
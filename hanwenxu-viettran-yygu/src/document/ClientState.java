@@ -1,7 +1,6 @@
 package document;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Arrays;
 
@@ -43,6 +42,14 @@ public class ClientState implements Serializable {
      */
     private int[] clients;
 
+    /**
+     * Copy-on-write flag. When true, the clients array may be referenced by
+     * another ClientState (see copy()), so it must be cloned before this
+     * ClientState is mutated. Not serialized, since a deserialized
+     * ClientState always owns a fresh array.
+     */
+    private transient boolean shared = false;
+
     /**
      * This is just the standard constructor. We wanted to make the constructor
      * very flexible so that it can take in multiple different types of Maps,
@@ -52,6 +59,10 @@ public class ClientState implements Serializable {
      * extremely handy when we implement the _transform function in the
      * OperationEngine.
      * 
+     * The engine itself no longer goes through this constructor, since
+     * building a map for every copy was one of our biggest sources of garbage.
+     * It uses the withSize and fromArray factories, and copy(), instead.
+     * 
      * @param properties
      *            extremely flexible. Have to test various map types as
      *            specified: a map containing a count key a map containing a
@@ -82,6 +93,44 @@ public class ClientState implements Serializable {
         }
     }
 
+    /**
+     * Private constructor used by the factory methods and copy().
+     * 
+     * @param clients
+     *            array of sequence numbers, requires != null
+     * @param shared
+     *            true if the array is also referenced by another ClientState
+     */
+    private ClientState(int[] clients, boolean shared) {
+        this.clients = clients;
+        this.shared = shared;
+    }
+
+    /**
+     * Creates a ClientState of the given size with every sequence number set
+     * to zero. Same as the "count" key of the map constructor.
+     * 
+     * @param count
+     *            number of clients, requires count >= 0
+     * @return new ClientState
+     */
+    public static ClientState withSize(int count) {
+        return new ClientState(new int[count], false);
+    }
+
+    /**
+     * Creates a ClientState backed by the given array, without copying it.
+     * Same as the "sites" and "state" keys of the map constructor. The caller
+     * must not modify the array afterwards.
+     * 
+     * @param sites
+     *            sequence numbers indexed by clientID, requires != null
+     * @return new ClientState
+     */
+    public static ClientState fromArray(int[] sites) {
+        return new ClientState(sites, false);
+    }
+
     /**
      * Provides a public copy of the current state. 
      * 
@@ -101,16 +150,18 @@ public class ClientState implements Serializable {
     /**
      * Makes an independent copy of this ClientState.
      * 
+     * The copy is copy-on-write: both ClientStates share the same array until
+     * one of them is mutated, at which point the mutated one clones it. Most
+     * copies made by the engine are only ever compared, never changed, so
+     * this saves an array per copy.
+     * 
      * @throws OperationEngineException
      * 
      * @return Copy of this ClientState
      */
     public ClientState copy() throws OperationEngineException {
-
-        HashMap<String, Object> args = new HashMap<String, Object>();
-        args.put("contextVector", this);
-
-        return new ClientState(args);
+        this.shared = true;
+        return new ClientState(this.clients, true);
     }
 
     /**
@@ -125,6 +176,22 @@ public class ClientState implements Serializable {
         return Arrays.copyOf(this.clients, this.clients.length);
     }
 
+    /**
+     * Makes sure this ClientState owns its array before it is mutated. Grows
+     * the array to at least the given size at the same time, so that a shared
+     * array that also needs growing is only copied once.
+     * 
+     * @param count
+     *            minimum size of the array after this call
+     */
+    private void ensureOwned(int count) {
+        if (this.shared || this.clients.length < count) {
+            int size = Math.max(count, this.clients.length);
+            this.clients = Arrays.copyOf(this.clients, size);
+            this.shared = false;
+        }
+    }
+
     /**
      * Increases the size of the ClientState to the given size. Initializes
      * new entries with zeros. This is useful for when a new client joins, we
@@ -135,19 +202,8 @@ public class ClientState implements Serializable {
      *            nothing
      */
     public void growTo(int count) {
-
-        int l = this.clients.length;
-
-        if (l < count) {
-            int[] newClients = new int[count];
-            for (int i = 0; i < count; i++) {
-                if (i < l) {
-                    newClients[i] = this.clients[i];
-                } else {
-                    newClients[i] = 0;
-                }
-            }
-            this.clients = newClients;
+        if (this.clients.length < count) {
+            this.ensureOwned(count);
         }
     }
 
@@ -170,6 +226,23 @@ public class ClientState implements Serializable {
         return this.clients[client];
     }
 
+    /**
+     * Gets the sequence number for the given site without growing this
+     * ClientState. Sites past the end are treated as 0, the same way equals
+     * and compare treat them. Use this on read-only paths, such as checking
+     * whether an operation was already processed.
+     * 
+     * @param client
+     *            Integer clientID, requires 0<=client
+     * @return Integer sequence number for the site, or 0 if not indexed
+     */
+    public int seqAt(int client) {
+        if (client < this.clients.length) {
+            return this.clients[client];
+        }
+        return 0;
+    }
+
     /**
      * Sets the sequence number for the given site in this ClientState. Grows
      * the ClientState if it does not include the site yet.
@@ -184,9 +257,11 @@ public class ClientState implements Serializable {
         if (client < 0) {
             throw new ArrayIndexOutOfBoundsException("inproper client input");
         }
-        if (this.clients.length <= client) {
-            this.growTo(client + 1);
+        if (client < this.clients.length && this.clients[client] == seq) {
+            // nothing changes, so don't break the sharing of the array
+            return;
         }
+        this.ensureOwned(client + 1);
         this.clients[client] = seq;
     }
 
@@ -216,8 +291,8 @@ public class ClientState implements Serializable {
     public StateDifference subtract(ClientState cv) {
         StateDifference sd = new StateDifference();
         for (int i = 0; i < this.clients.length; i++) {
-            int a = this.getSeqForClient(i);
-            int b = cv.getSeqForClient(i);
+            int a = this.clients[i];
+            int b = cv.seqAt(i);
             if (a - b > 0) {
                 sd.addRange(i, b + 1, a + 1);
             }
@@ -238,8 +313,8 @@ public class ClientState implements Serializable {
     public StateDifference oldestDifference(ClientState cv) {
         StateDifference sd = new StateDifference();
         for (int i = 0; i < this.clients.length; i++) {
-            int a = this.getSeqForClient(i);
-            int b = cv.getSeqForClient(i);
+            int a = this.clients[i];
+            int b = cv.seqAt(i);
             if (a - b > 0) {
                 sd.addSiteSeq(i, b + 1);
             }
@@ -247,6 +322,26 @@ public class ClientState implements Serializable {
         return sd;
     }
 
+    /**
+     * Hash of the sequence IDs, consistent with equals: trailing zeros are
+     * ignored, so two ClientStates of different sizes that are equal get the
+     * same hash. Used to look up transformed operations by their context.
+     *
+     * @return hash of the sequence IDs
+     */
+    public int contextHash() {
+        int[] a = this.clients;
+        int end = a.length;
+        while (end > 0 && a[end - 1] == 0) {
+            end--;
+        }
+        int h = 1;
+        for (int i = 0; i < end; i++) {
+            h = 31 * h + a[i];
+        }
+        return h;
+    }
+
     /**
      * This will be a boolean function to see if the ClientState values contain
      * the same sequence IDs.  Unindexed values will be treated as 0, since we
@@ -278,6 +373,30 @@ public class ClientState implements Serializable {
         return true;
     }
 
+    /**
+     * Checks if this ClientState equals another one with one of its sequence
+     * IDs replaced, without copying the other one.
+     *
+     * @param cv
+     *            Other ClientState, not modified
+     * @param index
+     *            clientID whose sequence ID is replaced
+     * @param seq
+     *            sequence ID to use for index in cv
+     * @return True if equal, false if not
+     */
+    public boolean equalsWith(ClientState cv, int index, int seq) {
+        int max = Math.max(Math.max(this.clients.length, cv.clients.length),
+                index + 1);
+        for (int i = 0; i < max; i++) {
+            int vb = (i == index) ? seq : cv.seqAt(i);
+            if (this.seqAt(i) != vb) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * This will be a comparator function to see if the ClientState values contain
      * the same sequence IDs.  Unindexed values will be treated as 0, since we
@@ -314,6 +433,52 @@ public class ClientState implements Serializable {
         return 0;
     }
 
+    /**
+     * Checks whether this ClientState has processed at least every operation
+     * the other one has, i.e. every sequence number in this ClientState is
+     * greater or equal to the one in cv. Unindexed values are treated as 0.
+     * Does not allocate.
+     * 
+     * @param cv
+     *            Other ClientState
+     * @return True if this ClientState dominates cv
+     */
+    public boolean dominates(ClientState cv) {
+        int[] a = this.clients;
+        int[] b = cv.clients;
+        for (int i = 0; i < b.length; i++) {
+            int va = 0;
+            if (i < a.length) {
+                va = a[i];
+            }
+            if (va < b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges the other ClientState into this one in place, taking the maximum
+     * sequence number for each client. Only allocates if this ClientState is
+     * shared or has to grow.
+     * 
+     * @param cv
+     *            Other ClientState
+     */
+    public void merge(ClientState cv) {
+        int[] b = cv.clients;
+        if (!this.dominates(cv)) {
+            this.ensureOwned(b.length);
+            int[] a = this.clients;
+            for (int i = 0; i < b.length; i++) {
+                if (a[i] < b[i]) {
+                    a[i] = b[i];
+                }
+            }
+        }
+    }
+
     /**
      * Converts the contents of this ClientState sites array to a string.
      * 
@@ -2,7 +2,7 @@ package document;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 
 /**
  * This class will serve as a storage mechanism for all of the  ClientStates.
@@ -28,6 +28,15 @@ public class ClientStateTable {
      */
     private ArrayList<ClientState> cvt;
 
+    /**
+     * Clients whose ClientState we actually know, i.e. clients that have sent
+     * us an operation or an acknowledgement, or were set explicitly. Entries
+     * that growTo fills in for other site IDs are all zeros and say nothing
+     * about what that client has seen, so they are not included in
+     * getMinimumActiveClientState.
+     */
+    private BitSet active = new BitSet();
+
     /**
      * This is the constructor for the ClientStateTable. We will use this to
      * store a table of ClientState, or states, associated with each client in
@@ -44,6 +53,7 @@ public class ClientStateTable {
         this.cvt = new ArrayList<ClientState>();
         this.growTo(client + 1);
         this.cvt.set(client, cv);
+        this.active.set(client);
     }
 
     /**
@@ -117,10 +127,7 @@ public class ClientStateTable {
         }
 
         for (int j = l; j < finalSize; j++) {
-            HashMap<String, Object> properties = new HashMap<String, Object>();
-            properties.put("count", finalSize);
-            ClientState cv = new ClientState(properties);
-            this.cvt.add(cv);
+            this.cvt.add(ClientState.withSize(finalSize));
         }
     }
 
@@ -157,10 +164,7 @@ public class ClientStateTable {
         this.cvt = new ArrayList<ClientState>(state.length);
 
         for (int i = 0; i < state.length; i++) {
-            HashMap<String, Object> properties = new HashMap<String, Object>();
-            properties.put("state", state[i]);
-            // it is annoying to have to construct ClientStates with maps.
-            this.cvt.add(new ClientState(properties));
+            this.cvt.add(ClientState.fromArray(state[i]));
         }
 
     }
@@ -201,20 +205,69 @@ public class ClientStateTable {
                 cv.growTo(client + 1);
             }
             this.cvt.set(client, cv);
+            this.active.set(client);
+        }
+    }
+
+    /**
+     * Merges a ClientState acknowledged by a client into its entry. A client
+     * only ever acknowledges states it has reached, so this moves its entry
+     * forward, never back.
+     * 
+     * @param client
+     *            Integer client ID, if client<0, do nothing.
+     * @param cv
+     *            ClientState the client reported, not modified
+     * @throws OperationEngineException
+     */
+    public void acknowledge(int client, ClientState cv)
+            throws OperationEngineException {
+        if (client >= 0) {
+            this.getClientState(client).merge(cv);
+            this.active.set(client);
         }
     }
 
     /**
-     * Updates the table with a new operation
+     * Stops taking the given client into account in
+     * getMinimumActiveClientState, e.g. because it disconnected. Its entry is
+     * kept, and becomes active again if the client shows up again.
+     * 
+     * @param client
+     *            Integer client ID
+     */
+    public void removeClientState(int client) {
+        if (client >= 0) {
+            this.active.clear(client);
+        }
+    }
+
+    /**
+     * @param client
+     *            Integer client ID
+     * @return True if the entry for this client is taken into account in
+     *         getMinimumActiveClientState
+     */
+    public boolean isActive(int client) {
+        return client >= 0 && this.active.get(client);
+    }
+
+    /**
+     * Updates the table with a new operation. The entry for the op's client
+     * is updated in place: since a client's operations arrive in order, its
+     * context only ever moves forward, so merging the op's context into the
+     * entry is the same as replacing it, without allocating a new
+     * ClientState for every remote operation.
      * 
      * @param op
      *            Operation with the client ID and  ClientState
      * @throws OperationEngineException
      */
     public void operationUpdate(Operation op) throws OperationEngineException {
-        ClientState cv = op.getClientState().copy();
+        ClientState cv = this.getClientState(op.siteId);
+        cv.merge(op.getClientState());
         cv.setSeqForClient(op.siteId, op.seqId);
-        this.setClientState(op.siteId, cv);
+        this.active.set(op.siteId);
     }
 
     /**
@@ -237,7 +290,7 @@ public class ClientStateTable {
         for (int i = 1; i < l; i++) {
             ClientState cv = this.cvt.get(i);
             for (int client = 0; client < l; client++) {
-                int seq = cv.getSeqForClient(client);
+                int seq = cv.seqAt(client);
                 int min = mcv.getSeqForClient(client);
                 if (seq < min) {
                     mcv.setSeqForClient(client, seq);
@@ -246,4 +299,37 @@ public class ClientStateTable {
         }
         return mcv;
     }
+
+    /**
+     * Gets the smallest context ClientState over the active clients only,
+     * i.e. the operations that every client we know of has processed. This is
+     * what the OperationEngine uses to throw away history.
+     * 
+     * @throws OperationEngineException
+     * 
+     * @return Minimum context ClientState of the active clients, or null if
+     *         there are none.
+     */
+    public ClientState getMinimumActiveClientState()
+            throws OperationEngineException {
+        ClientState mcv = null;
+        int l = this.cvt.size();
+
+        for (int i = this.active.nextSetBit(0); i >= 0 && i < l; i = this.active
+                .nextSetBit(i + 1)) {
+            ClientState cv = this.cvt.get(i);
+            if (mcv == null) {
+                mcv = ClientState.fromArray(cv.copyClients());
+                mcv.growTo(l);
+                continue;
+            }
+            for (int client = 0; client < mcv.getSize(); client++) {
+                int seq = cv.seqAt(client);
+                if (seq < mcv.getSeqForClient(client)) {
+                    mcv.setSeqForClient(client, seq);
+                }
+            }
+        }
+        return mcv;
+    }
 }
@@ -530,4 +530,39 @@ public class ClientStateTableTest {
         assertArrayEquals(cv41.getState(), exp4);
     }
 
+    /**
+     * This test will test getMinimumActiveClientState. Entries filled in by
+     * growTo should not count, acknowledged ones should, and removed ones
+     * should stop counting.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void getMinimumActiveClientStateTest1()
+            throws OperationEngineException {
+        int[] own = { 4, 2, 3, 0 };
+        ClientStateTable cvt = new ClientStateTable(ClientState.fromArray(own),
+                0);
+        cvt.growTo(4);
+
+        int[] exp1 = { 4, 2, 3, 0 };
+        assertArrayEquals(cvt.getMinimumActiveClientState().getState(), exp1);
+        assertEquals(cvt.isActive(2), false);
+
+        int[] ack2 = { 1, 2, 0, 0 };
+        cvt.acknowledge(2, ClientState.fromArray(ack2));
+        int[] exp2 = { 1, 2, 0, 0 };
+        assertArrayEquals(cvt.getMinimumActiveClientState().getState(), exp2);
+
+        // acknowledgements only ever move an entry forward
+        int[] old2 = { 0, 0, 1, 0 };
+        cvt.acknowledge(2, ClientState.fromArray(old2));
+        int[] exp3 = { 1, 2, 1, 0 };
+        assertArrayEquals(cvt.getMinimumActiveClientState().getState(), exp3);
+
+        cvt.removeClientState(2);
+        assertArrayEquals(cvt.getMinimumActiveClientState().getState(), exp1);
+        assertEquals(cvt.isActive(2), false);
+    }
+
 }
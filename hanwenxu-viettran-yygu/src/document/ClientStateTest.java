@@ -819,4 +819,111 @@ public class ClientStateTest {
     
     
 
+    /**
+     * This test will test the withSize and fromArray factories. They should
+     * give the same ClientStates as the count and sites keys of the map
+     * constructor.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void factoryTest1() throws OperationEngineException {
+        Map<String, Object> map1 = new HashMap<String, Object>();
+        map1.put("count", 3);
+        ClientState cv1 = new ClientState(map1);
+
+        int[] sites = { 1, 2, 3, 4, 5 };
+        ClientState cv2 = ClientState.fromArray(sites);
+
+        assertArrayEquals(ClientState.withSize(3).getState(), cv1.getState());
+        assertArrayEquals(cv2.getState(), sites);
+        assertEquals(ClientState.withSize(0).getSize(), 0);
+    }
+
+    /**
+     * This test will test that copies are copy-on-write. Mutating either the
+     * copy or the original should never be visible in the other one.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void copyOnWriteTest1() throws OperationEngineException {
+        int[] state = { 1, 0, 1, 3, 0 };
+        ClientState cv1 = ClientState.fromArray(state);
+        ClientState cv2 = cv1.copy();
+        ClientState cv3 = cv1.copy();
+
+        cv2.setSeqForClient(1, 7);
+        cv1.setSeqForClient(0, 9);
+        cv3.growTo(7);
+
+        int[] exp1 = { 9, 0, 1, 3, 0 };
+        int[] exp2 = { 1, 7, 1, 3, 0 };
+        int[] exp3 = { 1, 0, 1, 3, 0, 0, 0 };
+        assertArrayEquals(cv1.getState(), exp1);
+        assertArrayEquals(cv2.getState(), exp2);
+        assertArrayEquals(cv3.getState(), exp3);
+    }
+
+    /**
+     * This test will test the dominates method, including ClientStates of
+     * different sizes.
+     */
+    @Test
+    public void dominatesTest1() {
+        int[] a = { 1, 2, 3 };
+        int[] b = { 1, 2, 3, 0, 0 };
+        int[] c = { 1, 2, 3, 1 };
+        int[] d = { 0, 5 };
+        ClientState cva = ClientState.fromArray(a);
+        ClientState cvb = ClientState.fromArray(b);
+        ClientState cvc = ClientState.fromArray(c);
+        ClientState cvd = ClientState.fromArray(d);
+
+        assertTrue(cva.dominates(cvb));
+        assertTrue(cvb.dominates(cva));
+        assertTrue(cvc.dominates(cva));
+        assertFalse(cva.dominates(cvc));
+        assertFalse(cva.dominates(cvd));
+        assertFalse(cvd.dominates(cva));
+    }
+
+    /**
+     * This test will test the merge method. The result should be the maximum
+     * at every index, and the merged-from ClientState should not change.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void mergeTest1() throws OperationEngineException {
+        int[] a = { 1, 2, 3 };
+        int[] d = { 0, 5, 0, 0, 4 };
+        ClientState cva = ClientState.fromArray(a);
+        ClientState cvd = ClientState.fromArray(d);
+        ClientState copy = cvd.copy();
+
+        cva.merge(cvd);
+        copy.merge(cva);
+
+        int[] expA = { 1, 5, 3, 0, 4 };
+        int[] expD = { 0, 5, 0, 0, 4 };
+        assertArrayEquals(cva.getState(), expA);
+        assertArrayEquals(cvd.getState(), expD);
+        assertArrayEquals(copy.getState(), expA);
+    }
+
+    /**
+     * This test will test that seqAt treats unindexed clients as 0 and does
+     * not grow the ClientState.
+     */
+    @Test
+    public void seqAtTest1() {
+        int[] a = { 1, 2, 3 };
+        ClientState cva = ClientState.fromArray(a);
+
+        assertEquals(cva.seqAt(2), 3);
+        assertEquals(cva.seqAt(10), 0);
+        assertEquals(cva.getSize(), 3);
+    }
+
 }
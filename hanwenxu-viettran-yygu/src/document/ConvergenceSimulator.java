@@ -0,0 +1,504 @@
+package document;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Runs a whole editing session in one process, without sockets: a number of
+ * client sites, each with its own OperationEngine and copy of the document,
+ * and a server that orders their operations and relays them, the same way
+ * CollabServer and CollabClient do. Every site makes random inserts and
+ * deletes, and at the end every copy of the document must be the same.
+ *
+ * The network is simulated in ticks. Every message is delivered a random
+ * number of ticks after it was sent, between 1 and the latency, but messages
+ * on the same connection still arrive in the order they were sent, like over
+ * TCP. So messages from different sites are reordered, and a site keeps
+ * editing while the operations of the others are on the way, which is what
+ * makes operations concurrent. A larger latency or edit rate means more
+ * concurrency. Clients acknowledge their state to the server every so often,
+ * so the server collects garbage like it does in a real session.
+ *
+ * Everything random comes from one seeded Random, so a session can be run
+ * again exactly, e.g. to debug a divergence.
+ *
+ * The session reports the throughput, the number of transform steps per
+ * remote operation and the peak size of the histories, which is what we
+ * look at to tell how many users and how much typing a server can take.
+ *
+ * Run with: java -cp bin document.ConvergenceSimulator [sites] [edits]
+ * [latency] [seed]
+ *
+ * Thread safety argument: a simulator, and every engine in it, is only used
+ * by the thread that runs it.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class ConvergenceSimulator {
+
+    /**
+     * Key of every operation
+     */
+    private static final String KEY = "document";
+
+    /**
+     * A message on its way, with the tick at which it arrives.
+     */
+    private static final class Message {
+        private final long due;
+        /** an Operation, or the ClientState of an acknowledgement */
+        private final Object body;
+
+        private Message(long due, Object body) {
+            this.due = due;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A client site, or the server, with its engine and copy of the
+     * document. A client also holds both directions of its connection to the
+     * server.
+     */
+    private static final class Site {
+        private final int id;
+        private final OperationEngine engine;
+        private final StringBuilder text = new StringBuilder();
+        /** messages on their way from this client to the server */
+        private final ArrayDeque<Message> toServer = new ArrayDeque<Message>();
+        /** messages on their way from the server to this client */
+        private final ArrayDeque<Message> fromServer = new ArrayDeque<Message>();
+        /** remote operations processed since the last acknowledgement */
+        private int sinceAck = 0;
+
+        private Site(int id) throws OperationEngineException {
+            this.id = id;
+            this.engine = new OperationEngine(id);
+        }
+    }
+
+    /**
+     * Number of client sites
+     */
+    private final int siteCount;
+
+    /**
+     * Source of every random choice
+     */
+    private final Random random;
+
+    /**
+     * The server, site 0
+     */
+    private final Site server;
+
+    /**
+     * Client sites, indexed by site ID - 1
+     */
+    private final Site[] clients;
+
+    /**
+     * Maximum number of ticks a message takes
+     */
+    private int latency = 5;
+
+    /**
+     * Probability that a client makes an edit in a tick
+     */
+    private double editRate = 0.3;
+
+    /**
+     * Probability that an edit is a delete, if there is text to delete
+     */
+    private double deleteRate = 0.3;
+
+    /**
+     * Number of remote operations after which a client acknowledges its
+     * state, 0 for never
+     */
+    private int ackInterval = 10;
+
+    /**
+     * Place in the total order of the next operation the server gets
+     */
+    private int order = 0;
+
+    /** Current tick */
+    private long tick = 0;
+    /** Number of edits made by the clients */
+    private long edits = 0;
+    /** Number of remote operations pushed into an engine */
+    private long remotePushes = 0;
+    /** Transform steps taken by all those pushes */
+    private long transformSteps = 0;
+    /** Deepest nesting of transforms in any push */
+    private int maxTransformDepth = 0;
+    /** Largest history the server had */
+    private int peakServerHistory = 0;
+    /** Largest history any client had */
+    private int peakClientHistory = 0;
+    /** Nanoseconds spent in run */
+    private long elapsed = 0;
+
+    /**
+     * Creates a session with the given number of clients and an empty
+     * document.
+     *
+     * @param sites
+     *            number of client sites, requires > 0
+     * @param seed
+     *            seed of every random choice in the session
+     * @throws OperationEngineException
+     */
+    public ConvergenceSimulator(int sites, long seed)
+            throws OperationEngineException {
+        this.siteCount = sites;
+        this.random = new Random(seed);
+        this.server = new Site(0);
+        this.clients = new Site[sites];
+        for (int i = 0; i < sites; i++) {
+            this.clients[i] = new Site(i + 1);
+            // what CollabServer does when a client connects
+            this.server.engine.acknowledge(i + 1,
+                    ClientState.withSize(sites + 1));
+        }
+    }
+
+    /**
+     * @param ticks
+     *            maximum number of ticks a message takes, requires >= 1
+     */
+    public void setLatency(int ticks) {
+        this.latency = ticks;
+    }
+
+    /**
+     * @param rate
+     *            probability that a client makes an edit in a tick, between
+     *            0 and 1
+     */
+    public void setEditRate(double rate) {
+        this.editRate = rate;
+    }
+
+    /**
+     * @param rate
+     *            probability that an edit is a delete, between 0 and 1
+     */
+    public void setDeleteRate(double rate) {
+        this.deleteRate = rate;
+    }
+
+    /**
+     * @param interval
+     *            number of remote operations after which a client
+     *            acknowledges its state to the server, 0 for never
+     */
+    public void setAckInterval(int interval) {
+        this.ackInterval = interval;
+    }
+
+    /**
+     * Runs the session until the clients have made the given number of
+     * edits, then until every message has been delivered.
+     *
+     * @param count
+     *            number of edits to make, in total over all clients
+     * @throws OperationEngineException
+     *             if an engine fails
+     */
+    public void run(long count) throws OperationEngineException {
+        long start = System.nanoTime();
+        long target = this.edits + count;
+        while (this.edits < target || this.pending()) {
+            ++this.tick;
+            this.deliverToServer();
+            for (Site c : this.clients) {
+                this.deliverToClient(c);
+            }
+            for (int i = 0; i < this.siteCount && this.edits < target; i++) {
+                if (this.random.nextDouble() < this.editRate) {
+                    this.edit(this.clients[i]);
+                }
+            }
+        }
+        this.elapsed += System.nanoTime() - start;
+    }
+
+    /**
+     * @return true if a message is still on its way
+     */
+    private boolean pending() {
+        for (Site c : this.clients) {
+            if (!c.toServer.isEmpty() || !c.fromServer.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a message, which arrives after a random delay, but not before the
+     * messages sent earlier on the same connection.
+     *
+     * @param connection
+     *            one direction of a connection
+     * @param body
+     *            message
+     */
+    private void send(ArrayDeque<Message> connection, Object body) {
+        long due = this.tick + 1 + this.random.nextInt(this.latency);
+        if (!connection.isEmpty()) {
+            due = Math.max(due, connection.peekLast().due);
+        }
+        connection.addLast(new Message(due, body));
+    }
+
+    /**
+     * Makes a random edit at a client and sends it to the server.
+     *
+     * @param c
+     *            client
+     * @throws OperationEngineException
+     */
+    private void edit(Site c) throws OperationEngineException {
+        int length = c.text.length();
+        Operation op;
+        if (length > 0 && this.random.nextDouble() < this.deleteRate) {
+            int position = this.random.nextInt(length);
+            int n = 1 + this.random.nextInt(Math.min(3, length - position));
+            op = c.engine.pushDelete(true, KEY, position, n, c.id, null, 0);
+            c.text.delete(position, position + n);
+        } else {
+            int position = this.random.nextInt(length + 1);
+            int n = 1 + this.random.nextInt(3);
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                value.append((char) ('a' + this.random.nextInt(26)));
+            }
+            op = c.engine.push(true, KEY, value.toString(), OpType.INSERT,
+                    position, c.id, null, 0);
+            c.text.insert(position, value);
+        }
+        ++this.edits;
+        this.peakClientHistory = Math.max(this.peakClientHistory,
+                c.engine.getBufferSize());
+        // over the network the server gets its own copy
+        this.send(c.toServer, op.copy());
+    }
+
+    /**
+     * Lets the server process every message that has arrived. Messages from
+     * different clients that arrive in the same tick are taken in a random
+     * order.
+     *
+     * @throws OperationEngineException
+     */
+    private void deliverToServer() throws OperationEngineException {
+        int[] ready = new int[this.siteCount];
+        while (true) {
+            int n = 0;
+            for (int i = 0; i < this.siteCount; i++) {
+                Message m = this.clients[i].toServer.peekFirst();
+                if (m != null && m.due <= this.tick) {
+                    ready[n++] = i;
+                }
+            }
+            if (n == 0) {
+                return;
+            }
+            Site c = this.clients[ready[this.random.nextInt(n)]];
+            Object body = c.toServer.pollFirst().body;
+            if (body instanceof Operation) {
+                Operation op = (Operation) body;
+                // what CollabServer.transmit does, including sending the op
+                // back to its own site
+                op.setOrder(this.order++);
+                for (Site other : this.clients) {
+                    this.send(other.fromServer, op.copy());
+                }
+                this.apply(this.server, op);
+                this.peakServerHistory = Math.max(this.peakServerHistory,
+                        this.server.engine.getBufferSize());
+            } else {
+                this.server.engine.acknowledge(c.id, (ClientState) body);
+                this.server.engine.collectGarbage();
+            }
+        }
+    }
+
+    /**
+     * Lets a client process every operation from the server that has
+     * arrived, and acknowledge its state when it is time to.
+     *
+     * @param c
+     *            client
+     * @throws OperationEngineException
+     */
+    private void deliverToClient(Site c) throws OperationEngineException {
+        while (!c.fromServer.isEmpty()
+                && c.fromServer.peekFirst().due <= this.tick) {
+            this.apply(c, (Operation) c.fromServer.pollFirst().body);
+            this.peakClientHistory = Math.max(this.peakClientHistory,
+                    c.engine.getBufferSize());
+            if (this.ackInterval > 0 && ++c.sinceAck >= this.ackInterval) {
+                this.send(c.toServer, c.engine.copyClientState());
+                c.sinceAck = 0;
+            }
+        }
+    }
+
+    /**
+     * Pushes a remote operation into a site's engine and applies the
+     * transformed operation to its copy of the document.
+     *
+     * @param s
+     *            site
+     * @param op
+     *            operation from another site
+     * @throws OperationEngineException
+     */
+    private void apply(Site s, Operation op) throws OperationEngineException {
+        Operation top = s.engine.pushRemoteOp(op);
+        ++this.remotePushes;
+        this.transformSteps += s.engine.getLastTransformSteps();
+        this.maxTransformDepth = Math.max(this.maxTransformDepth,
+                s.engine.getLastTransformDepth());
+        if (top == null) {
+            return;
+        }
+        if (top instanceof DeleteOperation) {
+            int[] ranges = ((DeleteOperation) top).getRanges();
+            for (int i = ranges.length - 2; i >= 0; i -= 2) {
+                s.text.delete(ranges[i], ranges[i] + ranges[i + 1]);
+            }
+        } else {
+            s.text.insert(top.getPosition(), top.getValue());
+        }
+    }
+
+    /**
+     * Checks if every client has the same document as the server. Only
+     * meaningful once run has returned, i.e. with no message on its way.
+     *
+     * @return true if every copy of the document is the same
+     */
+    public boolean isConverged() {
+        String text = this.server.text.toString();
+        for (Site c : this.clients) {
+            if (!c.text.toString().equals(text)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param site
+     *            0 for the server, or a client site ID
+     * @return the site's copy of the document
+     */
+    public String getText(int site) {
+        if (site == 0) {
+            return this.server.text.toString();
+        }
+        return this.clients[site - 1].text.toString();
+    }
+
+    /**
+     * @return number of edits the clients made
+     */
+    public long getEdits() {
+        return this.edits;
+    }
+
+    /**
+     * @return edits made and delivered to every site, per second of run
+     */
+    public double getEditsPerSecond() {
+        return this.edits / (this.elapsed / 1e9);
+    }
+
+    /**
+     * @return remote operations pushed into an engine, per second of run
+     */
+    public double getPushesPerSecond() {
+        return this.remotePushes / (this.elapsed / 1e9);
+    }
+
+    /**
+     * @return average number of transform steps per remote operation pushed
+     *         into an engine
+     */
+    public double getTransformStepsPerOp() {
+        return this.remotePushes == 0 ? 0 : this.transformSteps
+                / (double) this.remotePushes;
+    }
+
+    /**
+     * @return deepest nesting of transforms of any remote operation
+     */
+    public int getMaxTransformDepth() {
+        return this.maxTransformDepth;
+    }
+
+    /**
+     * @return largest number of operations the server's history held
+     */
+    public int getPeakServerHistory() {
+        return this.peakServerHistory;
+    }
+
+    /**
+     * @return largest number of operations any client's history held
+     */
+    public int getPeakClientHistory() {
+        return this.peakClientHistory;
+    }
+
+    /**
+     * @return number of operations the server's history holds now
+     */
+    public int getServerHistory() {
+        return this.server.engine.getBufferSize();
+    }
+
+    /**
+     * Summary of the session, printed by main.
+     */
+    @Override
+    public String toString() {
+        return String.format("sites=%d edits=%d ticks=%d converged=%b%n"
+                + "edits/s=%.0f pushes/s=%.0f steps/op=%.2f max depth=%d%n"
+                + "peak history: server=%d client=%d, server now=%d",
+                this.siteCount, this.edits, this.tick, this.isConverged(),
+                this.getEditsPerSecond(), this.getPushesPerSecond(),
+                this.getTransformStepsPerOp(), this.maxTransformDepth,
+                this.peakServerHistory, this.peakClientHistory,
+                this.getServerHistory());
+    }
+
+    /**
+     * Runs a session and prints its summary. Exits with status 1 if the
+     * copies of the document did not converge.
+     *
+     * @param args
+     *            [sites] [edits] [latency] [seed]
+     * @throws OperationEngineException
+     */
+    public static void main(String[] args) throws OperationEngineException {
+        int sites = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long edits = args.length > 1 ? Long.parseLong(args[1]) : 20000;
+        int latency = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 6005;
+
+        ConvergenceSimulator sim = new ConvergenceSimulator(sites, seed);
+        sim.setLatency(latency);
+        sim.run(edits);
+        System.out.println(sim);
+        if (!sim.isConverged()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package document;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This will test the ConvergenceSimulator, and through it that the
+ * OperationEngine converges with many sites.
+ *
+ * Testing strategy: run seeded sessions with a few sites and low latency, with
+ * more sites and high latency (more concurrent operations), with mostly
+ * deletes, and with acknowledgements after every operation so the server
+ * collects garbage as early as it can. Every copy of the document must be the
+ * same at the end. Last, check that the same seed gives the same session.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class ConvergenceSimulatorTest {
+
+    /**
+     * Few sites, little concurrency.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ConvergenceSimulatorTest1() throws OperationEngineException {
+        for (long seed = 1; seed <= 5; seed++) {
+            ConvergenceSimulator sim = new ConvergenceSimulator(3, seed);
+            sim.setLatency(2);
+            sim.run(300);
+            assertTrue("seed " + seed, sim.isConverged());
+            assertEquals(sim.getEdits(), 300);
+        }
+    }
+
+    /**
+     * More sites and more latency, so most operations are concurrent with
+     * several others.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ConvergenceSimulatorTest2() throws OperationEngineException {
+        for (long seed = 1; seed <= 3; seed++) {
+            ConvergenceSimulator sim = new ConvergenceSimulator(6, seed);
+            sim.setLatency(8);
+            sim.run(400);
+            assertTrue("seed " + seed, sim.isConverged());
+            assertTrue(sim.getMaxTransformDepth() > 1);
+        }
+    }
+
+    /**
+     * Mostly deletes, so concurrent deletes overlap and inserts split them.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ConvergenceSimulatorTest3() throws OperationEngineException {
+        ConvergenceSimulator sim = new ConvergenceSimulator(4, 6005);
+        sim.setLatency(6);
+        sim.setEditRate(0.5);
+        sim.setDeleteRate(0.6);
+        sim.run(500);
+        assertTrue(sim.isConverged());
+    }
+
+    /**
+     * Acknowledging after every operation: the server must not throw away
+     * anything it still needs. With no acknowledgements it keeps everything.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ConvergenceSimulatorTest4() throws OperationEngineException {
+        ConvergenceSimulator sim = new ConvergenceSimulator(4, 42);
+        sim.setLatency(5);
+        sim.setAckInterval(1);
+        sim.run(500);
+        assertTrue(sim.isConverged());
+        assertTrue(sim.getServerHistory() < 500);
+
+        ConvergenceSimulator none = new ConvergenceSimulator(4, 42);
+        none.setLatency(5);
+        none.setAckInterval(0);
+        none.run(500);
+        assertTrue(none.isConverged());
+        assertEquals(none.getServerHistory(), 500);
+    }
+
+    /**
+     * The same seed should give the same session.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ConvergenceSimulatorTest5() throws OperationEngineException {
+        ConvergenceSimulator a = new ConvergenceSimulator(3, 7);
+        ConvergenceSimulator b = new ConvergenceSimulator(3, 7);
+        a.run(200);
+        b.run(200);
+        assertEquals(a.getText(0), b.getText(0));
+        assertEquals(a.getText(2), b.getText(2));
+        assertEquals(a.getTransformStepsPerOp(), b.getTransformStepsPerOp(),
+                0);
+    }
+}
@@ -1,16 +1,28 @@
 package document;
 
+import java.util.Arrays;
 import java.util.Map;
 
 
 /**
  * This DeleteOperation is the implementaiton of the abstract class Operation.
- * 
+ *
  * This will reperent a delete operation at a certain place, as stated by the mapping
  * of string to object.
- * 
+ *
+ * A delete only carries the range it removes, as a position and a length. The
+ * value is not needed: it used to be a string of filler characters as long
+ * as the deletion, which meant a large selection cost its full size on the
+ * wire and in every history buffer. A delete made from a value (like the
+ * property map constructor) takes its length from the value.
+ *
+ * A concurrent insert in the middle of the range splits it in two, since the
+ * inserted text must survive. So in general a delete removes a list of
+ * disjoint ranges, see getRanges. In the usual case of a single range, only
+ * position and length are used.
+ *
  * Thread safety argument:  This operation is only accessed and created by one thread.  Also, this does not
- * create any new threads.  Therefore, this datatype should be thread safe for our purposes.  
+ * create any new threads.  Therefore, this datatype should be thread safe for our purposes.
  * @author Hanwen Xu
  *
  */
@@ -21,24 +33,179 @@ public class DeleteOperation extends Operation {
      */
     private static final long serialVersionUID = 3085129896663389738L;
 
+    /**
+     * Total number of characters deleted
+     */
+    private int length;
+
+    /**
+     * null if the delete is the single range [position, position + length).
+     * Otherwise the ranges, as (start, length) pairs in increasing order,
+     * disjoint and not touching each other. position is the start of the first
+     * one and length is the sum of their lengths. Never modified once set, so
+     * copies can share it.
+     */
+    private int[] ranges = null;
+
     /**
      * This is the constructor for our DeleteOperation subclass. We
      * are inheriting a bunch of functions from the abstract class,
-     * but we are only changing the transform operations.  
+     * but we are only changing the transform operations.
      * @param args
+     *            see Operation. May also contain a length key, otherwise the
+     *            length of the value is used.
      * @throws OperationEngineException
      */
     public DeleteOperation(Map<String, Object> args) throws OperationEngineException {
         super(args);
-        this.type = "delete";
+        this.type = OpType.DELETE;
+        if (args != null && args.containsKey("length")) {
+            this.length = ((Integer) args.get("length")).intValue();
+        } else if (this.value != null) {
+            this.length = this.value.length();
+        }
     }
-    
-    
+
     /**
-     * Transforms this delete to include the effect of an delete. Basically,
-     * we will check the position of the other operation.  If the position
-     * is such that it will change the position of our operation, we have
-     * to modify our operation's position. Only takes into account one operation.
+     * Constructor used by Operation.create, which documents the parameters.
+     * The length is the length of the value.
+     */
+    DeleteOperation(int siteId, int seqId, ClientState clientState, String key,
+            String value, int position, long order, boolean local) {
+        super(siteId, seqId, clientState, key, value, position, order, local);
+        this.type = OpType.DELETE;
+        if (value != null) {
+            this.length = value.length();
+        }
+    }
+
+    /**
+     * Constructor used by Operation.createDelete, which documents the
+     * parameters.
+     */
+    DeleteOperation(int siteId, int seqId, ClientState clientState, String key,
+            int position, int length, long order, boolean local) {
+        super(siteId, seqId, clientState, key, null, position, order, local);
+        this.type = OpType.DELETE;
+        this.length = length;
+    }
+
+    /**
+     * Makes a mutable copy of this delete, including its ranges.
+     *
+     * @throws OperationEngineException
+     * @return DeleteOperation
+     */
+    @Override
+    public Operation copy() throws OperationEngineException {
+        DeleteOperation op = (DeleteOperation) super.copy();
+        op.length = this.length;
+        op.ranges = this.ranges;
+        return op;
+    }
+
+    /**
+     * @return total number of characters deleted
+     */
+    @Override
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Gets the ranges this delete removes, as (start, length) pairs in
+     * increasing order of start. Every start is a position in the document
+     * before this delete, so when applying it, remove the ranges from the last
+     * one to the first one.
+     *
+     * @return new array of 2 * (number of ranges) integers
+     */
+    public int[] getRanges() {
+        if (this.ranges == null) {
+            int[] single = { this.position, this.length };
+            return single;
+        }
+        return this.ranges.clone();
+    }
+
+    /**
+     * Sets the ranges from a list of (start, length) pairs in increasing
+     * order, disjoint and not touching, with no empty range.
+     *
+     * @param pairs
+     *            array holding the pairs, not referenced afterwards
+     * @param count
+     *            number of integers used in pairs, requires count >= 2
+     */
+    private void setRanges(int[] pairs, int count) {
+        this.position = pairs[0];
+        int total = 0;
+        for (int i = 1; i < count; i += 2) {
+            total += pairs[i];
+        }
+        // the value no longer says what is deleted
+        if (total != this.length || count > 2) {
+            this.value = null;
+        }
+        this.length = total;
+        if (count == 2) {
+            this.ranges = null;
+        } else {
+            this.ranges = Arrays.copyOf(pairs, count);
+        }
+    }
+
+    /**
+     * Maps a position in the document before this delete to the document
+     * after it. A position inside a deleted range goes to where the range
+     * was.
+     *
+     * @param x
+     *            position before this delete
+     * @return position after this delete
+     */
+    int map(int x) {
+        if (this.ranges == null) {
+            if (x <= this.position) {
+                return x;
+            }
+            return x - Math.min(x - this.position, this.length);
+        }
+        int removed = 0;
+        for (int i = 0; i < this.ranges.length; i += 2) {
+            int start = this.ranges[i];
+            if (x <= start) {
+                break;
+            }
+            removed += Math.min(x - start, this.ranges[i + 1]);
+        }
+        return x - removed;
+    }
+
+    /**
+     * Checks if the character at a position is removed by this delete.
+     *
+     * @param x
+     *            position before this delete
+     * @return true if x is in one of the deleted ranges
+     */
+    boolean covers(int x) {
+        if (this.ranges == null) {
+            return x >= this.position && x < this.position + this.length;
+        }
+        for (int i = 0; i < this.ranges.length; i += 2) {
+            if (x >= this.ranges[i] && x < this.ranges[i] + this.ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Transforms this delete to include the effect of an delete. Each of our
+     * ranges is mapped through the other delete, which trims off the part the
+     * other delete already removed. If nothing is left, this delete has no
+     * effect any more. Only takes into account one operation.
      *
      * @param op Delete to include in this op
      * @return This instance or null if this op has no
@@ -48,14 +215,31 @@ public class DeleteOperation extends Operation {
         if(!this.key.equals(op.key)) {
             return this;
         }
-        if(this.position > op.position) {
-            this.position-=op.value.length();
-        } else if(this.position == op.position) {
+        DeleteOperation other = (DeleteOperation) op;
+        int[] mine = this.getRanges();
+        int[] out = new int[mine.length];
+        int n = 0;
+        for (int i = 0; i < mine.length; i += 2) {
+            int start = other.map(mine[i]);
+            int end = other.map(mine[i] + mine[i + 1]);
+            if (end == start) {
+                continue;
+            }
+            if (n > 0 && out[n - 2] + out[n - 1] == start) {
+                // the other delete removed what was between two of our ranges
+                out[n - 1] += end - start;
+            } else {
+                out[n++] = start;
+                out[n++] = end - start;
+            }
+        }
+        if (n == 0) {
             return null;
         }
+        this.setRanges(out, n);
         return this;
     }
-    
+
     /**
      * Transforms this delete to include the effect of an update. Basically,
      * we will check the position of the other operation.  If the position
@@ -68,12 +252,13 @@ public class DeleteOperation extends Operation {
     public Operation transformWithUpdate(Operation op) {
         return this;
     }
-    
+
     /**
-     * Transforms this delete to include the effect of an insert. Basically,
-     * we will check the position of the other operation.  If the position
-     * is such that it will change the position of our operation, we have
-     * to modify our operation's position. Only takes into account one operation.
+     * Transforms this delete to include the effect of an insert. Ranges after
+     * the insert are shifted by its length, an insert at the start of a range
+     * counts as before it. An insert strictly inside a range splits the range
+     * in two around the inserted text, which must not be deleted. Only takes
+     * into account one operation.
      *
      * @param op Insert to include in this op
      * @return This instance
@@ -82,10 +267,36 @@ public class DeleteOperation extends Operation {
         if(!this.key.equals(op.key)) {
             return this;
         }
-        if(this.position >= op.position) {
-            this.position += op.value.length();
+        int at = op.position;
+        int shift = op.value.length();
+        if (this.ranges == null && at <= this.position) {
+            this.position += shift;
+            return this;
+        }
+        if (this.ranges == null && at >= this.position + this.length) {
+            return this;
+        }
+
+        int[] mine = this.getRanges();
+        int[] out = new int[mine.length + 2];
+        int n = 0;
+        for (int i = 0; i < mine.length; i += 2) {
+            int start = mine[i];
+            int len = mine[i + 1];
+            if (at <= start) {
+                out[n++] = start + shift;
+                out[n++] = len;
+            } else if (at < start + len) {
+                out[n++] = start;
+                out[n++] = at - start;
+                out[n++] = at + shift;
+                out[n++] = start + len - at;
+            } else {
+                out[n++] = start;
+                out[n++] = len;
+            }
         }
-        
+        this.setRanges(out, n);
         return this;
     }
 
@@ -1,11 +1,6 @@
 package document;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Vector;
-import java.util.Stack;
 import java.util.Arrays;
-import java.util.Comparator;
 
 /**
  * This history buffer keeps track of what operations have been performed. This
@@ -17,6 +12,17 @@ import java.util.Comparator;
  * We shall also make sure all of the operations in the history are immutable,
  * since they are only to be used as a record.
  * 
+ * Besides the table keyed by (siteId, seqId), the operations are indexed two
+ * more ways, so that no query has to sort:
+ * 
+ * - per site, in an array by sequence number. A site's operations are ordered
+ * by the server in the order the site made them, so each site's array is
+ * already in total order, and the operations of a ClientState difference are
+ * one slice per site. getOpsForDifference merges those slices.
+ * 
+ * - all of them in one array sorted by context, kept sorted as operations are
+ * added and removed, for getContextSortedOperations.
+ * 
  * Thread safety argument: Since this code is only accessed by one process, and
  * there is no shared memory, this code should be thread safe.
  * 
@@ -26,21 +32,40 @@ import java.util.Comparator;
 public class HistoryBuffer {
 
     /**
-     * This will store all of the processed operations in the client
+     * This will store all of the processed operations in the client, keyed
+     * by Operation.createPackedHistoryKey
+     */
+    private OperationTable ops = null;
+
+    /**
+     * Operations of each site by sequence number, indexed by siteId. null for
+     * a site without operations in the history.
      */
-    private HashMap<String, Operation> ops = null;
+    private SiteLog[] sites = new SiteLog[0];
+
+    /**
+     * Every operation, sorted by Operation.compareByState. Only the first
+     * size entries are used.
+     */
+    private Operation[] byContext = new Operation[16];
 
     /**
      * Number of operations stored
      */
     private int size = 0;
 
+    /**
+     * Estimated bytes of all the operations discarded by removeDominated so
+     * far
+     */
+    private long reclaimedBytes = 0;
+
     /**
      * This is the constructor for the HistoryBuffer. It will create a new
-     * hashmap, and instatiate the size counter.
+     * table, and instatiate the size counter.
      */
     public HistoryBuffer() {
-        this.ops = new HashMap<String, Operation>();
+        this.ops = new OperationTable();
         this.size = 0;
     }
 
@@ -60,8 +85,13 @@ public class HistoryBuffer {
      *            Local operation
      */
     public void addLocalOperation(Operation op) {
-        String key = Operation.createHistoryKey(op.siteId, op.seqId);
-        this.ops.put(key, op);
+        long key = Operation.createPackedHistoryKey(op.siteId, op.seqId);
+        Operation old = this.ops.put(key, op);
+        if (old != null) {
+            this.unindex(old);
+            --this.size;
+        }
+        this.index(op);
         op.immutable = true;
         ++this.size;
     }
@@ -81,7 +111,7 @@ public class HistoryBuffer {
      */
     public void addRemoteOperation(Operation op)
             throws OperationEngineException {
-        String key = Operation.createHistoryKey(op.siteId, op.seqId);
+        long key = Operation.createPackedHistoryKey(op.siteId, op.seqId);
         Operation eop = this.ops.get(key);
 
         if (op.getOrder() == Operation.infinity) {
@@ -95,6 +125,7 @@ public class HistoryBuffer {
             eop.setOrder(op.getOrder());
         } else {
             this.ops.put(key, op);
+            this.index(op);
             op.immutable = true;
             ++this.size;
         }
@@ -109,9 +140,10 @@ public class HistoryBuffer {
      * @return Removed operation
      */
     public Operation removeOperation(Operation op) {
-        String key = Operation.createHistoryKey(op.siteId, op.seqId);
+        long key = Operation.createPackedHistoryKey(op.siteId, op.seqId);
 
         op = this.ops.remove(key);
+        this.unindex(op);
 
         op.immutable = false;
 
@@ -120,26 +152,86 @@ public class HistoryBuffer {
     }
 
     /**
-     * Gets all operations in the history buffer sorted by context.
+     * Discards every operation that no future transform can need, given that
+     * every site has processed at least the operations in floor.
      * 
-     * @return Sorted operations
+     * An operation that every site has processed will never be part of the
+     * context difference of an incoming operation again. But it can still be
+     * needed to transform another operation that we keep, if that
+     * operation's context does not include it. So we lower the floor to the
+     * contexts of the operations that stay, and repeat until nothing changes.
+     * 
+     * @param floor
+     *            ClientState every site is known to have reached, not modified
+     * @return Number of operations removed
+     * @throws OperationEngineException
      */
-    public Stack<Operation> getContextSortedOperations() {
+    public int removeDominated(ClientState floor)
+            throws OperationEngineException {
+        Operation[] arr = this.ops.values();
+        ClientState limit = floor.copy();
+        boolean changed = true;
 
-        Collection<Operation> collection = this.ops.values();
-        Operation[] arr = new Operation[collection.size()];
-        arr = collection.toArray(arr);
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < arr.length; i++) {
+                Operation op = arr[i];
+                if (op.seqId > limit.seqAt(op.siteId)) {
+                    // this op stays, so everything it was transformed
+                    // against has to stay too
+                    int[] context = op.clientState.getState();
+                    for (int client = 0; client < limit.getSize(); client++) {
+                        int seq = client < context.length ? context[client] : 0;
+                        if (seq < limit.seqAt(client)) {
+                            limit.setSeqForClient(client, seq);
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
 
-        Arrays.sort(arr, new Comparator<Operation>() {
-            public int compare(Operation a, Operation b) {
-                return a.compareByState(b);
+        int removed = 0;
+        for (int i = 0; i < arr.length; i++) {
+            Operation op = arr[i];
+            if (op.seqId <= limit.seqAt(op.siteId)) {
+                this.ops.remove(Operation.createPackedHistoryKey(op.siteId,
+                        op.seqId));
+                this.sites[op.siteId].remove(op.seqId);
+                --this.size;
+                ++removed;
+                this.reclaimedBytes += op.estimateSize();
             }
-        });
+        }
 
-        Stack<Operation> stack = new Stack<Operation>();
-        stack.addAll(Arrays.asList(arr));
+        // drop them from the context index in one pass, keeping the order
+        int kept = 0;
+        for (int i = 0; i < this.size + removed; i++) {
+            Operation op = this.byContext[i];
+            if (op.seqId > limit.seqAt(op.siteId)) {
+                this.byContext[kept++] = op;
+            }
+        }
+        Arrays.fill(this.byContext, kept, this.size + removed, null);
+        return removed;
+    }
 
-        return stack;
+    /**
+     * @return Estimated bytes of all the operations discarded by
+     *         removeDominated so far
+     */
+    public long getReclaimedBytes() {
+        return this.reclaimedBytes;
+    }
+
+    /**
+     * Gets all operations in the history buffer sorted by context. They are
+     * kept in that order, so this only copies them.
+     * 
+     * @return Sorted operations, in a new array
+     */
+    public Operation[] getContextSortedOperations() {
+        return Arrays.copyOf(this.byContext, this.size);
     }
 
     /**
@@ -163,15 +255,14 @@ public class HistoryBuffer {
      * @return {Object[]} copy of internal data.
      */
     public Object[] getState() {
-        Vector<Object[]> v = new Vector<Object[]>();
-        Operation op = null;
+        Operation[] arr = this.ops.values();
+        Object[] states = new Object[arr.length];
 
-        for (String key : this.ops.keySet()) {
-            op = this.ops.get(key);
-            v.addElement(op.getState());
+        for (int i = 0; i < arr.length; i++) {
+            states[i] = arr[i].getState();
         }
 
-        return v.toArray();
+        return states;
     }
 
     /**
@@ -185,6 +276,8 @@ public class HistoryBuffer {
     public void setState(Object[] opStates) {
         this.size = 0;
         this.ops.clear();
+        this.sites = new SiteLog[0];
+        Arrays.fill(this.byContext, null);
         for (int i = 0; i < opStates.length; i++) {
             Operation op = null;
             try {
@@ -203,44 +296,268 @@ public class HistoryBuffer {
      * sorted by their sequence IDs. Throws an exception when a requested
      * operation is missing from the history.
      * 
+     * Consecutive sequence numbers of the same site in the difference are
+     * looked up as one slice of that site's log, and the slices are merged,
+     * see merge.
+     * 
      * @param cd
      *            Context difference object
      * @throws OperationEngineException
+     * @return Sorted operations, in a new array
+     */
+    public Operation[] getOpsForDifference(StateDifference cd)
+            throws OperationEngineException {
+        int l = cd.clients.size();
+        // (site, first seq, last seq) of each run
+        int[] runs = new int[3 * l];
+        int n = 0;
+        for (int i = 0; i < l; i++) {
+            int client = cd.clients.elementAt(i);
+            int seq = cd.sequenceID.elementAt(i);
+            if (n > 0 && runs[n - 3] == client && runs[n - 1] + 1 == seq) {
+                runs[n - 1] = seq;
+            } else {
+                runs[n++] = client;
+                runs[n++] = seq;
+                runs[n++] = seq;
+            }
+        }
+        return this.merge(runs, n, l);
+    }
+
+    /**
+     * Same as getOpsForDifference(state.subtract(context)), without building
+     * the StateDifference: retrieves the operations that state includes but
+     * context does not, sorted by total order. Each site with a difference is
+     * one slice of its log, so finding the slices takes time in the number of
+     * sites, and ordering them takes no sort.
+     * 
+     * @param state
+     *            ClientState of the operations the history has processed
+     * @param context
+     *            ClientState of the operation being transformed
+     * @throws OperationEngineException
+     *             if an operation is missing from the history
+     * @return Sorted operations, in a new array, empty if context includes
+     *         everything in state
+     */
+    public Operation[] getOpsForDifference(ClientState state,
+            ClientState context) throws OperationEngineException {
+        int l = state.getSize();
+        int[] runs = null;
+        int n = 0;
+        int total = 0;
+        for (int i = 0; i < l; i++) {
+            int a = state.seqAt(i);
+            int b = context.seqAt(i);
+            if (a > b) {
+                if (runs == null) {
+                    runs = new int[3 * (l - i)];
+                }
+                runs[n++] = i;
+                runs[n++] = b + 1;
+                runs[n++] = a;
+                total += a - b;
+            }
+        }
+        if (runs == null) {
+            return new Operation[0];
+        }
+        return this.merge(runs, n, total);
+    }
+
+    /**
+     * Looks up runs of consecutive operations of a site and merges them into
+     * total order. Each run is a slice of a site log, which is already in
+     * total order, so merging them is enough: every step takes the first
+     * remaining operation of the run that comes first. That is linear in the
+     * number of operations times the number of runs, which is the number of
+     * sites with a difference, usually one or two.
+     * 
+     * @param runs
+     *            (site, first seq, last seq) of each run, inclusive
+     * @param n
+     *            number of integers used in runs
+     * @param total
+     *            number of operations in all runs
+     * @throws OperationEngineException
+     *             if an operation is missing from the history
      * @return Sorted operations
      */
-    public Stack<Operation> getOpsForDifference(StateDifference cd)
+    private Operation[] merge(int[] runs, int n, int total)
             throws OperationEngineException {
-        String[] keys = cd.getHistoryBufferKeys();
+        Operation[] arr = new Operation[total];
+        for (int r = 0; r < n; r += 3) {
+            int site = runs[r];
+            SiteLog log = site < this.sites.length ? this.sites[site] : null;
+            for (int seq = runs[r + 1]; seq <= runs[r + 2]; seq++) {
+                if (log == null || log.get(seq) == null) {
+                    throw new OperationEngineException(
+                            "HistoryBuffer error-- We are missing ops for context: key="
+                                    + Operation.createHistoryKey(site, seq));
+                }
+            }
+        }
+
+        if (n == 3) {
+            this.sites[runs[0]].copy(runs[1], runs[2], arr, 0);
+            return arr;
+        }
+        for (int i = 0; i < total; i++) {
+            int best = -1;
+            Operation first = null;
+            for (int r = 0; r < n; r += 3) {
+                if (runs[r + 1] > runs[r + 2]) {
+                    continue;
+                }
+                Operation head = this.sites[runs[r]].get(runs[r + 1]);
+                if (first == null || head.compareByOrder(first) < 0) {
+                    first = head;
+                    best = r;
+                }
+            }
+            arr[i] = first;
+            runs[best + 1]++;
+        }
+        return arr;
+    }
 
-        Vector<Operation> opsStack = new Vector<Operation>();
-        int l = keys.length;
-        String key;
-        Operation op;
+    /**
+     * Adds an operation to the site logs and the context index.
+     * 
+     * @param op
+     *            Operation just put in the table
+     */
+    private void index(Operation op) {
+        if (op.siteId >= this.sites.length) {
+            this.sites = Arrays.copyOf(this.sites, op.siteId + 1);
+        }
+        if (this.sites[op.siteId] == null) {
+            this.sites[op.siteId] = new SiteLog();
+        }
+        this.sites[op.siteId].put(op.seqId, op);
 
-        for (int i = 0; i < l; i++) {
-            key = keys[i];
-            op = this.ops.get(key);
-            if (op == null) {
-                throw new OperationEngineException(
-                        "HistoryBuffer error-- We are missing ops for context: i="
-                                + i + " key=" + key + " keys="
-                                + keys.toString());
+        // the index has this.size entries, op is not counted yet
+        int used = this.size;
+        if (used == this.byContext.length) {
+            this.byContext = Arrays.copyOf(this.byContext, used * 2);
+        }
+        // after every operation that doesn't come after op. New ops usually
+        // have the latest context, so this rarely moves much.
+        int lo = 0;
+        int hi = used;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.byContext[mid].compareByState(op) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
-            opsStack.addElement(op);
         }
+        System.arraycopy(this.byContext, lo, this.byContext, lo + 1, used - lo);
+        this.byContext[lo] = op;
+    }
+
+    /**
+     * Removes an operation from the site logs and the context index.
+     * 
+     * @param op
+     *            Operation just removed from the table, still counted in size
+     */
+    private void unindex(Operation op) {
+        this.sites[op.siteId].remove(op.seqId);
+        int used = this.size;
+        for (int i = 0; i < used; i++) {
+            if (this.byContext[i] == op) {
+                System.arraycopy(this.byContext, i + 1, this.byContext, i,
+                        used - i - 1);
+                this.byContext[used - 1] = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * The operations of one site by sequence number. Sequence numbers of a
+     * site are consecutive, so this is an array window starting at the oldest
+     * one still in the history. Removing the oldest ones, which is what
+     * garbage collection does, moves the start of the window forward.
+     */
+    private static final class SiteLog {
+        /** operations, the one with sequence number base at index head */
+        private Operation[] ops = new Operation[8];
+        /** index in ops of the first slot */
+        private int head = 0;
+        /** sequence number of the first slot */
+        private int base = 0;
+        /** number of slots in use, from head */
+        private int count = 0;
 
-        Operation[] arr = new Operation[opsStack.size()];
-        arr = opsStack.toArray(arr);
-        Arrays.sort(arr, new Comparator<Operation>() {
-            public int compare(Operation a, Operation b) {
-                return a.compareByOrder(b);
+        /**
+         * @return operation with the given sequence number, or null
+         */
+        private Operation get(int seq) {
+            int i = seq - this.base;
+            if (i < 0 || i >= this.count) {
+                return null;
             }
-        });
+            return this.ops[this.head + i];
+        }
 
-        Stack<Operation> stack = new Stack<Operation>();
-        stack.addAll(Arrays.asList(arr));
+        /**
+         * Copies the operations with sequence numbers first to last,
+         * inclusive, which are all there.
+         */
+        private void copy(int first, int last, Operation[] dest, int at) {
+            System.arraycopy(this.ops, this.head + first - this.base, dest,
+                    at, last - first + 1);
+        }
 
-        return stack;
+        /**
+         * Stores an operation under a sequence number, replacing the one that
+         * was there.
+         */
+        private void put(int seq, Operation op) {
+            if (this.count == 0) {
+                this.head = 0;
+                this.base = seq;
+            }
+            int first = Math.min(seq, this.base);
+            int last = Math.max(seq, this.base + this.count - 1);
+            int need = last - first + 1;
+            if (seq < this.base || this.head + need > this.ops.length) {
+                // move the window to the start of a new array
+                Operation[] arr = new Operation[Math.max(2 * need, 8)];
+                System.arraycopy(this.ops, this.head, arr, this.base - first,
+                        this.count);
+                this.ops = arr;
+                this.head = 0;
+                this.base = first;
+            }
+            this.count = need;
+            this.ops[this.head + seq - this.base] = op;
+        }
+
+        /**
+         * Removes the operation with a sequence number, if any.
+         */
+        private void remove(int seq) {
+            int i = seq - this.base;
+            if (i < 0 || i >= this.count) {
+                return;
+            }
+            this.ops[this.head + i] = null;
+            // move the start past removed operations
+            while (this.count > 0 && this.ops[this.head] == null) {
+                ++this.head;
+                ++this.base;
+                --this.count;
+            }
+            while (this.count > 0
+                    && this.ops[this.head + this.count - 1] == null) {
+                --this.count;
+            }
+        }
     }
 
 }
@@ -1,10 +1,13 @@
 package document;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -388,4 +391,109 @@ public class HistoryBufferTest {
         assertEquals(hb1.getState().length, hb2.getState().length);
     }
 
+    /**
+     * Makes an insert in the given context, with a place in the total order.
+     */
+    private static Operation op(int site, int seq, int[] cv, long order,
+            boolean local) {
+        return Operation.create(OpType.INSERT, "document", "a", 0, site, seq,
+                ClientState.fromArray(cv), order, local);
+    }
+
+    /**
+     * This will test the getOpsForDifference() function. The ops of two
+     * sites should come back interleaved in total order, with local ops that
+     * have no order yet at the end, whether the difference is given as a
+     * StateDifference or as two ClientStates.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void getOpsForDifferenceTest1() throws OperationEngineException {
+        HistoryBuffer hb1 = new HistoryBuffer();
+        Operation a1 = op(1, 1, new int[0], 0, true);
+        Operation b1 = op(2, 1, new int[0], 1, false);
+        Operation a2 = op(1, 2, new int[] { 0, 1 }, 2, true);
+        Operation b2 = op(2, 2, new int[] { 0, 1, 1 }, 3, false);
+        Operation a3 = op(1, 3, new int[] { 0, 2, 1 }, Operation.infinity,
+                true);
+        hb1.addLocalOperation(a1);
+        hb1.addRemoteOperation(b1);
+        hb1.addLocalOperation(a2);
+        hb1.addRemoteOperation(b2);
+        hb1.addLocalOperation(a3);
+
+        ClientState all = ClientState.fromArray(new int[] { 0, 3, 2 });
+        Operation[] ops = hb1.getOpsForDifference(all,
+                ClientState.fromArray(new int[0]));
+        assertEquals(Arrays.asList(ops), Arrays.asList(a1, b1, a2, b2, a3));
+
+        ops = hb1.getOpsForDifference(all.subtract(ClientState
+                .fromArray(new int[] { 0, 1 })));
+        assertEquals(Arrays.asList(ops), Arrays.asList(b1, a2, b2, a3));
+
+        ops = hb1.getOpsForDifference(all, ClientState.fromArray(new int[] {
+                0, 2, 1 }));
+        assertEquals(Arrays.asList(ops), Arrays.asList(b2, a3));
+        assertEquals(hb1.getOpsForDifference(all, all).length, 0);
+    }
+
+    /**
+     * This will test the getOpsForDifference() function after ops were
+     * removed. A missing op is an error, and garbage collection should leave
+     * the rest where they were.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void getOpsForDifferenceTest2() throws OperationEngineException {
+        HistoryBuffer hb1 = new HistoryBuffer();
+        int[] cv = new int[0];
+        for (int seq = 1; seq <= 40; seq++) {
+            hb1.addRemoteOperation(op(1, seq, cv, seq, false));
+            cv = new int[] { 0, seq };
+        }
+        assertEquals(hb1.removeDominated(ClientState.fromArray(new int[] { 0,
+                30 })), 30);
+        Operation[] ops = hb1.getOpsForDifference(
+                ClientState.fromArray(new int[] { 0, 40 }),
+                ClientState.fromArray(new int[] { 0, 30 }));
+        assertEquals(ops.length, 10);
+        assertEquals(ops[0].getSeqId(), 31);
+        assertEquals(ops[9].getSeqId(), 40);
+        assertEquals(hb1.getContextSortedOperations().length, 10);
+
+        try {
+            hb1.getOpsForDifference(ClientState.fromArray(new int[] { 0, 40 }),
+                    ClientState.fromArray(new int[] { 0, 29 }));
+            fail("op 1,30 was removed");
+        } catch (OperationEngineException e) {
+            ;
+        }
+    }
+
+    /**
+     * This will test the getContextSortedOperations() function, against
+     * sorting by compareByState, with ops added in random order.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void getContextSortedOperationsTest1()
+            throws OperationEngineException {
+        Random random = new Random(6005);
+        HistoryBuffer hb1 = new HistoryBuffer();
+        for (int i = 0; i < 200; i++) {
+            int[] cv = { 0, random.nextInt(5), random.nextInt(5) };
+            hb1.addRemoteOperation(op(1 + random.nextInt(3), i, cv, i, false));
+        }
+        Operation[] ops = hb1.getContextSortedOperations();
+        assertEquals(ops.length, 200);
+        for (int i = 1; i < ops.length; i++) {
+            assertTrue(ops[i - 1].compareByState(ops[i]) <= 0);
+        }
+        hb1.removeOperation(ops[7]);
+        assertEquals(hb1.getContextSortedOperations().length, 199);
+    }
+
 }
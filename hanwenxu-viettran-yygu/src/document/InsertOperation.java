@@ -30,7 +30,16 @@ public class InsertOperation extends Operation {
      */
     public InsertOperation(Map<String, Object> args) throws OperationEngineException {
         super(args);
-        this.type = "insert";
+        this.type = OpType.INSERT;
+    }
+
+    /**
+     * Constructor used by Operation.create, which documents the parameters.
+     */
+    InsertOperation(int siteId, int seqId, ClientState clientState, String key,
+            String value, int position, long order, boolean local) {
+        super(siteId, seqId, clientState, key, value, position, order, local);
+        this.type = OpType.INSERT;
     }
     
     /**
@@ -58,7 +67,8 @@ public class InsertOperation extends Operation {
      * Transforms this insert to include the effect of an delete. Basically,
      * we will check the position of the other operation.  If the position
      * is such that it will change the position of our operation, we have
-     * to modify our operation's position. Only takes into account one operation.
+     * to modify our operation's position. An insert inside a deleted range
+     * moves to where the range was. Only takes into account one operation.
      *
      * @param op Delete to include in this op
      * @return {InsertOperation} This instance
@@ -67,9 +77,7 @@ public class InsertOperation extends Operation {
         if (!this.key.equals(op.key)) {
             return this;
         }
-        if (this.position > op.position) {
-            this.position-=op.value.length();
-        }
+        this.position = ((DeleteOperation) op).map(this.position);
         return this;
     }
     
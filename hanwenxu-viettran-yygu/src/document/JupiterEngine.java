@@ -0,0 +1,250 @@
+package document;
+
+import java.util.ArrayList;
+
+/**
+ * This is the alternative, server-centric way of running the operational
+ * transform, based on the Jupiter collaboration system. Instead of every site
+ * keeping a ClientState with an entry for every other site, a client only ever
+ * synchronizes with the server, and the server keeps one of these engines for
+ * each client (see JupiterServer). Each engine is one end of a two-party
+ * connection, so its state is just two counters: how many operations it has
+ * sent to the other end, and how many it has received from it.
+ *
+ * Operations sent by this engine carry those two counters as a ClientState of
+ * size 2, [sent, received], no matter how many sites there are, and a transform
+ * only has to look at the operations this end sent that the other end had not
+ * seen yet. So neither the size of a keystroke nor the cost of transforming it
+ * depends on the number of connected users.
+ *
+ * The siteId of an operation is always the site that originally created it,
+ * even after the server forwards it to other clients, so that ties between
+ * concurrent inserts are broken the same way on both ends.
+ *
+ * Thread safety argument: just like the OperationEngine, one of these is only
+ * ever used by the one thread handling its connection, so no locks are needed.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class JupiterEngine {
+
+    /**
+     * An operation this end has sent, but the other end had not yet processed
+     * when it sent its latest operation. Kept transformed up to the current
+     * state, so incoming operations can be transformed against it.
+     */
+    private static class Pending {
+        /** the value of sent when this operation was sent */
+        private final int sent;
+        /** transformed operation, or null if its effect was cancelled */
+        private Operation op;
+
+        private Pending(int sent, Operation op) {
+            this.sent = sent;
+            this.op = op;
+        }
+    }
+
+    /**
+     * Site ID of this end. Used as the siteId of operations created locally.
+     */
+    private final int siteId;
+
+    /**
+     * Number of operations this end has sent to the other end
+     */
+    private int sent = 0;
+
+    /**
+     * Number of operations this end has received from the other end
+     */
+    private int received = 0;
+
+    /**
+     * Number of operations created locally, used as their seqId
+     */
+    private int created = 0;
+
+    /**
+     * Operations sent but not yet acknowledged by the other end, oldest first
+     */
+    private final ArrayList<Pending> outgoing = new ArrayList<Pending>();
+
+    /**
+     * Creates one end of a two-party connection. Both ends have to start from
+     * the same document.
+     *
+     * @param siteId
+     *            Integer site ID of this end. For the server's engines, this
+     *            is the ID of the client at the other end.
+     */
+    public JupiterEngine(int siteId) {
+        this.siteId = siteId;
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer b = new StringBuffer();
+        b.append("{siteId : " + this.siteId);
+        b.append(",sent : " + this.sent);
+        b.append(",received : " + this.received);
+        b.append(",outgoing : " + this.outgoing.size());
+        b.append("}");
+
+        return b.toString();
+    }
+
+    /**
+     * Creates an operation made locally, at the current state of this end,
+     * and records it as sent. The returned operation is what should be
+     * transmitted to the other end.
+     *
+     * @param key
+     *            Operation key
+     * @param value
+     *            Operation value
+     * @param type
+     *            Type of operation: update, insert, delete
+     * @param position
+     *            Operation integer position
+     * @throws OperationEngineException
+     * @return Operation to transmit
+     */
+    public Operation createLocal(String key, String value, String type,
+            int position) throws OperationEngineException {
+        OpType t = OpType.fromName(type);
+        if (t == null) {
+            throw new OperationEngineException("unknown operation type "
+                    + type);
+        }
+        Operation op = Operation.create(t, key, value,
+                position, this.siteId, ++this.created, ClientState.withSize(2),
+                Operation.infinity, true);
+        return this.send(op);
+    }
+
+    /**
+     * Same as createLocal, for a delete of a range.
+     *
+     * @param key
+     *            Operation key
+     * @param position
+     *            Position of the first deleted character
+     * @param length
+     *            Number of characters deleted
+     * @throws OperationEngineException
+     * @return Operation to transmit
+     */
+    public Operation createLocalDelete(String key, int position, int length)
+            throws OperationEngineException {
+        Operation op = Operation.createDelete(key, position, length,
+                this.siteId, ++this.created, ClientState.withSize(2),
+                Operation.infinity, true);
+        return this.send(op);
+    }
+
+    /**
+     * Records an operation that has already been applied at this end as sent
+     * to the other end, and stamps a copy of it with this end's counters. The
+     * server uses this to forward an operation it received from one client to
+     * every other client.
+     *
+     * @param op
+     *            Operation in the current state of this end, not modified
+     * @throws OperationEngineException
+     * @return Copy of the operation to transmit to the other end
+     */
+    public Operation send(Operation op) throws OperationEngineException {
+        Operation msg = op.copy();
+        int[] counters = { this.sent, this.received };
+        msg.clientState = ClientState.fromArray(counters);
+        msg.immutable = true;
+
+        // the pending copy gets transformed, the message must not
+        Operation pending = op.copy();
+        pending.clientState = msg.clientState;
+        this.outgoing.add(new Pending(this.sent, pending));
+        this.sent++;
+
+        return msg;
+    }
+
+    /**
+     * Transforms an operation received from the other end so that it can be
+     * applied at this end, and updates this end's state.
+     *
+     * The operation was made after the other end had processed some of the
+     * operations we sent. The ones it had processed are dropped from
+     * outgoing. The remaining ones were concurrent with it. The incoming
+     * operation is transformed against each of them in order, and each of
+     * them against the incoming operation, so they stay ready for the next
+     * operation to arrive.
+     *
+     * @param msg
+     *            Operation received from the other end, not modified
+     * @throws OperationEngineException
+     *             if the operation acknowledges operations we never sent or
+     *             was received out of order
+     * @return Transformed operation, or null if it has no effect any more
+     */
+    public Operation receive(Operation msg) throws OperationEngineException {
+        int theirSent = msg.clientState.seqAt(0);
+        int theirReceived = msg.clientState.seqAt(1);
+        if (theirSent != this.received) {
+            throw new OperationEngineException("operation out of order: got "
+                    + theirSent + " expected " + this.received);
+        } else if (theirReceived > this.sent) {
+            throw new OperationEngineException(
+                    "operation acknowledges unsent operations: "
+                            + theirReceived + " > " + this.sent);
+        }
+
+        while (!this.outgoing.isEmpty()
+                && this.outgoing.get(0).sent < theirReceived) {
+            this.outgoing.remove(0);
+        }
+
+        Operation op = msg.copy();
+        for (int i = 0; i < this.outgoing.size() && op != null; i++) {
+            Pending p = this.outgoing.get(i);
+            if (p.op == null) {
+                continue;
+            }
+            Operation before = op.copy();
+            op = op.include(p.op);
+            p.op = p.op.include(before);
+        }
+        this.received++;
+
+        return op;
+    }
+
+    /**
+     * @return Site ID of this end
+     */
+    public int getSiteId() {
+        return this.siteId;
+    }
+
+    /**
+     * @return Number of operations this end has sent to the other end
+     */
+    public int getSent() {
+        return this.sent;
+    }
+
+    /**
+     * @return Number of operations this end has received from the other end
+     */
+    public int getReceived() {
+        return this.received;
+    }
+
+    /**
+     * @return Number of sent operations not yet acknowledged by the other end
+     */
+    public int getOutgoingSize() {
+        return this.outgoing.size();
+    }
+}
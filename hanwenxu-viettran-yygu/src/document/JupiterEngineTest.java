@@ -0,0 +1,317 @@
+package document;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * This will test the Jupiter mode of the operational transform: JupiterEngine
+ * at the clients and JupiterServer at the server.
+ *
+ * Our testing strategy is to replay the scenarios of OperationEngineTest, with
+ * the server receiving operations in the same order, and check that the server
+ * transforms them to the same positions as the OperationEngine does. Then we
+ * check that every client ends up with the same document as the server. Since
+ * clients only talk to the server, a client always receives operations in the
+ * order the server processed them, unlike in OperationEngineTest where two
+ * clients may receive them in different orders.
+ *
+ * Last, we run a long random session with delayed deliveries to make sure
+ * everybody converges.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class JupiterEngineTest {
+
+    /** The server's side of the session */
+    private JupiterServer server;
+    /** The server's copy of the document */
+    private StringBuilder serverDoc;
+    /** Client engines, by site ID */
+    private Map<Integer, JupiterEngine> clients;
+    /** Client copies of the document, by site ID */
+    private Map<Integer, StringBuilder> docs;
+    /** Operations sent by the server, not yet received, by site ID */
+    private Map<Integer, LinkedList<Operation>> inbox;
+
+    /**
+     * Starts an empty session with the given clients.
+     */
+    private void start(int... sites) throws OperationEngineException {
+        server = new JupiterServer();
+        serverDoc = new StringBuilder();
+        clients = new HashMap<Integer, JupiterEngine>();
+        docs = new HashMap<Integer, StringBuilder>();
+        inbox = new HashMap<Integer, LinkedList<Operation>>();
+        for (int site : sites) {
+            join(site);
+        }
+    }
+
+    /**
+     * Connects a new client, which starts from the server's document.
+     */
+    private void join(int site) throws OperationEngineException {
+        server.addClient(site);
+        clients.put(site, new JupiterEngine(site));
+        docs.put(site, new StringBuilder(serverDoc));
+        inbox.put(site, new LinkedList<Operation>());
+    }
+
+    /**
+     * Applies an operation to a copy of the document.
+     */
+    private static void apply(StringBuilder doc, Operation op) {
+        if (op == null) {
+            return;
+        }
+        if (op.getType().equals("insert")) {
+            doc.insert(op.getPosition(), op.getValue());
+        } else if (op.getType().equals("delete")) {
+            int[] ranges = ((DeleteOperation) op).getRanges();
+            for (int i = ranges.length - 2; i >= 0; i -= 2) {
+                doc.delete(ranges[i], ranges[i] + ranges[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Makes a local edit at a client, and returns the message for the server.
+     */
+    private Operation edit(int site, String value, String type, int position)
+            throws OperationEngineException {
+        Operation msg = clients.get(site).createLocal("document", value, type,
+                position);
+        apply(docs.get(site), msg);
+        return msg;
+    }
+
+    /**
+     * Deletes a range at a client, and returns the message for the server.
+     */
+    private Operation delete(int site, int position, int length)
+            throws OperationEngineException {
+        Operation msg = clients.get(site).createLocalDelete("document",
+                position, length);
+        apply(docs.get(site), msg);
+        return msg;
+    }
+
+    /**
+     * Has the server process a message from a client, and queues what it
+     * forwards. Returns the operation the server applied.
+     */
+    private Operation serve(int site, Operation msg)
+            throws OperationEngineException {
+        Map<Integer, Operation> outbound = new HashMap<Integer, Operation>();
+        Operation top = server.receive(site, msg, outbound);
+        apply(serverDoc, top);
+        for (Map.Entry<Integer, Operation> e : outbound.entrySet()) {
+            inbox.get(e.getKey()).add(e.getValue());
+        }
+        return top;
+    }
+
+    /**
+     * Delivers the oldest pending server message to a client. Returns the
+     * operation the client applied.
+     */
+    private Operation deliver(int site) throws OperationEngineException {
+        Operation top = clients.get(site).receive(inbox.get(site).poll());
+        apply(docs.get(site), top);
+        return top;
+    }
+
+    /**
+     * Delivers every pending server message to every client.
+     */
+    private void deliverAll() throws OperationEngineException {
+        for (int site : clients.keySet()) {
+            while (!inbox.get(site).isEmpty()) {
+                deliver(site);
+            }
+        }
+    }
+
+    /**
+     * Checks that every client has the given document, and so does the
+     * server.
+     */
+    private void assertConverged(String expected) {
+        assertEquals(serverDoc.toString(), expected);
+        for (StringBuilder doc : docs.values()) {
+            assertEquals(doc.toString(), expected);
+        }
+    }
+
+    /**
+     * Types "abcde" one character per client, without any concurrency, like
+     * the start of the OperationEngineTest scenarios.
+     */
+    private void typeAbcde() throws OperationEngineException {
+        serve(1, edit(1, "a", "insert", 0));
+        deliverAll();
+        serve(2, edit(2, "b", "insert", 1));
+        deliverAll();
+        serve(3, edit(3, "c", "insert", 2));
+        deliverAll();
+        serve(1, edit(1, "d", "insert", 3));
+        deliverAll();
+        Operation top = serve(4, edit(4, "e", "insert", 4));
+        deliverAll();
+        assertEquals(top.getPosition(), 4);
+        assertConverged("abcde");
+    }
+
+    /**
+     * Same scenario as OperationEngineTest2: client 1 inserts "A" at 2 while
+     * client 2 deletes "d", and the server gets the insert first.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void JupiterEngineTest1() throws OperationEngineException {
+        start(1, 2, 3, 4);
+        typeAbcde();
+
+        Operation op61 = edit(1, "A", "insert", 2);
+        Operation op72 = edit(2, "d", "delete", 3);
+        Operation op60 = serve(1, op61);
+        Operation op70 = serve(2, op72);
+        assertEquals(op60.getPosition(), 2);
+        assertEquals(op70.getPosition(), 4);
+
+        // client 1 gets the delete at 4, client 2 gets the insert at 2
+        assertEquals(deliver(1).getPosition(), 4);
+        assertEquals(deliver(2).getPosition(), 2);
+        deliverAll();
+        assertConverged("abAce");
+    }
+
+    /**
+     * Same scenario as OperationEngineTest4: a client joins in the middle of
+     * the session and edits concurrently with an older client.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void JupiterEngineTest2() throws OperationEngineException {
+        start(1, 2, 3, 4);
+        typeAbcde();
+        serve(1, edit(1, "A", "insert", 2));
+        serve(2, edit(2, "d", "delete", 3));
+        deliverAll();
+        assertConverged("abAce");
+
+        join(5);
+        Operation op85 = edit(5, "A", "insert", 2);
+        Operation op91 = edit(1, "c", "delete", 3);
+        Operation op80 = serve(5, op85);
+        Operation op90 = serve(1, op91);
+        assertEquals(op80.getPosition(), 2);
+        assertEquals(op90.getPosition(), 4);
+        deliverAll();
+        assertConverged("abAAe");
+
+        // same as OperationEngineTest5, multiple characters at once
+        Operation op100 = serve(1, edit(1, "hello world", "insert", 0));
+        assertEquals(op100.getPosition(), 0);
+        deliverAll();
+        assertConverged("hello worldabAAe");
+    }
+
+    /**
+     * Both clients delete the same character. Only one delete should happen.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void JupiterEngineTest3() throws OperationEngineException {
+        start(1, 2);
+        serve(1, edit(1, "xyz", "insert", 0));
+        deliverAll();
+
+        Operation d1 = edit(1, "y", "delete", 1);
+        Operation d2 = edit(2, "y", "delete", 1);
+        assertEquals(serve(1, d1).getPosition(), 1);
+        assertNull(serve(2, d2));
+        assertNull(deliver(2));
+        deliverAll();
+        assertConverged("xz");
+    }
+
+    /**
+     * Operations can only be received in the order they were sent.
+     *
+     * @throws OperationEngineException
+     */
+    @Test(expected = OperationEngineException.class)
+    public void JupiterEngineTest4() throws OperationEngineException {
+        start(1, 2);
+        edit(1, "a", "insert", 0);
+        serve(1, edit(1, "b", "insert", 0));
+    }
+
+    /**
+     * A long random session. Each step either a client makes an edit, the
+     * server processes the oldest message of a client, or a client processes
+     * the oldest message from the server. Messages pile up, so there is a lot
+     * of concurrency. Inserts are a single character, deletes remove up to
+     * five, so concurrent deletes overlap and inserts land inside deleted
+     * ranges. At the end everybody should have the same document.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void JupiterEngineTest5() throws OperationEngineException {
+        int[] sites = { 1, 2, 3, 4, 5 };
+        start(sites);
+        Map<Integer, LinkedList<Operation>> outbox = new HashMap<Integer, LinkedList<Operation>>();
+        for (int site : sites) {
+            outbox.put(site, new LinkedList<Operation>());
+        }
+        Random random = new Random(6005);
+
+        for (int step = 0; step < 5000; step++) {
+            int site = sites[random.nextInt(sites.length)];
+            int action = random.nextInt(3);
+            StringBuilder doc = docs.get(site);
+            if (action == 0) {
+                if (doc.length() > 0 && random.nextInt(3) == 0) {
+                    int pos = random.nextInt(doc.length());
+                    int len = 1 + random.nextInt(Math.min(5, doc.length()
+                            - pos));
+                    outbox.get(site).add(delete(site, pos, len));
+                } else {
+                    String c = String.valueOf((char) ('a' + random.nextInt(26)));
+                    outbox.get(site).add(
+                            edit(site, c, "insert",
+                                    random.nextInt(doc.length() + 1)));
+                }
+            } else if (action == 1 && !outbox.get(site).isEmpty()) {
+                serve(site, outbox.get(site).poll());
+            } else if (action == 2 && !inbox.get(site).isEmpty()) {
+                deliver(site);
+            }
+        }
+
+        for (int site : sites) {
+            while (!outbox.get(site).isEmpty()) {
+                serve(site, outbox.get(site).poll());
+            }
+        }
+        deliverAll();
+        assertConverged(serverDoc.toString());
+        for (int site : sites) {
+            assertEquals(server.getStream(site).getReceived(), clients
+                    .get(site).getSent());
+        }
+    }
+}
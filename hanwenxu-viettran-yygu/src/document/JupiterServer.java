@@ -0,0 +1,109 @@
+package document;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The server side of the Jupiter mode (see JupiterEngine) for one document.
+ * It holds one JupiterEngine per connected client. An operation received from
+ * a client is transformed by that client's engine into the server's state,
+ * applied by the caller, and then sent through every other client's engine.
+ *
+ * The server's copy of the document is the reference: the order in which the
+ * server receives operations is the order in which every client ends up
+ * applying them.
+ *
+ * Thread safety argument: the caller must make sure that only one thread uses
+ * a JupiterServer at a time, e.g. by locking the document it belongs to.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class JupiterServer {
+
+    /**
+     * One engine per client, by site ID. Sorted so that operations are
+     * forwarded in a predictable order.
+     */
+    private final TreeMap<Integer, JupiterEngine> streams = new TreeMap<Integer, JupiterEngine>();
+
+    /**
+     * Starts a stream for a new client. The client must start from the
+     * server's current document.
+     *
+     * @param site
+     *            Integer site ID of the client
+     * @throws OperationEngineException
+     *             if the client is already connected
+     */
+    public void addClient(int site) throws OperationEngineException {
+        if (this.streams.containsKey(site)) {
+            throw new OperationEngineException("site " + site
+                    + " already connected");
+        }
+        this.streams.put(site, new JupiterEngine(site));
+    }
+
+    /**
+     * Drops the stream of a client that left.
+     *
+     * @param site
+     *            Integer site ID of the client
+     */
+    public void removeClient(int site) {
+        this.streams.remove(site);
+    }
+
+    /**
+     * Processes an operation received from a client.
+     *
+     * @param site
+     *            Integer site ID of the client that sent the operation
+     * @param msg
+     *            Operation as received from the client, not modified
+     * @param outbound
+     *            Filled with the operation to transmit to each other client,
+     *            by site ID. Nothing is added if the operation has no effect.
+     * @throws OperationEngineException
+     *             if the client is not connected, or the operation is out of
+     *             order
+     * @return Transformed operation to apply to the server's document, or null
+     *         if it has no effect
+     */
+    public Operation receive(int site, Operation msg,
+            Map<Integer, Operation> outbound) throws OperationEngineException {
+        JupiterEngine from = this.streams.get(site);
+        if (from == null) {
+            throw new OperationEngineException("site " + site
+                    + " not connected");
+        }
+
+        Operation top = from.receive(msg);
+        if (top == null) {
+            return null;
+        }
+
+        for (JupiterEngine to : this.streams.values()) {
+            if (to != from) {
+                outbound.put(to.getSiteId(), to.send(top));
+            }
+        }
+        return top;
+    }
+
+    /**
+     * @param site
+     *            Integer site ID
+     * @return The engine for the given client, or null if not connected
+     */
+    public JupiterEngine getStream(int site) {
+        return this.streams.get(site);
+    }
+
+    /**
+     * @return Number of connected clients
+     */
+    public int getClientCount() {
+        return this.streams.size();
+    }
+}
@@ -0,0 +1,53 @@
+package document;
+
+/**
+ * The types of operation. Each one matches a subclass of Operation, and a
+ * transformWith method the other subclasses have to implement.
+ *
+ * The names are the strings used before this enum existed. They are still
+ * what Operation.getType returns, what createOperationFromType accepts, and
+ * the first element of Operation.getState.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public enum OpType {
+    INSERT("insert"), DELETE("delete"), UPDATE("update");
+
+    /**
+     * String name of the type
+     */
+    private final String name;
+
+    private OpType(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the string name of the type, such as "insert"
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Looks up a type by its string name.
+     *
+     * @param name
+     *            , requires to be either insert, delete, or update
+     * @return the matching type, or null if there is none
+     */
+    public static OpType fromName(String name) {
+        for (OpType t : values()) {
+            if (t.name.equals(name)) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -1,10 +1,7 @@
 package document;
 
 import java.io.Serializable;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
 
 /**
  * This is the abstract class for the operation. A single operation is anything
@@ -29,7 +26,7 @@ public abstract class Operation implements Serializable {
     /**
      * no more magic number
      */
-    protected final static int infinity = Integer.MAX_VALUE;
+    protected final static long infinity = Long.MAX_VALUE;
     /**
      * siteId: Integer client ID where the op originated
      */
@@ -42,7 +39,7 @@ public abstract class Operation implements Serializable {
     /**
      * type of operation, such as delete or insert
      */
-    protected String type = null;
+    protected OpType type = null;
 
     /**
      * boolean variable denoting if this operation was performed locally
@@ -71,9 +68,10 @@ public abstract class Operation implements Serializable {
 
     /**
      * The universal order in which the server received this operation. Doesn't
-     * matter for local operations.
+     * matter for local operations. 64 bits, so a document that is edited for
+     * years never runs out of them.
      */
-    private int order;
+    private long order;
 
     /**
      * If this operation is mutable or not.
@@ -81,9 +79,12 @@ public abstract class Operation implements Serializable {
     protected boolean immutable;
 
     /**
-     * Place to store referenceable operations
+     * Rough number of bytes an operation costs besides its value and its
+     * ClientState's array: the object headers and fields of the operation,
+     * its ClientState, its value String and a table slot. Only used for
+     * accounting, see estimateSize.
      */
-    protected Vector<Operation> xCache = null;
+    private static final int OPERATION_OVERHEAD = 128;
 
     /**
      * This is a constructor which returns a new operation. This allows creation
@@ -103,17 +104,94 @@ public abstract class Operation implements Serializable {
             Map<String, Object> properties) throws OperationEngineException {
         Operation op = null;
 
-        if (type.equals("insert")) {
+        OpType t = OpType.fromName(type);
+        if (t == OpType.INSERT) {
             op = new InsertOperation(properties);
-        } else if (type.equals("delete")) {
+        } else if (t == OpType.DELETE) {
             op = new DeleteOperation(properties);
-        } else if (type.equals("update")) {
+        } else if (t == OpType.UPDATE) {
             op = new UpdateOperation(properties);
         }
 
         return op;
     }
 
+    /**
+     * Typed factory for operations. Does the same as createOperationFromType,
+     * without building a property map or boxing any of the values, so this is
+     * what the engines use.
+     * 
+     * @param type
+     *            Type of operation, requires != null
+     * @param key
+     *            Name of the document the op affects
+     * @param value
+     *            Value of the op
+     * @param position
+     *            Integer position of the op
+     * @param siteId
+     *            Integer site ID where the op originated
+     * @param seqId
+     *            Integer sequence number of the op at its originating site
+     * @param clientState
+     *            Context in which the op occurred. Not copied, the op takes
+     *            ownership of it.
+     * @param order
+     *            Place of the op in the total order, or infinity if it has not
+     *            been assigned one yet
+     * @param local
+     *            True if the op was performed locally
+     * @return a new Operation of the subclass matching type
+     */
+    public static Operation create(OpType type, String key, String value,
+            int position, int siteId, int seqId, ClientState clientState,
+            long order, boolean local) {
+        switch (type) {
+        case INSERT:
+            return new InsertOperation(siteId, seqId, clientState, key, value,
+                    position, order, local);
+        case DELETE:
+            return new DeleteOperation(siteId, seqId, clientState, key, value,
+                    position, order, local);
+        case UPDATE:
+            return new UpdateOperation(siteId, seqId, clientState, key, value,
+                    position, order, local);
+        default:
+            throw new IllegalArgumentException("unknown op type " + type);
+        }
+    }
+
+    /**
+     * Typed factory for a delete of a range. The delete carries no value, so
+     * its size doesn't depend on how much text it removes.
+     * 
+     * @param key
+     *            Name of the document the op affects
+     * @param position
+     *            Integer position of the first deleted character
+     * @param length
+     *            Number of characters deleted
+     * @param siteId
+     *            Integer site ID where the op originated
+     * @param seqId
+     *            Integer sequence number of the op at its originating site
+     * @param clientState
+     *            Context in which the op occurred. Not copied, the op takes
+     *            ownership of it.
+     * @param order
+     *            Place of the op in the total order, or infinity if it has not
+     *            been assigned one yet
+     * @param local
+     *            True if the op was performed locally
+     * @return a new DeleteOperation
+     */
+    public static DeleteOperation createDelete(String key, int position,
+            int length, int siteId, int seqId, ClientState clientState,
+            long order, boolean local) {
+        return new DeleteOperation(siteId, seqId, clientState, key, position,
+                length, order, local);
+    }
+
     /**
      * This is another constructor of the Operation class. By using a object
      * array state, we can construct a new operation
@@ -142,6 +220,22 @@ public abstract class Operation implements Serializable {
         return new Integer(site).toString() + "," + new Integer(seq).toString();
     }
 
+    /**
+     * Same as createHistoryKey, but packs the site into the high 32 bits and
+     * the sequence number into the low 32 bits of a long, so building and
+     * looking up a key doesn't allocate. This is the key the HistoryBuffer
+     * actually uses.
+     * 
+     * @param site
+     *            , requires to be any integer of the site of the IP
+     * @param seq
+     *            , requires to be another integer of the sequence
+     * @return the packed key
+     */
+    public static long createPackedHistoryKey(int site, int seq) {
+        return ((long) site << 32) | (seq & 0xFFFFFFFFL);
+    }
+
     @Override
     public String toString() {
         StringBuffer b = new StringBuffer();
@@ -178,7 +272,6 @@ public abstract class Operation implements Serializable {
      *            because it is in a history buffer somewhere to this instance
      * @throws OperationEngineException
      */
-    @SuppressWarnings("unchecked")
     protected Operation(Map<String, Object> properties)
             throws OperationEngineException {
         if (properties == null) {
@@ -197,11 +290,11 @@ public abstract class Operation implements Serializable {
             this.value = (String) properties.get("value");
             this.position = ((Integer) properties.get("position")).intValue();
 
-            Integer ord = (Integer) properties.get("order");
+            Number ord = (Number) properties.get("order");
             if (ord == null) {
                 this.setOrder(Operation.infinity);
             } else {
-                this.setOrder(ord.intValue());
+                this.setOrder(ord.longValue());
             }
 
             if (properties.containsKey("seqId")) {
@@ -213,20 +306,27 @@ public abstract class Operation implements Serializable {
                         "missing sequence id for new operation");
             }
 
-            if (properties.containsKey("xCache")) {
-                this.xCache = (Vector<Operation>) properties.get("xCache");
-            } else {
-                this.xCache = null;
-            }
-
             this.local = ((Boolean) properties.get("local")).booleanValue() || false;
         }
 
         this.immutable = false;
+    }
 
-        if (this.xCache == null) {
-            this.xCache = new Vector<Operation>();
-        }
+    /**
+     * Initializes the operation from individual values. Used by create, so
+     * see there for the parameters.
+     */
+    protected Operation(int siteId, int seqId, ClientState clientState,
+            String key, String value, int position, long order, boolean local) {
+        this.siteId = siteId;
+        this.seqId = seqId;
+        this.clientState = clientState;
+        this.key = key;
+        this.value = value;
+        this.position = position;
+        this.order = order;
+        this.local = local;
+        this.immutable = false;
     }
 
     /**
@@ -253,7 +353,7 @@ public abstract class Operation implements Serializable {
      *         its instance variables as primitive JS types
      */
     public Object[] getState() {
-        Object[] properties = { this.type, this.key, this.value, this.position,
+        Object[] properties = { this.type.getName(), this.key, this.value, this.position,
                 this.clientState.getState(), this.seqId, this.siteId,
                 this.getOrder() };
 
@@ -269,7 +369,7 @@ public abstract class Operation implements Serializable {
      * @throws OperationEngineException
      */
     public void setState(Object[] properties) throws OperationEngineException {
-        if (!((String) properties[0]).equals(this.type)) {
+        if (OpType.fromName((String) properties[0]) != this.type) {
             throw new OperationEngineException(
                     "setState invoked with state from wrong op type");
         } else if (this.immutable) {
@@ -280,106 +380,50 @@ public abstract class Operation implements Serializable {
         this.value = (String) properties[2];
         this.position = ((Integer) properties[3]).intValue();
 
-        HashMap<String, Object> args = new HashMap<String, Object>();
-        args.put("state", (Object[]) properties[4]);
-
-        this.clientState = new ClientState(args);
+        this.clientState = ClientState.fromArray((int[]) properties[4]);
 
         this.seqId = ((Integer) properties[5]).intValue();
         this.siteId = ((Integer) properties[6]).intValue();
 
         if (properties.length >= 8) {
-            this.setOrder(((Integer) properties[7]).intValue());
+            this.setOrder(((Number) properties[7]).longValue());
         } else {
             this.setOrder(Operation.infinity);
         }
     }
 
     /**
-     * Makes a copy of this operation object. Takes a shortcut and returns a ref
-     * to this instance if the op is marked as mutable.
+     * Makes a mutable copy of this operation object. The copy is made field by
+     * field: the key and value strings are shared, and the context vector is
+     * a copy-on-write copy, so copying an op only allocates the op itself and
+     * a small ClientState. fullTransform makes several of these per history
+     * entry.
      * 
      * @throws OperationEngineException
      * 
      * @return Operation object
      */
     public Operation copy() throws OperationEngineException {
-        HashMap<String, Object> properties = new HashMap<String, Object>();
-
-        properties.put("siteId", new Integer(this.siteId));
-        properties.put("seqId", new Integer(this.seqId));
-        properties.put("contextVector", this.clientState.copy());
-        properties.put("key", this.key);
-        properties.put("value", this.value);
-        properties.put("position", new Integer(this.position));
-        properties.put("order", new Integer(this.getOrder()));
-        properties.put("local", new Boolean(this.local));
-        properties.put("xCache", this.xCache);
-
-        Operation op;
-        try {
-            op = Operation.createOperationFromType(this.type, properties);
-        } catch (OperationEngineException e) {
-            e.printStackTrace();
-            op = null;
-        }
-
-        return op;
+        return Operation.create(this.type, this.key, this.value, this.position,
+                this.siteId, this.seqId, this.clientState.copy(),
+                this.getOrder(), this.local);
     }
 
     /**
-     * Gets a version of the given operation previously transformed into the
-     * given context if available.
+     * Estimates how many bytes of heap this operation takes, for the history
+     * buffer's and the transform cache's accounting.
      * 
-     * @param cv
-     *            Context of the transformed op to seek
-     * @throws OperationEngineException
-     * @return Copy of the transformed operation from the cache or null if not
-     *         found in the cache
+     * @return estimated size in bytes
      */
-    public Operation getFromCache(ClientState cv)
-            throws OperationEngineException {
-        Vector<Operation> cache = this.xCache;
-        int l = cache.size();
-        Operation xop;
-
-        for (int i = 0; i < l; i++) {
-            xop = cache.elementAt(i);
-            if (xop.clientState.equals(cv)) {
-                return xop.copy();
-            }
+    long estimateSize() {
+        long bytes = OPERATION_OVERHEAD;
+        if (this.value != null) {
+            bytes += 2 * this.value.length();
         }
-
-        return null;
-    }
-
-    /**
-     * Caches a transformed copy of this original operation for faster future
-     * transformations.
-     * 
-     * @param siteCount
-     *            Integer count of active sites, including the local one
-     * @throws OperationEngineException
-     */
-    public void addToCache(int siteCount) throws OperationEngineException {
-        Vector<Operation> cache = this.xCache;
-        Operation cop = this.copy();
-
-        cop.immutable = true;
-
-        cache.addElement(cop);
-
-        int diff = cache.size() - (siteCount - 1);
-        if (diff > 0) {
-            Operation[] operationArray = new Operation[cache.size()];
-            operationArray = cache.toArray(operationArray);
-            Operation[] newArr = Arrays.copyOf(operationArray, diff);
-
-            cache.removeAllElements();
-            for (int i = 0; i < newArr.length; i++) {
-                cache.addElement(newArr[i]);
-            }
+        if (this.clientState != null) {
+            bytes += 4 * this.clientState.getSize();
         }
+        return bytes;
     }
 
     /**
@@ -460,14 +504,7 @@ public abstract class Operation implements Serializable {
                     "attempt to transform immutable op");
         }
 
-        Operation rv = null;
-        if (op.type.equals("delete")) {
-            rv = this.transformWithDelete(op);
-        } else if (op.type.equals("insert")) {
-            rv = this.transformWithInsert(op);
-        } else if (op.type.equals("update")) {
-            rv = this.transformWithUpdate(op);
-        }
+        Operation rv = this.include(op);
 
         if (rv != null) {
             this.upgradeContextTo(op);
@@ -476,6 +513,43 @@ public abstract class Operation implements Serializable {
         return rv;
     }
 
+    /**
+     * Transforms this operation in place to include the effect of another one,
+     * dispatching on the type of the other operation. Unlike transformWith,
+     * the context of this op is left alone.
+     * 
+     * @param op
+     *            The operation to include
+     * @return This operation, transformed in-place, or null if its effects are
+     *         nullified by the transform
+     */
+    public Operation include(Operation op) {
+        switch (op.type) {
+        case DELETE:
+            return this.transformWithDelete(op);
+        case INSERT:
+            return this.transformWithInsert(op);
+        case UPDATE:
+            return this.transformWithUpdate(op);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Checks if this operation was made by the same site right after another
+     * one, i.e. its context is the other's context plus the other op itself.
+     * 
+     * @param op
+     *            The operation that may come just before this one
+     * @return true if this op directly follows op
+     */
+    public boolean follows(Operation op) {
+        return this.siteId == op.siteId && this.seqId == op.seqId + 1
+                && this.clientState.equalsWith(op.clientState, op.siteId,
+                        op.seqId);
+    }
+
     /**
      * Upgrades the context of this operation to reflect the inclusion of a
      * single other operation from some site.
@@ -509,6 +583,18 @@ public abstract class Operation implements Serializable {
      * @return the type
      */
     public String getType() {
+        if (this.type == null) {
+            return null;
+        }
+        return this.type.getName();
+    }
+
+    /**
+     * Get the type, as an OpType
+     * 
+     * @return the type
+     */
+    public OpType getOpType() {
         return this.type;
     }
 
@@ -530,6 +616,18 @@ public abstract class Operation implements Serializable {
         return this.value;
     }
 
+    /**
+     * Get the number of characters this operation inserts or deletes
+     * 
+     * @return length of the value, or 0 if there is none
+     */
+    public int getLength() {
+        if (this.value == null) {
+            return 0;
+        }
+        return this.value.length();
+    }
+
     /**
      * Get the integer of the offset position
      * 
@@ -561,18 +659,26 @@ public abstract class Operation implements Serializable {
     /**
      * get the order of the operation
      * 
-     * @return int order
+     * @return long order
      */
-    public int getOrder() {
+    public long getOrder() {
         return order;
     }
 
+    /**
+     * @return true if the operation was performed at the site that made it,
+     *         which breaks ties in compareByOrder
+     */
+    public boolean isLocal() {
+        return this.local;
+    }
+
     /**
      * set the order of the operation
      * 
      * @param order
      */
-    public void setOrder(int order) {
+    public void setOrder(long order) {
         this.order = order;
     }
 
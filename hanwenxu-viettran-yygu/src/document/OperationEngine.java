@@ -1,8 +1,8 @@
 package document;
 
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.List;
 
 /**
  * This will control the operation transform at a single site in the client
@@ -50,6 +50,52 @@ public class OperationEngine {
      */
     private int siteCount = 1;
 
+    /**
+     * Operations already transformed into some context, shared by every call
+     * to pushRemoteOp
+     */
+    private final TransformCache transformCache = new TransformCache();
+
+    /**
+     * Number of context differences computed by pushRemoteOps
+     */
+    private long differencesComputed = 0;
+
+    /**
+     * Default for transformStepLimit. Far more than any sane session needs,
+     * but stops a broken or malicious operation from running forever.
+     */
+    public static final int DEFAULT_TRANSFORM_STEP_LIMIT = 1000000;
+
+    /**
+     * Maximum number of transform steps a single pushRemoteOp may take before
+     * giving up with an OperationEngineException.
+     */
+    private int transformStepLimit = DEFAULT_TRANSFORM_STEP_LIMIT;
+
+    /**
+     * Number of transform steps (one transformWith of the incoming op or of a
+     * history op) taken by the last pushRemoteOp
+     */
+    private int lastTransformSteps = 0;
+
+    /**
+     * Deepest nesting of the work stack in the last pushRemoteOp. 1 means no
+     * history op had to be transformed first.
+     */
+    private int lastTransformDepth = 0;
+
+    /**
+     * Deepest nesting of the work stack over all calls to pushRemoteOp
+     */
+    private int maxTransformDepth = 0;
+
+    /**
+     * Number of times the last pushRemoteOp reused a transform it had already
+     * done earlier in the same call
+     */
+    private int lastMemoHits = 0;
+
     /**
      * Controls the operational transformation algorithm. Provides a public API
      * for operation processing.
@@ -60,9 +106,7 @@ public class OperationEngine {
     public OperationEngine(int siteId) throws OperationEngineException {
         this.siteId = siteId;
 
-        HashMap<String, Object> args = new HashMap<String, Object>();
-        args.put("count", siteId + 1);
-        this.cs = new ClientState(args);
+        this.cs = ClientState.withSize(siteId + 1);
         this.cst = new ClientStateTable(this.cs, siteId);
         this.historybuffer = new HistoryBuffer();
     }
@@ -119,32 +163,84 @@ public class OperationEngine {
      * @return Subclass instance matching the given type
      */
     public Operation createOp(boolean local, String key, String value,
-            String type, int position, int site, int[] cv, int order)
+            String type, int position, int site, int[] cv, long order)
+            throws OperationEngineException {
+        OpType t = OpType.fromName(type);
+        if (t == null) {
+            return null;
+        }
+        return this.createOp(local, key, value, t, position, site, cv, order);
+    }
+
+    /**
+     * Same as createOp with a string type, without looking the type up by
+     * name.
+     * 
+     * @param t
+     *            Type of operation, requires != null
+     * @throws OperationEngineException
+     * @return Subclass instance matching the given type
+     */
+    public Operation createOp(boolean local, String key, String value,
+            OpType t, int position, int site, int[] cv, long order)
             throws OperationEngineException {
-        Map<String, Object> args = new HashMap<String, Object>();
         if (local) {
-            args.put("key", key);
-            args.put("position", new Integer(position));
-            args.put("value", value);
-            args.put("siteId", new Integer(this.siteId));
-            args.put("contextVector", this.copyClientState());
-            args.put("local", true);
+            ClientState clientState = this.copyClientState();
+            return Operation.create(t, key, value, position, this.siteId,
+                    clientState.getSeqForClient(this.siteId) + 1, clientState,
+                    Operation.infinity, true);
         } else {
-            HashMap<String, Object> map = new HashMap<String, Object>();
-            map.put("sites", cv);
-            ClientState clientState = new ClientState(map);
-
-            args.put("key", key);
-            args.put("position", new Integer(position));
-            args.put("value", value);
-            args.put("siteId", new Integer(site));
-            args.put("contextVector", clientState);
-            args.put("order", order);
-            args.put("local", false);
+            ClientState clientState = ClientState.fromArray(cv);
+            return Operation.create(t, key, value, position, site,
+                    clientState.getSeqForClient(site) + 1, clientState, order,
+                    false);
         }
+    }
 
-        return Operation.createOperationFromType(type, args);
+    /**
+     * Factory method that creates a delete of a range. The parameters are the
+     * same as those documented for createOp, except that the delete is given
+     * by its length instead of a value.
+     * 
+     * @param length
+     *            Number of characters deleted
+     * @throws OperationEngineException
+     * @return new DeleteOperation
+     */
+    public Operation createDelete(boolean local, String key, int position,
+            int length, int site, int[] cv, long order)
+            throws OperationEngineException {
+        if (local) {
+            ClientState clientState = this.copyClientState();
+            return Operation.createDelete(key, position, length, this.siteId,
+                    clientState.getSeqForClient(this.siteId) + 1, clientState,
+                    Operation.infinity, true);
+        } else {
+            ClientState clientState = ClientState.fromArray(cv);
+            return Operation.createDelete(key, position, length, site,
+                    clientState.getSeqForClient(site) + 1, clientState, order,
+                    false);
+        }
+    }
 
+    /**
+     * Creates a delete of a range and pushes it into the operation engine
+     * algorithm. The parameters are the same as those documented for
+     * createDelete.
+     * 
+     * @throws OperationEngineException
+     * @return transformed operation, can be used to mutate buffer
+     */
+    public Operation pushDelete(boolean local, String key, int position,
+            int length, int site, int[] cv, long order)
+            throws OperationEngineException {
+        Operation op = this.createDelete(local, key, position, length, site,
+                cv, order);
+        if (local) {
+            return this.pushLocalOp(op);
+        } else {
+            return this.pushRemoteOp(op);
+        }
     }
 
     /**
@@ -156,7 +252,26 @@ public class OperationEngine {
      * @return transformed operation, can be used to mutate buffer
      */
     public Operation push(boolean local, String key, String value, String type,
-            int position, int site, int[] cv, int order)
+            int position, int site, int[] cv, long order)
+            throws OperationEngineException {
+
+        Operation op = this.createOp(local, key, value, type, position, site,
+                cv, order);
+        if (local) {
+            return this.pushLocalOp(op);
+        } else {
+            return this.pushRemoteOp(op);
+        }
+    }
+
+    /**
+     * Same as push with a string type, without looking the type up by name.
+     * 
+     * @throws OperationEngineException
+     * @return transformed operation, can be used to mutate buffer
+     */
+    public Operation push(boolean local, String key, String value, OpType type,
+            int position, int site, int[] cv, long order)
             throws OperationEngineException {
 
         Operation op = this.createOp(local, key, value, type, position, site,
@@ -195,15 +310,16 @@ public class OperationEngine {
         Operation top = null;
 
         if (this.hasProcessedOp(op)) {
+            // our own op sent back by the server, with its place in the order
             this.historybuffer.addRemoteOperation(op);
-            System.out.println("already processed");
             return null;
         } else if (this.cs.equals(op.getClientState())) {
             top = op.copy();
+            this.recordTransform(0, 0);
         } else {
-            StateDifference cd = this.cs.subtract(op.getClientState());
             op.setImmutable(true);
-            top = this.fullTransform(op, cd);
+            top = this.fullTransform(op, this.historybuffer
+                    .getOpsForDifference(this.cs, op.getClientState()));
         }
 
         this.cs.setSeqForClient(op.getSiteId(), op.getSeqId());
@@ -213,6 +329,78 @@ public class OperationEngine {
         return top;
     }
 
+    /**
+     * Procceses a list of remote operations, in order, like calling
+     * pushRemoteOp on each of them, and returns the transformed operations
+     * ready to be applied to the document in the same order.
+     * 
+     * This is meant for a site catching up after a network stall, when a lot
+     * of operations arrive at once, many of them back to back from the same
+     * site. When an operation directly follows the previous one of the list
+     * (same site, next sequence number, and made right after it) the history
+     * ops concurrent with it are exactly the ones that were concurrent with
+     * the previous one. So the context difference is only computed and
+     * looked up once for such a run, and the transform cache already holds
+     * those history ops transformed to include the previous operation.
+     * 
+     * @param ops
+     *            Remote operations, in the order they were received
+     * @throws OperationEngineException
+     * @return Transformed operations, leaving out the ones that have no
+     *         effect, in the order they have to be applied
+     */
+    public List<Operation> pushRemoteOps(List<Operation> ops)
+            throws OperationEngineException {
+        ArrayList<Operation> tops = new ArrayList<Operation>(ops.size());
+        // ops concurrent with the previous op of the run, or null if the
+        // previous op needed no transform
+        Operation[] concurrent = null;
+        Operation prev = null;
+
+        for (Operation op : ops) {
+            Operation top;
+            if (this.hasProcessedOp(op)) {
+                this.historybuffer.addRemoteOperation(op);
+                prev = null;
+                continue;
+            } else if (this.cs.equals(op.getClientState())) {
+                top = op.copy();
+                this.recordTransform(0, 0);
+                concurrent = null;
+            } else {
+                if (concurrent == null || prev == null
+                        || !op.follows(prev)) {
+                    concurrent = this.historybuffer.getOpsForDifference(
+                            this.cs, op.getClientState());
+                    ++this.differencesComputed;
+                }
+                op.setImmutable(true);
+                top = this.fullTransform(op, concurrent);
+            }
+
+            this.cs.setSeqForClient(op.getSiteId(), op.getSeqId());
+            this.historybuffer.addRemoteOperation(op);
+            this.cst.operationUpdate(op);
+            prev = op;
+
+            if (top != null) {
+                tops.add(top);
+            }
+        }
+        return tops;
+    }
+
+    /**
+     * Gets the number of context differences pushRemoteOps had to compute.
+     * Compared to the number of operations it was given, this tells how well
+     * batching worked.
+     * 
+     * @return Integer count
+     */
+    public long getDifferencesComputed() {
+        return this.differencesComputed;
+    }
+
     /**
      * Gets the size of the history buffer in terms of stored operations.
      * 
@@ -222,6 +410,97 @@ public class OperationEngine {
         return this.historybuffer.getSize();
     }
 
+    /**
+     * Records that a site has processed every operation in the given
+     * ClientState. Sites acknowledge their state periodically, and the
+     * minimum over all acknowledged states tells collectGarbage which
+     * operations no site can still need.
+     * 
+     * @param site
+     *            Integer site ID of the acknowledging site
+     * @param state
+     *            ClientState the site reported, not modified
+     * @throws OperationEngineException
+     */
+    public void acknowledge(int site, ClientState state)
+            throws OperationEngineException {
+        if (site != this.siteId) {
+            this.cst.acknowledge(site, state);
+        }
+    }
+
+    /**
+     * Stops waiting for a site's acknowledgements, e.g. because it
+     * disconnected, so that it can no longer hold back collectGarbage.
+     * 
+     * @param site
+     *            Integer site ID
+     */
+    public void removeSite(int site) {
+        if (site != this.siteId) {
+            this.cst.removeClientState(site);
+        }
+    }
+
+    /**
+     * Tells if every site still taking part has processed every operation of
+     * the given site, according to their acknowledgements. Once a removed
+     * site is acknowledged, its site ID can be given to a new site: the new
+     * site starts from the state of this engine, so it numbers its
+     * operations after the last one of the old site, and no site can confuse
+     * the two.
+     * 
+     * @param site
+     *            Integer site ID
+     * @throws OperationEngineException
+     * @return True if no active site is missing an operation of the site
+     */
+    public boolean isAcknowledged(int site) throws OperationEngineException {
+        ClientState floor = this.cst.getMinimumActiveClientState();
+        return floor == null || floor.seqAt(site) >= this.cs.seqAt(site);
+    }
+
+    /**
+     * Discards every operation in the history buffer that has been processed
+     * by every site, unless an operation we keep still needs it for
+     * transforms (see HistoryBuffer.removeDominated).
+     * 
+     * This is only safe where every participating site acknowledges its
+     * state, i.e. on the server. A client that throws away history based on
+     * the operations it happened to receive could later get an operation from
+     * a quiet site whose context is older than that.
+     * 
+     * @throws OperationEngineException
+     * @return Number of operations discarded
+     */
+    public int collectGarbage() throws OperationEngineException {
+        ClientState floor = this.cst.getMinimumActiveClientState();
+        if (floor == null) {
+            return 0;
+        }
+        return this.historybuffer.removeDominated(floor);
+    }
+
+    /**
+     * Gets the number of operations currently kept in the history buffer.
+     * Same as getBufferSize.
+     * 
+     * @return Integer count
+     */
+    public int getRetainedOperationCount() {
+        return this.historybuffer.getSize();
+    }
+
+    /**
+     * Gets the estimated number of bytes given back by collectGarbage since
+     * this engine was created.
+     * 
+     * @return Estimated bytes
+     */
+    public long getReclaimedBytes() {
+        return this.historybuffer.getReclaimedBytes();
+    }
+
     /**
      * Gets if the engine has already processed the give operation based on its
      * ClientState and the ClientState of this engine instance.
@@ -231,7 +510,7 @@ public class OperationEngine {
      * @return True if the engine already processed this operation, false if not
      */
     public boolean hasProcessedOp(Operation op) {
-        int seqId = this.cs.getSeqForClient(op.getSiteId());
+        int seqId = this.cs.seqAt(op.getSiteId());
         // System.out.println("seqID is : "+seqId);
         // System.out.println("opSeqID is: "+op.getSeqId());
         // System.out.println("the siteID is : "+op.getSiteId());
@@ -253,89 +532,303 @@ public class OperationEngine {
     };
 
     /**
-     * Executes a recursive step in the operation transformation control
-     * algorithm. This method assumes it will NOT be called if no transformation
-     * is needed in order to reduce the number of operation copies needed.
+     * One pending call of the transform algorithm on the work stack: an
+     * operation being transformed against the ops in a context difference.
+     */
+    private static final class TransformFrame {
+        /** working copy of the operation, transformed so far */
+        private Operation op;
+        /** history ops to include, in order */
+        private final Operation[] ops;
+        /** index of the next op in ops to include */
+        private int index = 0;
+
+        private TransformFrame(Operation op, Operation[] ops) {
+            this.op = op;
+            this.ops = ops;
+        }
+    }
+
+    /**
+     * Key of the memo used by fullTransform: an operation, compared by
+     * identity, and the context it was transformed into.
+     */
+    private static final class TransformKey {
+        private final Operation op;
+        private final ClientState target;
+        private final int hash;
+
+        private TransformKey(Operation op, ClientState target) {
+            this.op = op;
+            this.target = target;
+            this.hash = 31 * System.identityHashCode(op) + target.contextHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TransformKey)) {
+                return false;
+            }
+            TransformKey k = (TransformKey) o;
+            return this.op == k.op && this.target.equals(k.target);
+        }
+    }
+
+    /**
+     * Runs the operation transformation control algorithm: transforms op to
+     * include the effects of every operation in the context difference.
+     * 
+     * Whenever one of those history ops was made in a different context than
+     * the one op has reached so far, it has to be transformed into that
+     * context first, which is the same problem again. This used to be a
+     * recursive call. It is now a frame pushed on an explicit work stack, so a
+     * burst of concurrent edits from many sites can't overflow the Java
+     * stack, and the results of those inner transforms are memoized for the
+     * rest of the pushRemoteOp call, so the same history op is never
+     * transformed into the same context twice.
+     * 
+     * The number of steps and the depth of the work stack are recorded (see
+     * getLastTransformSteps and getLastTransformDepth), and the call gives up
+     * after transformStepLimit steps.
+     * 
+     * This method assumes it will NOT be called if no transformation is
+     * needed in order to reduce the number of operation copies needed.
      * 
      * @param op
      *            Operation to transform
-     * @param cd
-     *            ClientState difference between the given op and the document
-     *            state at the time of this recursive call
+     * @param concurrent
+     *            history ops in the ClientState difference between the given
+     *            op and the document state, as given by getOpsForDifference.
+     *            Not modified.
      * @throws OperationEngineException
+     *             if the history is inconsistent, or the step limit is
+     *             exceeded
      * @return A new operation, including the effects of all of the operations
      *         in the context difference or null if the operation can have no
      *         further effect on the document state
      */
-    private Operation fullTransform(Operation op, StateDifference cd)
+    private Operation fullTransform(Operation op, Operation[] concurrent)
             throws OperationEngineException {
-
-        // we first the get the operations that are different, namely
-        // the ones we have done locally, but were not seen yet at the remote
-        // client.
-        Stack<Operation> ops = this.historybuffer.getOpsForDifference(cd);
-        Operation prevOperation = null;
-        StateDifference previousStateDifference = null;
-        Operation prevCachedOperation = null;
-        Operation cachedOperation = null;
-
-        op = op.copy();
-
-        // for all the ops in the difference, we need to transform
-        for (int i = 0; i < ops.size(); i++) {
-            prevOperation = ops.elementAt(i);
-            if (!op.getClientState().equals(prevOperation.getClientState())) {
-                // see if we've cached a transform of this op in the desired
-                // context to avoid recursion
-                prevCachedOperation = prevOperation.getFromCache(op
-                        .getClientState());
-                if (prevCachedOperation != null) {
-                    prevOperation = prevCachedOperation;
-                } else {
-                    // transform needed to update the state of previousOperation
-                    // to current Operation
-                    previousStateDifference = op.getClientState().subtract(
-                            prevOperation.getClientState());
-                    if (previousStateDifference.clients == null
-                            || previousStateDifference.clients.size() == 0) {
-                        throw new OperationEngineException(
-                                "transform produced empty StateDifference");
+        ArrayList<TransformFrame> stack = new ArrayList<TransformFrame>();
+        HashMap<TransformKey, Operation> memo = null;
+        int steps = 0;
+        int depth = 1;
+        this.lastMemoHits = 0;
+
+        stack.add(new TransformFrame(op.copy(), concurrent));
+
+        // result of the frame popped last, handed to the frame below it
+        Operation result = null;
+        boolean returning = false;
+
+        while (true) {
+            TransformFrame f = stack.get(stack.size() - 1);
+            Operation prevOperation;
+
+            if (returning) {
+                // an inner frame finished transforming f's current history op
+                returning = false;
+                Operation pending = f.ops[f.index];
+                if (memo == null) {
+                    memo = new HashMap<TransformKey, Operation>();
+                }
+                memo.put(new TransformKey(pending, f.op.getClientState()
+                        .copy()), result);
+                if (result == null) {
+                    f.op.upgradeContextTo(pending);
+                    f.index++;
+                    continue;
+                }
+                prevOperation = result;
+            } else if (f.index >= f.ops.length) {
+                // every op included, hand the result to the frame below
+                result = f.op;
+                stack.remove(stack.size() - 1);
+                if (stack.isEmpty()) {
+                    break;
+                }
+                returning = true;
+                continue;
+            } else {
+                prevOperation = f.ops[f.index];
+                if (!f.op.getClientState().equals(
+                        prevOperation.getClientState())) {
+                    // see if we've already transformed this op into the
+                    // desired context, in this call or an earlier one
+                    Operation memoized = null;
+                    boolean found = false;
+                    if (memo != null) {
+                        TransformKey key = new TransformKey(prevOperation,
+                                f.op.getClientState());
+                        if (memo.containsKey(key)) {
+                            memoized = memo.get(key);
+                            found = true;
+                            this.lastMemoHits++;
+                        }
                     }
-                    prevCachedOperation = this.fullTransform(prevOperation,
-                            previousStateDifference);
-                    if (prevCachedOperation == null) {
-                        op.upgradeContextTo(prevOperation);
+                    if (!found) {
+                        memoized = this.transformCache.get(prevOperation,
+                                f.op.getClientState());
+                        found = memoized != null;
+                    }
+                    if (!found) {
+                        // transform needed to update the state of
+                        // prevOperation to the current op's first
+                        Operation[] previous = this.historybuffer
+                                .getOpsForDifference(f.op.getClientState(),
+                                        prevOperation.getClientState());
+                        if (previous.length == 0) {
+                            throw new OperationEngineException(
+                                    "transform produced empty StateDifference");
+                        }
+                        stack.add(new TransformFrame(prevOperation.copy(),
+                                previous));
+                        depth = Math.max(depth, stack.size());
                         continue;
                     }
-                    // now we only need the cachedOperation
-                    prevOperation = prevCachedOperation;
+                    if (memoized == null) {
+                        f.op.upgradeContextTo(prevOperation);
+                        f.index++;
+                        continue;
+                    }
+                    prevOperation = memoized;
                 }
             }
-            if (!op.getClientState().equals(prevOperation.getClientState())) {
+
+            if (!f.op.getClientState().equals(prevOperation.getClientState())) {
                 throw new OperationEngineException(
                         "ClientStates not convergent after updating");
             }
+            if (++steps > this.transformStepLimit) {
+                this.recordTransform(steps, depth);
+                throw new OperationEngineException("transform of op "
+                        + op.getSiteId() + "," + op.getSeqId()
+                        + " exceeded " + this.transformStepLimit + " steps");
+            }
+
             // make a copy of the op as is before transform
-            cachedOperation = op.copy();
+            Operation cachedOperation = f.op.copy();
             // transform op to include previousOperation now that ClientStates
             // match
-            op = op.transformWith(prevOperation);
-            if (op == null) {
-                // op target was deleted by another earlier op so return now
-                // do not continue because no further transforms have any
-                // meaning on this op
-                return null;
+            f.op = f.op.transformWith(prevOperation);
+            if (f.op == null) {
+                // op target was deleted by another earlier op so this frame
+                // is done, no further transforms have any meaning on this op
+                result = null;
+                stack.remove(stack.size() - 1);
+                if (stack.isEmpty()) {
+                    break;
+                }
+                returning = true;
+                continue;
             }
             // cache the transformed op
-            op.addToCache(this.siteCount);
+            this.transformCache.put(f.op);
 
             prevOperation = prevOperation.copy();
             prevOperation = prevOperation.transformWith(cachedOperation);
             if (prevOperation != null) {
-                prevOperation.addToCache(this.siteCount);
+                this.transformCache.put(prevOperation);
             }
+            f.index++;
         }
-        return op;
+
+        this.recordTransform(steps, depth);
+        return result;
+    }
+
+    /**
+     * Records the cost of the last call to fullTransform.
+     * 
+     * @param steps
+     *            number of transform steps taken
+     * @param depth
+     *            deepest nesting of the work stack
+     */
+    private void recordTransform(int steps, int depth) {
+        this.lastTransformSteps = steps;
+        this.lastTransformDepth = depth;
+        this.maxTransformDepth = Math.max(this.maxTransformDepth, depth);
+    }
+
+    /**
+     * @return Number of transform steps taken by the last pushRemoteOp, 0 if
+     *         it needed no transform
+     */
+    public int getLastTransformSteps() {
+        return this.lastTransformSteps;
+    }
+
+    /**
+     * @return Deepest nesting of the transform work stack in the last
+     *         pushRemoteOp, 0 if it needed no transform
+     */
+    public int getLastTransformDepth() {
+        return this.lastTransformDepth;
+    }
+
+    /**
+     * @return Deepest nesting of the transform work stack over the life of
+     *         this engine
+     */
+    public int getMaxTransformDepth() {
+        return this.maxTransformDepth;
+    }
+
+    /**
+     * @return Number of inner transforms the last pushRemoteOp reused instead
+     *         of computing them again
+     */
+    public int getLastMemoHits() {
+        return this.lastMemoHits;
+    }
+
+    /**
+     * Gets the cache of transformed operations, e.g. to read its hit and miss
+     * counters.
+     * 
+     * @return the transform cache of this engine
+     */
+    public TransformCache getTransformCache() {
+        return this.transformCache;
+    }
+
+    /**
+     * Sets how much memory the cache of transformed operations may use. See
+     * TransformCache.DEFAULT_BUDGET.
+     * 
+     * @param bytes
+     *            estimated bytes, 0 disables the cache
+     */
+    public void setTransformCacheBudget(long bytes) {
+        this.transformCache.setBudget(bytes);
+    }
+
+    /**
+     * Sets the maximum number of transform steps a single pushRemoteOp may
+     * take. See DEFAULT_TRANSFORM_STEP_LIMIT.
+     * 
+     * @param limit
+     *            requires > 0
+     */
+    public void setTransformStepLimit(int limit) {
+        this.transformStepLimit = limit;
+    }
+
+    /**
+     * Gives the benchmarks in this package access to the history, so they
+     * can look operations up the way the engine does and undo a push between
+     * measurements. Not meant for anything else.
+     * 
+     * @return the history buffer of this engine
+     */
+    HistoryBuffer getHistoryBuffer() {
+        return this.historybuffer;
     }
 
     /**
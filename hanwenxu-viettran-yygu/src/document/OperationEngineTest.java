@@ -1,9 +1,15 @@
 package document;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Test;
 
 /**
@@ -809,4 +815,229 @@ public class OperationEngineTest {
     
     
     
+    /**
+     * This will test acknowledgement driven garbage collection at the server.
+     * Client 1 inserts "a" while client 2 concurrently inserts "b". Client 1
+     * acknowledges before it has seen "b", so "a" has been seen everywhere but
+     * must still be kept: the server needs it to transform "b" for client 1's
+     * next operation. Once everybody has acknowledged everything, the history
+     * should be empty.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void garbageCollectionTest1() throws OperationEngineException {
+        OperationEngine oes = new OperationEngine(0);
+        OperationEngine oe1 = new OperationEngine(1);
+        OperationEngine oe2 = new OperationEngine(2);
+        int[] temp = new int[0];
+        int order = 0;
+
+        // both clients join with the server's (empty) state
+        oes.acknowledge(1, oes.copyClientState());
+        oes.acknowledge(2, oes.copyClientState());
+        assertEquals(oes.collectGarbage(), 0);
+
+        Operation x = oe1.push(true, "document", "a", "insert", 0, 1, temp, 0);
+        Operation h = oe2.push(true, "document", "b", "insert", 0, 2, temp, 0);
+        x.setOrder(order++);
+        h.setOrder(order++);
+        oes.pushRemoteOp(x);
+        assertEquals(oes.pushRemoteOp(h).getPosition(), 0);
+        assertEquals(oe2.pushRemoteOp(x).getPosition(), 1);
+
+        oes.acknowledge(1, oe1.copyClientState());
+        oes.acknowledge(2, oe2.copyClientState());
+        assertEquals(oes.collectGarbage(), 0);
+        assertEquals(oes.getRetainedOperationCount(), 2);
+
+        // needs "a" to bring "b" into its context
+        Operation y = oe1.push(true, "document", "c", "insert", 1, 1, temp, 0);
+        y.setOrder(order++);
+        assertEquals(oes.pushRemoteOp(y).getPosition(), 2);
+        assertEquals(oe1.pushRemoteOp(h).getPosition(), 0);
+        assertEquals(oe2.pushRemoteOp(y).getPosition(), 2);
+
+        oes.acknowledge(1, oe1.copyClientState());
+        oes.acknowledge(2, oe2.copyClientState());
+        assertEquals(oes.collectGarbage(), 3);
+        assertEquals(oes.getRetainedOperationCount(), 0);
+        assertTrue(oes.getReclaimedBytes() > 0);
+
+        // a new operation still transforms fine against an empty history
+        Operation z = oe2.push(true, "document", "d", "insert", 3, 2, temp, 0);
+        z.setOrder(order++);
+        assertEquals(oes.pushRemoteOp(z).getPosition(), 3);
+    }
+
+    /**
+     * This will test that a site that never acknowledges holds back garbage
+     * collection, until it is removed.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void garbageCollectionTest2() throws OperationEngineException {
+        OperationEngine oes = new OperationEngine(0);
+        OperationEngine oe1 = new OperationEngine(1);
+        int[] temp = new int[0];
+
+        oes.acknowledge(1, oes.copyClientState());
+        oes.acknowledge(2, oes.copyClientState());
+
+        Operation x = oe1.push(true, "document", "a", "insert", 0, 1, temp, 0);
+        x.setOrder(0);
+        oes.pushRemoteOp(x);
+        oes.acknowledge(1, oe1.copyClientState());
+        assertEquals(oes.collectGarbage(), 0);
+
+        oes.removeSite(2);
+        assertEquals(oes.collectGarbage(), 1);
+        assertEquals(oes.getBufferSize(), 0);
+    }
+
+    /**
+     * This will test giving the site ID of a site that left to a new site.
+     * The ID can't be given while another site has not acknowledged the
+     * operations of the old site. The new site starts from the server's state,
+     * so its operations follow the ones of the old site.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void siteRecyclingTest1() throws OperationEngineException {
+        OperationEngine oes = new OperationEngine(0);
+        OperationEngine oe1 = new OperationEngine(1);
+        OperationEngine oe2 = new OperationEngine(2);
+        int[] temp = new int[0];
+
+        oes.acknowledge(1, oes.copyClientState());
+        oes.acknowledge(2, oes.copyClientState());
+        Operation x = oe1.push(true, "document", "a", "insert", 0, 1, temp, 0);
+        x.setOrder(0);
+        oes.pushRemoteOp(x);
+        oes.removeSite(1);
+        assertFalse(oes.isAcknowledged(1));
+
+        oe2.pushRemoteOp(x);
+        oes.acknowledge(2, oe2.copyClientState());
+        assertTrue(oes.isAcknowledged(1));
+
+        // a new site 1 joins with the server's state
+        OperationEngine oe3 = new OperationEngine(1);
+        oe3.setCV(oes.copyClientState());
+        oes.acknowledge(1, oes.copyClientState());
+        Operation y = oe3.push(true, "document", "b", "insert", 1, 1, temp, 0);
+        assertEquals(y.getSeqId(), 2);
+        y.setOrder(1);
+        assertEquals(oes.pushRemoteOp(y).getPosition(), 1);
+        assertFalse(oes.isAcknowledged(1));
+        assertFalse(oe2.hasProcessedOp(y));
+        assertEquals(oe2.pushRemoteOp(y).getPosition(), 1);
+    }
+
+    /**
+     * This will test the transform counters, and that an operation needing
+     * more transform steps than the limit is refused.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void transformCounterTest1() throws OperationEngineException {
+        OperationEngine oes = new OperationEngine(0);
+        OperationEngine oe1 = new OperationEngine(1);
+        OperationEngine oe2 = new OperationEngine(2);
+        OperationEngine oe3 = new OperationEngine(3);
+        int[] temp = new int[0];
+
+        Operation x = oe1.push(true, "document", "a", "insert", 0, 1, temp, 0);
+        Operation h = oe2.push(true, "document", "b", "insert", 0, 2, temp, 0);
+        Operation k = oe3.push(true, "document", "c", "insert", 0, 3, temp, 0);
+        x.setOrder(0);
+        h.setOrder(1);
+        k.setOrder(2);
+
+        oes.pushRemoteOp(x);
+        assertEquals(oes.getLastTransformSteps(), 0);
+        assertEquals(oes.getLastTransformDepth(), 0);
+
+        assertEquals(oes.pushRemoteOp(h).getPosition(), 0);
+        assertEquals(oes.getLastTransformSteps(), 1);
+        assertEquals(oes.getLastTransformDepth(), 1);
+
+        // k has to include both x and h
+        oes.setTransformStepLimit(1);
+        try {
+            oes.pushRemoteOp(k);
+            fail("expected the step limit to be exceeded");
+        } catch (OperationEngineException e) {
+            assertEquals(oes.getLastTransformSteps(), 2);
+        }
+        assertEquals(oes.getBufferSize(), 2);
+
+        oes.setTransformStepLimit(OperationEngine.DEFAULT_TRANSFORM_STEP_LIMIT);
+        assertEquals(oes.pushRemoteOp(k).getPosition(), 0);
+        assertEquals(oes.getLastTransformSteps(), 2);
+        assertTrue(oes.getMaxTransformDepth() >= 1);
+    }
+
+    /**
+     * This will test that pushing a list of remote operations at once gives
+     * the same transformed operations as pushing them one at a time, while
+     * computing fewer context differences.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void pushRemoteOpsTest1() throws OperationEngineException {
+        OperationEngine oe1 = new OperationEngine(1);
+        OperationEngine oe2 = new OperationEngine(2);
+        OperationEngine one = new OperationEngine(3);
+        OperationEngine batch = new OperationEngine(3);
+        int[] temp = new int[0];
+
+        // site 3 typed "xyz" while it was cut off
+        one.push(true, "document", "xyz", "insert", 0, 3, temp, 0);
+        batch.push(true, "document", "xyz", "insert", 0, 3, temp, 0);
+
+        // meanwhile site 1 typed "abcd" one letter at a time, and site 2
+        // deleted the "b"
+        List<Operation> ops = new ArrayList<Operation>();
+        int order = 0;
+        for (int i = 0; i < 4; i++) {
+            Operation op = oe1.push(true, "document",
+                    String.valueOf((char) ('a' + i)), "insert", i, 1, temp, 0);
+            op.setOrder(order++);
+            ops.add(op);
+        }
+        for (Operation op : ops) {
+            oe2.pushRemoteOp(op);
+        }
+        Operation del = oe2.push(true, "document", "b", "delete", 1, 2, temp,
+                0);
+        del.setOrder(order++);
+        ops.add(del);
+
+        List<Operation> expected = new ArrayList<Operation>();
+        for (Operation op : ops) {
+            expected.add(one.pushRemoteOp(op));
+        }
+        List<Operation> tops = batch.pushRemoteOps(ops);
+
+        assertEquals(tops.size(), expected.size());
+        for (int i = 0; i < tops.size(); i++) {
+            assertEquals(tops.get(i).getPosition(), expected.get(i)
+                    .getPosition());
+            assertEquals(tops.get(i).getLength(), expected.get(i).getLength());
+        }
+        // "xyz" was inserted first at 0, then the letters after it
+        assertEquals(tops.get(0).getPosition(), 3);
+        assertEquals(tops.get(3).getPosition(), 6);
+        assertEquals(tops.get(4).getPosition(), 4);
+        // one difference for site 1's run, one for site 2's delete
+        assertEquals(batch.getDifferencesComputed(), 2);
+        assertEquals(batch.copyClientState().toString(), one
+                .copyClientState().toString());
+    }
+
 }
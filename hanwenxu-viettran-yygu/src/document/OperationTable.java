@@ -0,0 +1,268 @@
+package document;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from packed (siteId, seqId) history keys to operations. This
+ * is what the HistoryBuffer stores its operations in.
+ *
+ * We used a HashMap<String, Operation> before, but that meant building a key
+ * string (and boxing two Integers) for every insert and for every lookup of a
+ * context difference, which showed up in profiles whenever many sites type at
+ * once. Keys here are the longs made by Operation.createPackedHistoryKey, and
+ * the table uses open addressing with linear probing over two parallel
+ * arrays, so a lookup doesn't allocate anything.
+ *
+ * Removal uses backward shift deletion instead of tombstones, so the table
+ * never needs to be cleaned up after many removals.
+ *
+ * Thread safety argument: like the HistoryBuffer that owns it, this table is
+ * only ever accessed by the one thread running its OperationEngine.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class OperationTable {
+
+    /**
+     * Initial capacity of the arrays. Has to be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The arrays are grown when size exceeds this fraction of the capacity.
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * Packed keys. A slot is empty if and only if its value is null, since
+     * every long (including 0) is a valid key.
+     */
+    private long[] keys;
+
+    /**
+     * Operations, parallel to keys
+     */
+    private Operation[] values;
+
+    /**
+     * Number of operations stored
+     */
+    private int size;
+
+    /**
+     * Size at which the arrays are grown
+     */
+    private int threshold;
+
+    /**
+     * Creates an empty table.
+     */
+    public OperationTable() {
+        this.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates new, empty arrays of the given capacity.
+     *
+     * @param capacity
+     *            requires to be a power of two
+     */
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Operation[capacity];
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+        this.size = 0;
+    }
+
+    /**
+     * Spreads the bits of a key over the whole long, then picks a slot. Site
+     * and sequence numbers are small consecutive integers, so without mixing
+     * they would all hash to the same few slots.
+     *
+     * @param key
+     *            packed key
+     * @param mask
+     *            capacity - 1
+     * @return slot index
+     */
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return (int) h & mask;
+    }
+
+    /**
+     * @return Number of operations stored
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Gets the operation stored under the given key.
+     *
+     * @param key
+     *            packed key
+     * @return Operation, or null if there is none
+     */
+    public Operation get(long key) {
+        int mask = this.keys.length - 1;
+        int i = slot(key, mask);
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                return this.values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Stores an operation under the given key, replacing any operation that
+     * was stored there.
+     *
+     * @param key
+     *            packed key
+     * @param op
+     *            Operation, requires != null
+     * @return the operation previously stored under key, or null
+     */
+    public Operation put(long key, Operation op) {
+        int mask = this.keys.length - 1;
+        int i = slot(key, mask);
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                Operation old = this.values[i];
+                this.values[i] = op;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = op;
+        if (++this.size > this.threshold) {
+            this.rehash(this.keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the operation stored under the given key. The entries following
+     * it in its probe run are shifted back so that no tombstone is needed.
+     *
+     * @param key
+     *            packed key
+     * @return the removed operation, or null if there was none
+     */
+    public Operation remove(long key) {
+        int mask = this.keys.length - 1;
+        int i = slot(key, mask);
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                Operation old = this.values[i];
+                this.shiftBack(i, mask);
+                --this.size;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Fills the hole at index gap by moving back any later entry of the same
+     * probe run whose home slot is not between the gap and its position.
+     *
+     * @param gap
+     *            index of the entry being removed
+     * @param mask
+     *            capacity - 1
+     */
+    private void shiftBack(int gap, int mask) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (this.values[i] == null) {
+                break;
+            }
+            int home = slot(this.keys[i], mask);
+            // distance from home to i, and from home to the gap, going
+            // forward around the table
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                this.keys[gap] = this.keys[i];
+                this.values[gap] = this.values[i];
+                gap = i;
+            }
+        }
+        this.values[gap] = null;
+    }
+
+    /**
+     * Moves every entry into new arrays of the given capacity.
+     *
+     * @param capacity
+     *            requires to be a power of two, larger than size
+     */
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        Operation[] oldValues = this.values;
+        this.allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                this.put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes every operation, keeping the current capacity.
+     */
+    public void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+
+    /**
+     * Copies every stored operation into an array, in no particular order.
+     *
+     * @return new array of length size()
+     */
+    public Operation[] values() {
+        Operation[] arr = new Operation[this.size];
+        int index = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                arr[index++] = this.values[i];
+            }
+        }
+        return arr;
+    }
+
+    /**
+     * Same format as a HashMap keyed by Operation.createHistoryKey, which is
+     * what the HistoryBuffer used to print.
+     */
+    @Override
+    public String toString() {
+        StringBuffer b = new StringBuffer();
+        b.append("{");
+        boolean first = true;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                if (!first) {
+                    b.append(", ");
+                }
+                first = false;
+                long key = this.keys[i];
+                b.append(Operation.createHistoryKey((int) (key >>> 32),
+                        (int) key));
+                b.append("=");
+                b.append(this.values[i]);
+            }
+        }
+        b.append("}");
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,118 @@
+package document;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * This will test the OperationTable used by the HistoryBuffer. Our testing
+ * strategy is to test each method on small tables, and then to run a long
+ * random sequence of puts and removes against a HashMap, which covers growing
+ * the table and shifting entries back after removals.
+ * 
+ * @author Hanwen Xu
+ * 
+ */
+public class OperationTableTest {
+
+    /**
+     * Makes an insert operation with the given site and sequence numbers.
+     */
+    private static Operation makeOp(int site, int seq)
+            throws OperationEngineException {
+        HashMap<String, Object> properties = new HashMap<String, Object>();
+        properties.put("siteId", site);
+        properties.put("seqId", seq);
+        properties.put("key", "document");
+        properties.put("value", "a");
+        properties.put("position", 0);
+        properties.put("contextVector", ClientState.withSize(site + 1));
+        properties.put("local", false);
+        return Operation.createOperationFromType("insert", properties);
+    }
+
+    /**
+     * This will test the empty table, and the toString format, which has to
+     * match the HashMap the HistoryBuffer used to print.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void OperationTableTest1() throws OperationEngineException {
+        OperationTable table = new OperationTable();
+        assertEquals(table.size(), 0);
+        assertEquals(table.toString(), "{}");
+        assertNull(table.get(Operation.createPackedHistoryKey(0, 0)));
+        assertNull(table.remove(Operation.createPackedHistoryKey(0, 0)));
+        assertEquals(table.values().length, 0);
+    }
+
+    /**
+     * This will test put, get and remove with normal input, including key 0
+     * and replacing an existing key.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void OperationTableTest2() throws OperationEngineException {
+        OperationTable table = new OperationTable();
+        Operation op1 = makeOp(0, 0);
+        Operation op2 = makeOp(3, 7);
+        Operation op3 = makeOp(3, 7);
+        long key1 = Operation.createPackedHistoryKey(0, 0);
+        long key2 = Operation.createPackedHistoryKey(3, 7);
+
+        assertNull(table.put(key1, op1));
+        assertNull(table.put(key2, op2));
+        assertSame(table.put(key2, op3), op2);
+        assertEquals(table.size(), 2);
+        assertSame(table.get(key1), op1);
+        assertSame(table.get(key2), op3);
+        assertNull(table.get(Operation.createPackedHistoryKey(7, 3)));
+
+        assertSame(table.remove(key1), op1);
+        assertNull(table.get(key1));
+        assertEquals(table.size(), 1);
+        assertEquals(table.toString(), "{3,7=" + op3 + "}");
+
+        table.clear();
+        assertEquals(table.size(), 0);
+        assertNull(table.get(key2));
+    }
+
+    /**
+     * This will run a long random sequence of puts and removes, and check the
+     * table against a HashMap after every step.
+     * 
+     * @throws OperationEngineException
+     */
+    @Test
+    public void OperationTableTest3() throws OperationEngineException {
+        OperationTable table = new OperationTable();
+        HashMap<Long, Operation> expected = new HashMap<Long, Operation>();
+        Random random = new Random(6005);
+
+        for (int i = 0; i < 20000; i++) {
+            int site = random.nextInt(8);
+            int seq = random.nextInt(500);
+            long key = Operation.createPackedHistoryKey(site, seq);
+            if (random.nextInt(3) == 0) {
+                assertSame(expected.remove(key), table.remove(key));
+            } else {
+                Operation op = makeOp(site, seq);
+                assertSame(expected.put(key, op), table.put(key, op));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (Long key : expected.keySet()) {
+            assertSame(expected.get(key), table.get(key.longValue()));
+        }
+        assertEquals(table.values().length, expected.size());
+    }
+
+}
@@ -352,4 +352,126 @@ public class OperationTest {
         
     }
 
+    /**
+     * The typed factory should build the same operation as the property map
+     * constructor.
+     * @throws OperationEngineException
+     */
+    @Test
+    public void OperationTest7() throws OperationEngineException{
+        int[] state = { 1, 0, 1, 3, 0 };
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("siteId", 1);
+        properties.put("key", "document");
+        properties.put("value", "hello world");
+        properties.put("position", 5);
+        properties.put("contextVector", ClientState.fromArray(state.clone()));
+        properties.put("seqId", 10);
+        properties.put("order", 0);
+        properties.put("local", false);
+        Operation op = Operation.createOperationFromType("delete", properties);
+
+        Operation op1 = Operation.create(OpType.DELETE, "document",
+                "hello world", 5, 1, 10, ClientState.fromArray(state.clone()),
+                0, false);
+
+        assertEquals(op1.getOpType(), OpType.DELETE);
+        assertEquals(op1.getType(), "delete");
+        assertTrue(op1 instanceof DeleteOperation);
+        assertEquals(op1.toString(), op.toString());
+        assertEquals(OpType.fromName("insert"), OpType.INSERT);
+        assertNull(OpType.fromName("bold"));
+    }
+
+    /**
+     * A copy shares the strings with the original, but transforming it or
+     * upgrading its context must not change the original.
+     * @throws OperationEngineException
+     */
+    @Test
+    public void OperationTest8() throws OperationEngineException{
+        int[] state = { 1, 0, 1 };
+        Operation op = Operation.create(OpType.INSERT, "document", "abc", 2,
+                0, 2, ClientState.fromArray(state), 7, true);
+        Operation other = Operation.create(OpType.INSERT, "document", "xy",
+                0, 1, 1, ClientState.fromArray(new int[] { 1, 0, 1 }), 6,
+                false);
+        op.setImmutable(true);
+
+        Operation cop = op.copy();
+        assertTrue(cop != op);
+        assertTrue(cop.getValue() == op.getValue());
+        assertTrue(cop.getKey() == op.getKey());
+        assertEquals(cop.getOrder(), 7);
+        assertEquals(cop.getSeqId(), 2);
+
+        assertTrue(cop.transformWith(other) == cop);
+        assertEquals(cop.getPosition(), 4);
+        assertEquals(cop.getClientState().toString(), "[1, 1, 1]");
+        assertEquals(op.getPosition(), 2);
+        assertEquals(op.getClientState().toString(), "[1, 0, 1]");
+    }
+
+    /**
+     * A delete of a range should be trimmed by an overlapping delete, and
+     * split by an insert inside it.
+     * @throws OperationEngineException
+     */
+    @Test
+    public void OperationTest9() throws OperationEngineException{
+        // "0123456789", delete "2345678"
+        DeleteOperation d = Operation.createDelete("document", 2, 7, 1, 1,
+                ClientState.withSize(3), 0, false);
+        assertNull(d.getValue());
+        assertEquals(d.getLength(), 7);
+
+        // concurrently insert "xy" between 4 and 5: delete "234" and "5678"
+        Operation ins = Operation.create(OpType.INSERT, "document", "xy", 5,
+                2, 1, ClientState.withSize(3), 1, false);
+        Operation d1 = d.copy().include(ins);
+        assertArrayEquals(((DeleteOperation) d1).getRanges(), new int[] { 2, 3,
+                7, 4 });
+        assertEquals(d1.getPosition(), 2);
+        assertEquals(d1.getLength(), 7);
+        // the original is left alone
+        assertArrayEquals(d.getRanges(), new int[] { 2, 7 });
+
+        // concurrently delete "0123": "45678" is left, at 0
+        DeleteOperation other = Operation.createDelete("document", 0, 4, 2, 1,
+                ClientState.withSize(3), 1, false);
+        Operation d2 = d.copy().include(other);
+        assertArrayEquals(((DeleteOperation) d2).getRanges(), new int[] { 0, 5 });
+
+        // the split delete, against a delete of "4xy5": ranges touch again
+        DeleteOperation middle = Operation.createDelete("document", 4, 4, 2, 2,
+                ClientState.withSize(3), 2, false);
+        Operation d3 = d1.copy().include(middle);
+        assertArrayEquals(((DeleteOperation) d3).getRanges(), new int[] { 2, 5 });
+
+        // a delete covering ours cancels it
+        DeleteOperation all = Operation.createDelete("document", 0, 10, 2, 1,
+                ClientState.withSize(3), 1, false);
+        assertNull(d.copy().include(all));
+    }
+
+    /**
+     * An insert should move to where a concurrent delete was if it was
+     * inside the deleted range, and back by the length if it was after it.
+     * @throws OperationEngineException
+     */
+    @Test
+    public void OperationTest10() throws OperationEngineException{
+        DeleteOperation d = Operation.createDelete("document", 2, 5, 1, 1,
+                ClientState.withSize(3), 0, false);
+        Operation before = Operation.create(OpType.INSERT, "document", "x", 2,
+                2, 1, ClientState.withSize(3), 1, false);
+        Operation inside = Operation.create(OpType.INSERT, "document", "x", 4,
+                2, 1, ClientState.withSize(3), 1, false);
+        Operation after = Operation.create(OpType.INSERT, "document", "x", 9,
+                2, 1, ClientState.withSize(3), 1, false);
+        assertEquals(before.include(d).getPosition(), 2);
+        assertEquals(inside.include(d).getPosition(), 2);
+        assertEquals(after.include(d).getPosition(), 4);
+    }
+
 }
@@ -102,4 +102,21 @@ public class StateDifference {
         return arr.toArray(strArr);
     }
 
+    /**
+     * Same as getHistoryBufferKeys, but returns the packed keys made by
+     * Operation.createPackedHistoryKey, which is what the HistoryBuffer looks
+     * operations up by. No strings are built.
+     * 
+     * @return Array of packed keys for HistoryBuffer lookups
+     */
+    public long[] getPackedHistoryBufferKeys() {
+        int l = this.clients.size();
+        long[] keys = new long[l];
+        for (int i = 0; i < l; i++) {
+            keys[i] = Operation.createPackedHistoryKey(this.clients
+                    .elementAt(i), this.sequenceID.elementAt(i));
+        }
+        return keys;
+    }
+
 }
@@ -0,0 +1,258 @@
+package document;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers operations that have already been transformed into some context,
+ * so that fullTransform doesn't have to transform them again. An entry maps
+ * an operation, identified by its (siteId, seqId), and a ClientState to a copy
+ * of that operation transformed into that ClientState.
+ *
+ * Each Operation used to carry its own Vector of transformed copies, scanned
+ * linearly with ClientState.equals, and trimmed using a site count that was
+ * always 1, so it either never helped or grew without bound. This cache
+ * belongs to the engine instead. Lookups hash the context, and the cache
+ * keeps an estimate of the memory its entries take, evicting the least
+ * recently used ones when that goes over a budget.
+ *
+ * Thread safety argument: like the OperationEngine that owns it, this cache
+ * is only ever accessed by the one thread running that engine.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class TransformCache {
+
+    /**
+     * Default memory budget, in estimated bytes
+     */
+    public static final long DEFAULT_BUDGET = 4 * 1024 * 1024;
+
+    /**
+     * Estimated bytes taken by an entry on top of its operation: the key, the
+     * map entry and the links of the LRU list.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * Key of an entry: an operation's packed history key and the context it
+     * was transformed into. The context is never mutated once it is in a key.
+     */
+    private static final class Key {
+        private long op;
+        private ClientState context;
+        private int hash;
+
+        private Key set(long op, ClientState context) {
+            this.op = op;
+            this.context = context;
+            this.hash = (int) (op ^ (op >>> 32)) * 31 + context.contextHash();
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return this.op == k.op && this.context.equals(k.context);
+        }
+    }
+
+    /**
+     * Entries, least recently used first
+     */
+    private final LinkedHashMap<Key, Operation> entries = new LinkedHashMap<Key, Operation>(
+            16, 0.75f, true);
+
+    /**
+     * Reused for lookups, so a lookup doesn't allocate a key
+     */
+    private final Key probe = new Key();
+
+    /**
+     * Maximum estimated bytes of all entries
+     */
+    private long budget;
+
+    /**
+     * Estimated bytes of all entries
+     */
+    private long memory = 0;
+
+    /**
+     * Lookups that found a transformed operation
+     */
+    private long hits = 0;
+
+    /**
+     * Lookups that didn't
+     */
+    private long misses = 0;
+
+    /**
+     * Entries dropped to stay within the budget
+     */
+    private long evictions = 0;
+
+    /**
+     * Creates a cache with the default budget.
+     */
+    public TransformCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Creates a cache with the given budget.
+     *
+     * @param budget
+     *            maximum estimated bytes of all entries. 0 disables the cache.
+     */
+    public TransformCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Gets a version of the given operation previously transformed into the
+     * given context if available.
+     *
+     * @param op
+     *            Operation, or any copy of it
+     * @param cv
+     *            Context of the transformed op to seek, not modified
+     * @throws OperationEngineException
+     * @return Copy of the transformed operation from the cache or null if not
+     *         found in the cache
+     */
+    public Operation get(Operation op, ClientState cv)
+            throws OperationEngineException {
+        Operation xop = this.entries.get(this.probe.set(
+                Operation.createPackedHistoryKey(op.siteId, op.seqId), cv));
+        this.probe.context = null;
+        if (xop == null) {
+            ++this.misses;
+            return null;
+        }
+        ++this.hits;
+        return xop.copy();
+    }
+
+    /**
+     * Caches a copy of an operation in its current context. Evicts the least
+     * recently used entries if needed to stay within the budget.
+     *
+     * @param op
+     *            transformed Operation, not modified
+     * @throws OperationEngineException
+     */
+    public void put(Operation op) throws OperationEngineException {
+        long size = ENTRY_OVERHEAD + op.estimateSize();
+        if (size > this.budget) {
+            return;
+        }
+
+        Operation cop = op.copy();
+        cop.immutable = true;
+        Key key = new Key().set(
+                Operation.createPackedHistoryKey(op.siteId, op.seqId),
+                cop.clientState);
+        Operation old = this.entries.put(key, cop);
+        if (old != null) {
+            this.memory -= ENTRY_OVERHEAD + old.estimateSize();
+        }
+        this.memory += size;
+        this.evict();
+    }
+
+    /**
+     * Drops least recently used entries until the estimated memory is within
+     * the budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, Operation>> it = this.entries.entrySet()
+                .iterator();
+        while (this.memory > this.budget && it.hasNext()) {
+            Operation old = it.next().getValue();
+            it.remove();
+            this.memory -= ENTRY_OVERHEAD + old.estimateSize();
+            ++this.evictions;
+        }
+    }
+
+    /**
+     * Removes every entry. The counters are kept.
+     */
+    public void clear() {
+        this.entries.clear();
+        this.memory = 0;
+    }
+
+    /**
+     * Changes the memory budget, evicting entries if it shrank.
+     *
+     * @param budget
+     *            maximum estimated bytes of all entries. 0 disables the cache.
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        this.evict();
+    }
+
+    /**
+     * @return maximum estimated bytes of all entries
+     */
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * @return estimated bytes of all entries
+     */
+    public long getMemory() {
+        return this.memory;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return number of lookups that found a transformed operation
+     */
+    public long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return number of lookups that didn't find a transformed operation
+     */
+    public long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return number of entries dropped to stay within the budget
+     */
+    public long getEvictions() {
+        return this.evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "{size : " + this.entries.size() + ",memory : " + this.memory
+                + ",budget : " + this.budget + ",hits : " + this.hits
+                + ",misses : " + this.misses + ",evictions : "
+                + this.evictions + "}";
+    }
+}
@@ -0,0 +1,148 @@
+package document;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * This will test the TransformCache.
+ *
+ * Testing strategy: cache transformed copies of a few operations, then look
+ * them up by the same context, by an equal context of a different size, and
+ * by a different context. Check the counters, that the least recently used
+ * entry goes first when the budget is exceeded, and that the cache hands out
+ * copies, so changing what it returns doesn't change the cache.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class TransformCacheTest {
+
+    /**
+     * Makes an insert of "a" by the given site in the given context.
+     */
+    private static Operation op(int site, int seq, int[] cv) {
+        return Operation.create(OpType.INSERT, "document", "a", 0, site, seq,
+                ClientState.fromArray(cv), 0, false);
+    }
+
+    /**
+     * Lookups should find an op by its site, sequence number and context.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void TransformCacheTest1() throws OperationEngineException {
+        TransformCache cache = new TransformCache();
+        Operation x = op(1, 1, new int[] { 0, 0, 1 });
+        Operation xop = op(1, 1, new int[] { 0, 0, 1 });
+        xop.position = 5;
+        cache.put(xop);
+
+        Operation found = cache.get(x, ClientState.fromArray(new int[] { 0, 0,
+                1, 0 }));
+        assertEquals(found.getPosition(), 5);
+        assertNull(cache.get(x, ClientState.fromArray(new int[] { 0, 1, 1 })));
+        assertNull(cache.get(op(2, 1, new int[0]),
+                ClientState.fromArray(new int[] { 0, 0, 1 })));
+        assertEquals(cache.getHits(), 1);
+        assertEquals(cache.getMisses(), 2);
+        assertEquals(cache.size(), 1);
+
+        // the cache gives out copies
+        found.position = 7;
+        found.upgradeContextTo(op(1, 2, new int[0]));
+        assertEquals(cache.get(x, ClientState.fromArray(new int[] { 0, 0, 1 }))
+                .getPosition(), 5);
+    }
+
+    /**
+     * The least recently used entry should be evicted first.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void TransformCacheTest2() throws OperationEngineException {
+        TransformCache cache = new TransformCache();
+        Operation a = op(1, 1, new int[] { 0, 0 });
+        Operation b = op(1, 2, new int[] { 0, 1 });
+        Operation c = op(2, 1, new int[] { 0, 2 });
+        cache.put(a);
+        cache.put(b);
+        long two = cache.getMemory();
+        assertTrue(two > 0);
+
+        // touch a, so b is the least recently used
+        assertTrue(cache.get(a, a.getClientState()) != null);
+        cache.setBudget(two);
+        cache.put(c);
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.getEvictions(), 1);
+        assertTrue(cache.getMemory() <= two);
+        assertNull(cache.get(b, b.getClientState()));
+        assertTrue(cache.get(a, a.getClientState()) != null);
+        assertTrue(cache.get(c, c.getClientState()) != null);
+
+        // putting the same entry again doesn't count it twice
+        long before = cache.getMemory();
+        cache.put(c);
+        assertEquals(cache.getMemory(), before);
+    }
+
+    /**
+     * A budget of 0 disables the cache.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void TransformCacheTest3() throws OperationEngineException {
+        TransformCache cache = new TransformCache();
+        Operation a = op(1, 1, new int[] { 0, 0 });
+        cache.put(a);
+        cache.setBudget(0);
+        assertEquals(cache.size(), 0);
+        assertEquals(cache.getMemory(), 0);
+        cache.put(a);
+        assertNull(cache.get(a, a.getClientState()));
+    }
+
+    /**
+     * The engine should find transforms it did for an earlier operation.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void TransformCacheTest4() throws OperationEngineException {
+        OperationEngine oes = new OperationEngine(0);
+        OperationEngine oe1 = new OperationEngine(1);
+        OperationEngine oe2 = new OperationEngine(2);
+        OperationEngine oe3 = new OperationEngine(3);
+        int[] temp = new int[0];
+
+        Operation x = oe1.push(true, "document", "a", "insert", 0, 1, temp, 0);
+        Operation h = oe2.push(true, "document", "b", "insert", 0, 2, temp, 0);
+        Operation k = oe3.push(true, "document", "c", "insert", 0, 3, temp, 0);
+        x.setOrder(0);
+        h.setOrder(1);
+        k.setOrder(2);
+        oes.pushRemoteOp(x);
+        oes.pushRemoteOp(h);
+        assertEquals(oes.getTransformCache().getHits(), 0);
+
+        // k needs h in the context after x, which was cached for h
+        assertEquals(oes.pushRemoteOp(k).getPosition(), 0);
+        assertEquals(oes.getTransformCache().getHits(), 1);
+        assertEquals(oes.getLastTransformDepth(), 1);
+
+        // without the cache, the same transform takes a nested step
+        OperationEngine oen = new OperationEngine(0);
+        oen.setTransformCacheBudget(0);
+        oen.pushRemoteOp(x);
+        oen.pushRemoteOp(h);
+        assertEquals(oen.pushRemoteOp(k).getPosition(), 0);
+        assertEquals(oen.getLastTransformDepth(), 2);
+        assertEquals(oen.getTransformCache().getHits(), 0);
+    }
+}
@@ -29,7 +29,16 @@ public class UpdateOperation extends Operation {
     protected UpdateOperation(Map<String, Object> args)
             throws OperationEngineException {
         super(args);
-        this.type = "update";
+        this.type = OpType.UPDATE;
+    }
+
+    /**
+     * Constructor used by Operation.create, which documents the parameters.
+     */
+    UpdateOperation(int siteId, int seqId, ClientState clientState, String key,
+            String value, int position, long order, boolean local) {
+        super(siteId, seqId, clientState, key, value, position, order, local);
+        this.type = OpType.UPDATE;
     }
 
     /**
@@ -80,11 +89,11 @@ public class UpdateOperation extends Operation {
         if (!this.key.equals(op.key)) {
             return this;
         }
-        if (this.position > op.position) {
-            this.position -= op.value.length();
-        } else if (this.position == op.position) {
+        DeleteOperation delete = (DeleteOperation) op;
+        if (delete.covers(this.position)) {
             return null;
         }
+        this.position = delete.map(this.position);
         return this;
     }
 
@@ -2,6 +2,8 @@ package model;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JTextPane;
 import javax.swing.SwingUtilities;
@@ -13,6 +15,7 @@ import javax.swing.text.SimpleAttributeSet;
 import server_client.CollabInterface;
 
 import document.ClientState;
+import document.DeleteOperation;
 import document.Operation;
 import document.OperationEngine;
 import document.OperationEngineException;
@@ -62,11 +65,6 @@ public class CollabModel extends DefaultStyledDocument {
      */
     private final static String INSERT = "insert";
     
-    /**
-     * permanent string, no more magic string
-     */
-    private final static String DELETE = "delete";
-    
     /**
      * Local pointer, for making sure remote changes don't get retransmitted
      */
@@ -77,6 +75,25 @@ public class CollabModel extends DefaultStyledDocument {
      */
     private int siteID;
 
+    /**
+     * Merges local keystrokes into fewer operations before they are pushed
+     * into the engine by addString and deleteString
+     */
+    private final EditCoalescer coalescer = new EditCoalescer(
+            new EditCoalescer.Sink() {
+                @Override
+                public void insert(int offset, String text)
+                        throws OperationEngineException {
+                    addString(offset, text, new SimpleAttributeSet());
+                }
+
+                @Override
+                public void delete(int offset, int length)
+                        throws OperationEngineException {
+                    deleteString(offset, length, new SimpleAttributeSet());
+                }
+            });
+
     /**
      * This will be deprecated because it lacks connectivity to the
      * mainDocument. This only serves as a testing tool to see if the buffer
@@ -223,12 +240,8 @@ public class CollabModel extends DefaultStyledDocument {
     public Operation deleteString(int offset, int length, int siteID,
             AttributeSet styleOfText) throws OperationEngineException {
         int[] temp = new int[0];
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            sb.append("a");
-        }
-        Operation top = oe.push(true, OPKEY, sb.toString(), DELETE, offset,
-                siteID, temp, 0);
+        Operation top = oe.pushDelete(true, OPKEY, offset, length, siteID,
+                temp, 0);
         buffer.delete(offset, offset+length);
         if (collab != null) {
             try {
@@ -251,12 +264,8 @@ public class CollabModel extends DefaultStyledDocument {
     public void deleteString(int offset, int length, AttributeSet styleOfText)
             throws OperationEngineException {
         int[] temp = new int[0];
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            sb.append("a");
-        }
-        Operation top = oe.push(true, OPKEY, sb.toString(), DELETE, offset,
-                siteID, temp, 0);
+        Operation top = oe.pushDelete(true, OPKEY, offset, length, siteID,
+                temp, 0);
         // buffer.delete(offset, offset+length);
         if (collab != null) {
             try {
@@ -268,6 +277,47 @@ public class CollabModel extends DefaultStyledDocument {
         }
     }
 
+    /**
+     * This is called by the TextChangeListener for a local insert. The insert
+     * may be merged with the following keystrokes before it reaches addString,
+     * see EditCoalescer.
+     * 
+     * @param offset
+     *            offset of the inserted text
+     * @param text
+     *            inserted text
+     * @throws OperationEngineException
+     */
+    public void localInsert(int offset, String text)
+            throws OperationEngineException {
+        coalescer.insert(offset, text);
+    }
+
+    /**
+     * This is called by the TextChangeListener for a local delete. The delete
+     * may be merged with the following keystrokes before it reaches
+     * deleteString, see EditCoalescer.
+     * 
+     * @param offset
+     *            offset of the first deleted character
+     * @param length
+     *            number of deleted characters
+     * @throws OperationEngineException
+     */
+    public void localDelete(int offset, int length)
+            throws OperationEngineException {
+        coalescer.delete(offset, length);
+    }
+
+    /**
+     * Get the coalescer merging local keystrokes
+     * 
+     * @return EditCoalescer of this model
+     */
+    public EditCoalescer getCoalescer() {
+        return coalescer;
+    }
+
     /**
      * This is the remoteInsert function. It will be called by the collabClient
      * 
@@ -286,6 +336,9 @@ public class CollabModel extends DefaultStyledDocument {
             return null;
         if (op.getKey().equals(OPKEY)) {
             //System.out.println("opkey equals");
+            // local edits already in the document must be in the engine
+            // before the remote op is transformed against them
+            coalescer.flush();
             final Operation top = oe.pushRemoteOp(op);
             if (top == null) {
                 // System.out.println(siteID+" has received the following operation remotely: null");
@@ -360,6 +413,7 @@ public class CollabModel extends DefaultStyledDocument {
             return null;
         if (op.getKey().equals(OPKEY)) {
             // mainDocument.getCaret().setVisible(true);
+            coalescer.flush();
             final Operation top = oe.pushRemoteOp(op);
             if (top == null) {
                 // System.out.println(siteID+" has received the following operation remotely: null");
@@ -375,14 +429,20 @@ public class CollabModel extends DefaultStyledDocument {
                         mainDocument.setEditable(false);
                         // System.out.println(siteID+" has processed the remote operation: "+top.toString());
                         int offset = top.getPosition();
-                        String value = top.getValue();
+                        // a concurrent insert may have split the delete in
+                        // several ranges, remove them from the last one
+                        int[] ranges = ((DeleteOperation) top).getRanges();
 
                         // buffer.delete(offset, offset+value.length());
                         if (mainDocument != null) {
                             remote = true;
                             try {
-                                mainDocument.getDocument().remove(offset,
-                                        value.length());
+                                for (int i = ranges.length - 2; i >= 0; i -= 2) {
+                                    // each remove fires its own event
+                                    remote = true;
+                                    mainDocument.getDocument().remove(
+                                            ranges[i], ranges[i + 1]);
+                                }
                                 int caretPos = mainDocument.getCaretPosition();
                                 if (offset < caretPos) {
                                     int max = mainDocument.getDocument()
@@ -415,6 +475,165 @@ public class CollabModel extends DefaultStyledDocument {
         }
     }
 
+    /**
+     * Processes several operations received from the server at once, e.g.
+     * after a network stall, and applies them all in a single pass on the
+     * Swing thread. Same as calling remoteInsert or remoteDelete on each of
+     * them, but the engine transforms them as a batch, see
+     * OperationEngine.pushRemoteOps.
+     * 
+     * @param ops
+     *            Operations from the server, in the order they were received.
+     *            Operations for other documents are ignored.
+     * @throws OperationEngineException
+     * @return the transformed operations that were applied
+     */
+    public List<Operation> remoteOps(List<Operation> ops)
+            throws OperationEngineException {
+        ArrayList<Operation> mine = new ArrayList<Operation>(ops.size());
+        for (Operation op : ops) {
+            if (op.getKey() != null && op.getKey().equals(OPKEY)) {
+                mine.add(op);
+            }
+        }
+        if (mine.isEmpty()) {
+            return mine;
+        }
+
+        coalescer.flush();
+        final List<Operation> tops = oe.pushRemoteOps(mine);
+        if (tops.isEmpty() || mainDocument == null) {
+            return tops;
+        }
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    mainDocument.setEditable(false);
+                    try {
+                        for (Operation top : tops) {
+                            applyRemote(top);
+                        }
+                    } catch (BadLocationException e) {
+                        throw new RuntimeException(e);
+                    }
+                    mainDocument.setEditable(true);
+                }
+            });
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+        }
+        return tops;
+    }
+
+    /**
+     * Applies a transformed remote operation to the main document, keeping
+     * the caret where it was relative to the text. Must run on the Swing
+     * thread.
+     * 
+     * @param top
+     *            transformed insert or delete
+     * @throws BadLocationException
+     */
+    private void applyRemote(Operation top) throws BadLocationException {
+        int offset = top.getPosition();
+        if (top instanceof DeleteOperation) {
+            int[] ranges = ((DeleteOperation) top).getRanges();
+            for (int i = ranges.length - 2; i >= 0; i -= 2) {
+                remote = true;
+                mainDocument.getDocument().remove(ranges[i], ranges[i + 1]);
+            }
+        } else {
+            remote = true;
+            mainDocument.getDocument().insertString(offset, top.getValue(),
+                    new SimpleAttributeSet());
+        }
+        int caretPos = mainDocument.getCaretPosition();
+        if (offset < caretPos) {
+            int max = mainDocument.getDocument().getLength();
+            int newpos = Math.min(caretPos, max);
+            newpos = Math.max(0, newpos);
+            mainDocument.setCaretPosition(newpos);
+        }
+    }
+
+    /**
+     * Called when the server says this client fell behind: stops local edits
+     * until reset, then pushes the local edits that are still being merged,
+     * so that they are sent before the answer. In that order, a keystroke
+     * typed in between can't be left in the coalescer.
+     * 
+     * @throws OperationEngineException
+     */
+    public void pause() throws OperationEngineException {
+        if (mainDocument != null) {
+            try {
+                SwingUtilities.invokeAndWait(new Runnable() {
+                    @Override
+                    public void run() {
+                        mainDocument.setEditable(false);
+                    }
+                });
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+        coalescer.flush();
+    }
+
+    /**
+     * Starts over from the text of the document the server sent, after
+     * pause: replaces the text, and the engine with one in the given state,
+     * like when the client joined. Then allows local edits again. An edit
+     * still held by the coalescer was made in the old text, so it is thrown
+     * away rather than pushed to the new engine.
+     * 
+     * @param text
+     *            the text of the document
+     * @param cv
+     *            the ClientState the text corresponds to
+     * @throws OperationEngineException
+     */
+    public void reset(final String text, ClientState cv)
+            throws OperationEngineException {
+        coalescer.discard();
+        this.oe = new OperationEngine(siteID);
+        this.oe.setCV(cv);
+        this.buffer = new StringBuilder(text);
+        if (mainDocument == null) {
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    int caretPos = mainDocument.getCaretPosition();
+                    try {
+                        remote = true;
+                        mainDocument.getDocument().remove(0,
+                                mainDocument.getDocument().getLength());
+                        remote = true;
+                        mainDocument.getDocument().insertString(0, text,
+                                new SimpleAttributeSet());
+                    } catch (BadLocationException e) {
+                        throw new RuntimeException(e);
+                    }
+                    mainDocument.setCaretPosition(Math.min(caretPos,
+                            text.length()));
+                    mainDocument.setEditable(true);
+                }
+            });
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * For debug purposes, we would like to see what the buffer is holding.
      */
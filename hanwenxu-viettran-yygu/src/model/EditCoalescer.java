@@ -0,0 +1,297 @@
+package model;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+import document.OperationEngineException;
+
+/**
+ * Merges a user's consecutive keystrokes into a single operation before they
+ * reach the OperationEngine. Every DocumentEvent used to become its own
+ * operation, with its own history entry, ClientState and network message, so
+ * typing a word sent one operation per letter.
+ *
+ * Edits are held back as one pending insert or one pending delete:
+ *
+ * - an insert right after the pending insert is appended to it
+ *
+ * - a backspace or a forward delete next to the pending delete extends it
+ *
+ * - a backspace over the end of the pending insert trims it
+ *
+ * Anything else flushes the pending edit first. The pending edit is also
+ * flushed once it ends with whitespace (a word boundary), once the window
+ * since its first keystroke has passed, and before a remote operation is
+ * given to the engine. The last one is what keeps the transform correct: the
+ * engine must know about every local edit already in the document before it
+ * transforms a remote operation against the local history.
+ *
+ * Thread safety argument: edits come from the Swing event thread, and the
+ * window timer fires there too, but remote operations flush from the network
+ * thread. Every method that touches the pending edit is synchronized on this
+ * coalescer.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class EditCoalescer {
+
+    /**
+     * Where the merged edits go. CollabModel implements this by pushing the
+     * edits into its OperationEngine and transmitting them.
+     */
+    public interface Sink {
+        /**
+         * @param offset
+         *            position of the insert
+         * @param text
+         *            text inserted
+         * @throws OperationEngineException
+         */
+        void insert(int offset, String text) throws OperationEngineException;
+
+        /**
+         * @param offset
+         *            position of the first deleted character
+         * @param length
+         *            number of characters deleted
+         * @throws OperationEngineException
+         */
+        void delete(int offset, int length) throws OperationEngineException;
+    }
+
+    /**
+     * Default window, in milliseconds
+     */
+    public static final int DEFAULT_WINDOW = 300;
+
+    /**
+     * Where flushed edits go
+     */
+    private final Sink sink;
+
+    /**
+     * Flushes the pending edit when the window has passed. null if the window
+     * is 0, i.e. coalescing is off.
+     */
+    private final Timer timer;
+
+    /**
+     * Text of the pending insert, or null if there is none
+     */
+    private StringBuilder insertText = null;
+
+    /**
+     * Length of the pending delete, 0 if there is none
+     */
+    private int deleteLength = 0;
+
+    /**
+     * Position of the pending insert or delete
+     */
+    private int offset = 0;
+
+    /**
+     * Number of edits given to the coalescer
+     */
+    private long edits = 0;
+
+    /**
+     * Number of operations it gave to the sink
+     */
+    private long flushes = 0;
+
+    /**
+     * Creates a coalescer with the default window.
+     *
+     * @param sink
+     *            where merged edits go
+     */
+    public EditCoalescer(Sink sink) {
+        this(sink, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a coalescer.
+     *
+     * @param sink
+     *            where merged edits go
+     * @param window
+     *            milliseconds after the first keystroke of a pending edit at
+     *            which it is flushed. 0 turns coalescing off: every edit goes
+     *            to the sink at once.
+     */
+    public EditCoalescer(Sink sink, int window) {
+        this.sink = sink;
+        if (window > 0) {
+            this.timer = new Timer(window, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    try {
+                        flush();
+                    } catch (OperationEngineException e1) {
+                        e1.printStackTrace();
+                    }
+                }
+            });
+            this.timer.setRepeats(false);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * A local insert was made in the document.
+     *
+     * @param offset
+     *            position of the insert
+     * @param text
+     *            text inserted
+     * @throws OperationEngineException
+     */
+    public synchronized void insert(int offset, String text)
+            throws OperationEngineException {
+        if (text.length() == 0) {
+            return;
+        }
+        ++this.edits;
+        if (this.insertText == null
+                || offset != this.offset + this.insertText.length()) {
+            this.flush();
+            this.offset = offset;
+            this.insertText = new StringBuilder();
+            this.start();
+        }
+        this.insertText.append(text);
+
+        char last = text.charAt(text.length() - 1);
+        if (this.timer == null || Character.isWhitespace(last)) {
+            this.flush();
+        }
+    }
+
+    /**
+     * A local delete was made in the document.
+     *
+     * @param offset
+     *            position of the first deleted character
+     * @param length
+     *            number of characters deleted
+     * @throws OperationEngineException
+     */
+    public synchronized void delete(int offset, int length)
+            throws OperationEngineException {
+        ++this.edits;
+        if (this.insertText != null) {
+            int end = this.offset + this.insertText.length();
+            if (offset >= this.offset && offset + length == end) {
+                // backspace over text that was never sent
+                this.insertText.setLength(offset - this.offset);
+                if (this.insertText.length() == 0) {
+                    this.insertText = null;
+                    this.stop();
+                }
+                return;
+            }
+            this.flush();
+        }
+
+        if (this.deleteLength > 0) {
+            if (offset + length == this.offset) {
+                // backspace
+                this.offset = offset;
+                this.deleteLength += length;
+            } else if (offset == this.offset) {
+                // forward delete
+                this.deleteLength += length;
+            } else {
+                this.flush();
+            }
+        }
+        if (this.deleteLength == 0) {
+            this.offset = offset;
+            this.deleteLength = length;
+            this.start();
+        }
+
+        if (this.timer == null) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Gives the pending edit, if any, to the sink.
+     *
+     * @throws OperationEngineException
+     */
+    public synchronized void flush() throws OperationEngineException {
+        this.stop();
+        if (this.insertText != null) {
+            String text = this.insertText.toString();
+            this.insertText = null;
+            ++this.flushes;
+            this.sink.insert(this.offset, text);
+        } else if (this.deleteLength > 0) {
+            int length = this.deleteLength;
+            this.deleteLength = 0;
+            ++this.flushes;
+            this.sink.delete(this.offset, length);
+        }
+    }
+
+    /**
+     * Throws the pending edit away, if any, without giving it to the sink.
+     * For when the text it was made in is replaced, so its position no longer
+     * means anything.
+     *
+     * @return true if there was a pending edit
+     */
+    public synchronized boolean discard() {
+        this.stop();
+        boolean pending = this.hasPending();
+        this.insertText = null;
+        this.deleteLength = 0;
+        return pending;
+    }
+
+    /**
+     * @return true if an edit is being held back
+     */
+    public synchronized boolean hasPending() {
+        return this.insertText != null || this.deleteLength > 0;
+    }
+
+    /**
+     * @return number of edits given to this coalescer
+     */
+    public synchronized long getEditCount() {
+        return this.edits;
+    }
+
+    /**
+     * @return number of operations this coalescer gave to the sink
+     */
+    public synchronized long getFlushCount() {
+        return this.flushes;
+    }
+
+    /**
+     * Starts the window of a new pending edit.
+     */
+    private void start() {
+        if (this.timer != null) {
+            this.timer.restart();
+        }
+    }
+
+    /**
+     * Stops the window, since there is no pending edit.
+     */
+    private void stop() {
+        if (this.timer != null) {
+            this.timer.stop();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import document.OperationEngineException;
+
+/**
+ * This will test the EditCoalescer.
+ *
+ * Testing strategy: feed it keystrokes and record what reaches the sink.
+ * Typing, backspaces and forward deletes next to each other should become a
+ * single edit, anything else should flush the pending edit first, and so
+ * should whitespace and an explicit flush. A discarded edit never reaches
+ * the sink. The window is made long enough
+ * that the timer never fires during a test. Last, random edits are applied
+ * both directly to a document and through the coalescer to another copy, and
+ * the copies must end up the same.
+ *
+ * @author Hanwen Xu
+ *
+ */
+public class EditCoalescerTest {
+
+    /**
+     * Records the edits it gets, and applies them to a document.
+     */
+    private static class Recorder implements EditCoalescer.Sink {
+        private final List<String> edits = new ArrayList<String>();
+        private final StringBuilder doc;
+
+        private Recorder(String init) {
+            this.doc = new StringBuilder(init);
+        }
+
+        @Override
+        public void insert(int offset, String text) {
+            edits.add("insert " + offset + " " + text);
+            doc.insert(offset, text);
+        }
+
+        @Override
+        public void delete(int offset, int length) {
+            edits.add("delete " + offset + " " + length);
+            doc.delete(offset, offset + length);
+        }
+    }
+
+    /** Long enough to never fire during a test */
+    private static final int WINDOW = 60000;
+
+    /**
+     * Typing a word should become one insert, sent at the word boundary.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void EditCoalescerTest1() throws OperationEngineException {
+        Recorder r = new Recorder("");
+        EditCoalescer c = new EditCoalescer(r, WINDOW);
+        c.insert(0, "h");
+        c.insert(1, "e");
+        c.insert(2, "y");
+        assertTrue(c.hasPending());
+        assertEquals(r.edits.size(), 0);
+
+        c.insert(3, " ");
+        assertFalse(c.hasPending());
+        assertEquals(r.edits.toString(), "[insert 0 hey ]");
+
+        // typing somewhere else flushes
+        c.insert(4, "a");
+        c.insert(0, "b");
+        c.flush();
+        assertEquals(r.edits.toString(),
+                "[insert 0 hey , insert 4 a, insert 0 b]");
+        assertEquals(c.getEditCount(), 6);
+        assertEquals(c.getFlushCount(), 3);
+    }
+
+    /**
+     * Backspaces and forward deletes should merge, and backspacing over text
+     * not sent yet should never send it.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void EditCoalescerTest2() throws OperationEngineException {
+        Recorder r = new Recorder("abcdefgh");
+        EditCoalescer c = new EditCoalescer(r, WINDOW);
+        // backspace from the end of "cde", then forward delete "fg"
+        c.delete(4, 1);
+        c.delete(3, 1);
+        c.delete(2, 1);
+        c.delete(2, 2);
+        c.flush();
+        assertEquals(r.edits.toString(), "[delete 2 5]");
+        assertEquals(r.doc.toString(), "abh");
+
+        // type "xyz", backspace over "yz", type "q"
+        c.insert(1, "x");
+        c.insert(2, "y");
+        c.insert(3, "z");
+        c.delete(3, 1);
+        c.delete(2, 1);
+        c.insert(2, "q");
+        c.flush();
+        assertEquals(r.doc.toString(), "axqbh");
+        assertEquals(r.edits.size(), 2);
+
+        // backspace over everything typed sends nothing
+        c.insert(0, "k");
+        c.delete(0, 1);
+        assertFalse(c.hasPending());
+        c.flush();
+        assertEquals(r.edits.size(), 2);
+    }
+
+    /**
+     * A window of 0 turns coalescing off.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void EditCoalescerTest3() throws OperationEngineException {
+        Recorder r = new Recorder("");
+        EditCoalescer c = new EditCoalescer(r, 0);
+        c.insert(0, "a");
+        c.insert(1, "b");
+        c.delete(1, 1);
+        assertFalse(c.hasPending());
+        assertEquals(r.edits.toString(), "[insert 0 a, insert 1 b, delete 1 1]");
+    }
+
+    /**
+     * Random edits, mostly next to each other, should give the same document
+     * through the coalescer as without it, in fewer edits.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void EditCoalescerTest4() throws OperationEngineException {
+        Random random = new Random(6005);
+        StringBuilder direct = new StringBuilder();
+        Recorder r = new Recorder("");
+        EditCoalescer c = new EditCoalescer(r, WINDOW);
+        int caret = 0;
+
+        for (int i = 0; i < 5000; i++) {
+            int action = random.nextInt(10);
+            if (action == 0) {
+                caret = random.nextInt(direct.length() + 1);
+            } else if (action == 1 && caret > 0) {
+                // backspace
+                direct.delete(caret - 1, caret);
+                c.delete(caret - 1, 1);
+                caret--;
+            } else if (action == 2 && caret < direct.length()) {
+                // forward delete
+                direct.delete(caret, caret + 1);
+                c.delete(caret, 1);
+            } else {
+                String s = random.nextInt(6) == 0 ? " " : String
+                        .valueOf((char) ('a' + random.nextInt(26)));
+                direct.insert(caret, s);
+                c.insert(caret, s);
+                caret++;
+            }
+        }
+        c.flush();
+        assertEquals(r.doc.toString(), direct.toString());
+        assertTrue(r.edits.size() < c.getEditCount() / 2);
+    }
+
+    /**
+     * A discarded edit never reaches the sink, and the next edit starts a new
+     * one.
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void EditCoalescerTest5() throws OperationEngineException {
+        Recorder r = new Recorder("");
+        EditCoalescer c = new EditCoalescer(r, WINDOW);
+        c.insert(0, "ab");
+        assertTrue(c.discard());
+        assertFalse(c.hasPending());
+        assertFalse(c.discard());
+        c.flush();
+        assertEquals(r.edits.size(), 0);
+
+        c.insert(0, "c");
+        c.flush();
+        assertEquals(r.edits.toString(), "[insert 0 c]");
+    }
+}
@@ -0,0 +1,59 @@
+package server_client;
+
+import java.io.Serializable;
+
+import document.ClientState;
+
+/**
+ * The message that brings a client that fell behind back to the current text
+ * of its document, instead of every operation it missed. It goes back and
+ * forth three times:
+ *
+ * - the server sends it empty to a client whose queue of frames got too long,
+ * and stops relaying operations to it
+ *
+ * - the client sends its pending edits, stops editing and answers with it
+ * empty. The server has then applied every operation of the client.
+ *
+ * - the server sends it with the text of the document and the ClientState it
+ * corresponds to, and relays operations to the client again. The client
+ * starts over from them, like when it joined.
+ *
+ * @author youyanggu
+ *
+ */
+public class CatchUp implements Serializable {
+
+    private static final long serialVersionUID = 4123005761309127712L;
+
+    /** text of the document, null in the first two messages */
+    public final String text;
+
+    /** ClientState the text corresponds to, null with text */
+    public final ClientState state;
+
+    /**
+     * Makes the empty message
+     */
+    public CatchUp() {
+        this(null, null);
+    }
+
+    /**
+     * Makes the message with the text
+     *
+     * @param text
+     *            - text of the document
+     * @param state
+     *            - ClientState the text corresponds to
+     */
+    public CatchUp(String text, ClientState state) {
+        this.text = text;
+        this.state = state;
+    }
+
+    /** @return true if the message has the text */
+    public boolean hasText() {
+        return this.text != null;
+    }
+}
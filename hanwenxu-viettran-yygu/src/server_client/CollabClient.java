@@ -1,12 +1,15 @@
 package server_client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JFrame;
 import javax.swing.text.BadLocationException;
@@ -63,6 +66,12 @@ import ui.ErrorDialog;
 public class CollabClient implements CollabInterface {
     /** Timeout on socket connection attempts */
     private static final int TIMEOUT = 2000;
+    /** Number of remote operations applied between two acknowledgements sent to the server */
+    private static final int ACK_INTERVAL = 20;
+    /** Maximum number of operations read from the stream before applying them */
+    private static final int MAX_BATCH = 256;
+    /** Number of remote operations applied since the last acknowledgement */
+    private int opsSinceAck = 0;
     /** unique to each client. Used to differentiate operations */
 	private int siteID;
 	/** document the client is editing */
@@ -80,10 +89,12 @@ public class CollabClient implements CollabInterface {
 	/** Intializes socket and streams to null */
 	private Socket s = null;
 	
-	/** outputstream to send objects to server */
-	protected ObjectOutputStream out = null;
-	/** inputstream to receive objects from server */
-	protected ObjectInputStream in = null;
+	/** outputstream to send objects to server, as frames (see FrameCodec) */
+	protected OutputStream out = null;
+	/** inputstream to receive objects from server, as frames */
+	protected DataInputStream in = null;
+	/** numbers of the documents, learned from the server, see FrameCodec */
+	private final DocumentKeys keys = new DocumentKeys();
 	/** client GUI used to display the document */
 	protected ClientGui gui;
 
@@ -122,6 +133,9 @@ public class CollabClient implements CollabInterface {
 		try {
 		    s = new Socket();
 		    s.connect(address, TIMEOUT);
+		    // operations are small and sent one at a time, send them right
+		    // away rather than waiting to fill a packet
+		    s.setTcpNoDelay(true);
 		} catch (UnknownHostException e) {
             System.err.println("Don't know about host: " + this.name);
             return;
@@ -135,10 +149,10 @@ public class CollabClient implements CollabInterface {
 		
 		// Connection established. Communicates with server
 		try {
-			out = new ObjectOutputStream(s.getOutputStream());
-			in = new ObjectInputStream(s.getInputStream());
+			out = new BufferedOutputStream(s.getOutputStream());
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
 		
-			Object o= in.readObject();
+			Object o= FrameCodec.readText(in, keys);
 
 			if(!(o instanceof ArrayList<?>)) {
                 throw new RuntimeException("Expected ArrayList of documents");                
@@ -158,19 +172,40 @@ public class CollabClient implements CollabInterface {
                 }
 		    }
 		    
-		    // Sends to server the document this client wants to edit
-			out.writeObject(document);
-			out.flush();
+			// Tells the server it can read deflated frames, so a long document
+			// comes compressed, then sends the document this client wants to
+			// edit
+			FrameCodec.write(out, new Hello(Hello.DEFLATE), keys);
+			FrameCodec.write(out, document, keys);
 			
 			// Reads in operations from the server
-			o = in.readObject();			
+			o = FrameCodec.readText(in, keys);			
 			while (o != null) {
-			    parseInput(o);				
-				o = in.readObject();
+			    if (o instanceof Operation) {
+			        // Operations that already arrived behind this one (e.g.
+			        // after a network stall) are transformed as one batch
+			        ArrayList<Operation> batch = new ArrayList<Operation>();
+			        batch.add((Operation) o);
+			        o = null;
+			        while (batch.size() < MAX_BATCH && in.available() > 0) {
+			            o = FrameCodec.readText(in, keys);
+			            if (!(o instanceof Operation)) {
+			                break;
+			            }
+			            batch.add((Operation) o);
+			            o = null;
+			        }
+			        updateDocs(batch);
+			        if (o != null) {
+			            // the object that ended the batch
+			            continue;
+			        }
+			    } else {
+			        parseInput(o);
+			    }
+				o = FrameCodec.readText(in, keys);
 				
 			}
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
 		} finally {
 		    // Close connection
 		    s.close();
@@ -199,8 +234,7 @@ public class CollabClient implements CollabInterface {
             this.siteID = ((Integer) o).intValue();
             if (this.name.equals("Anonymous")) 
                 this.name += "" + this.siteID;
-            out.writeObject(this.name);
-            out.flush();
+            FrameCodec.write(out, this.name, keys);
             label = this.name + " is editing document: " + this.document;
 
         } else if (o instanceof String) {
@@ -224,6 +258,8 @@ public class CollabClient implements CollabInterface {
             // Updates the ContextVector of the GUI with the one sent by the server
             CollabModel collab = this.gui.getCollabModel();
             collab.setCV((ClientState) o);
+        } else if (o instanceof CatchUp) {
+            catchUp((CatchUp) o);
         } else if (o instanceof Pair<?, ?>) {
             // Updates list of current users and documetns
             ArrayList<String> users = ((Pair<ArrayList<String>, ArrayList<String>>) o).first;
@@ -235,6 +271,32 @@ public class CollabClient implements CollabInterface {
         }
 	}
 	
+	/**
+	 * Handles the server's CatchUp, after this client fell behind. The first
+	 * one says the server stopped relaying operations: sends the local edits
+	 * not sent yet, stops editing and answers. The second one has the text of
+	 * the document, which then replaces the client's.
+	 * @param catchUp - the message from the server
+	 * @throws IOException - if the answer can't be sent
+	 */
+	private void catchUp(CatchUp catchUp) throws IOException {
+	    CollabModel collab = this.gui.getCollabModel();
+	    try {
+	        if (!catchUp.hasText()) {
+	            collab.pause();
+	            synchronized (out) {
+	                FrameCodec.write(out, new CatchUp(), keys);
+	            }
+	        } else {
+	            collab.reset(catchUp.text, catchUp.state);
+	            // the server recorded the state when it sent it
+	            opsSinceAck = 0;
+	        }
+	    } catch (OperationEngineException e) {
+	        new ErrorDialog(e.toString());
+	    }
+	}
+
 	/**
 	 * Updates the client's copy of the document using operational transform
 	 * through a call to the CollabModel's remoteInsert/remoteDelete
@@ -253,13 +315,59 @@ public class CollabClient implements CollabInterface {
 			} else {
 				throw new RuntimeException("Shouldn't reach here");
 			}
+			if (++opsSinceAck >= ACK_INTERVAL) {
+			    acknowledge();
+			}
 		} catch (OperationEngineException e) {
 			new ErrorDialog(e.toString());
 		} catch (BadLocationException e) {
 			new ErrorDialog(e.toString());
+		} catch (IOException e) {
+		    new ErrorDialog(e.toString());
+		}
+	}
+
+	/**
+	 * Updates the client's copy of the document with several operations
+	 * received from the server at once. Same as calling updateDoc on each of
+	 * them, but they are transformed as one batch and applied in one pass.
+	 * @param ops - the operations received from the server, in order
+	 */
+	public void updateDocs(List<Operation> ops) {
+		if (ops.size() == 1) {
+			updateDoc(ops.get(0));
+			return;
+		}
+		try {
+			this.gui.getCollabModel().remoteOps(ops);
+			opsSinceAck += ops.size();
+			if (opsSinceAck >= ACK_INTERVAL) {
+			    acknowledge();
+			}
+		} catch (OperationEngineException e) {
+			new ErrorDialog(e.toString());
+		} catch (IOException e) {
+		    new ErrorDialog(e.toString());
 		}
 	}
 
+	/**
+	 * Sends the server a copy of this client's current ClientState. The server
+	 * uses these acknowledgements to learn which operations every client has
+	 * processed, so that it can throw them out of its history buffer. They
+	 * are sent every ACK_INTERVAL remote operations.
+	 * 
+	 * @throws IOException if the OutputStream is corrupted or broken
+	 * @throws OperationEngineException if the ClientState can't be copied
+	 */
+	public void acknowledge() throws IOException, OperationEngineException {
+	    ClientState state = this.gui.getCollabModel().copyOfCV();
+	    synchronized (out) {
+	        FrameCodec.write(out, state, keys);
+	    }
+	    opsSinceAck = 0;
+	}
+
 	/**
 	 * @return the siteID of the document
 	 */
@@ -277,8 +385,10 @@ public class CollabClient implements CollabInterface {
 	public void transmit(Operation o) throws IOException {
 		if (out == null)
 			throw new RuntimeException("Socket not initialized.");
-		out.writeObject(o);
-		out.flush();
+		// acknowledgements are written from the reader thread
+		synchronized (out) {
+		    FrameCodec.write(out, o, keys);
+		}
 	}
 
 	/**
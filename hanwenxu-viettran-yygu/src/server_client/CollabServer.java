@@ -1,20 +1,33 @@
 package server_client;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JFrame;
-import javax.swing.text.BadLocationException;
 
-import ui.ErrorDialog;
 import ui.ServerGui;
+import document.ClientState;
 import document.DeleteOperation;
 import document.InsertOperation;
 import document.Operation;
@@ -22,16 +35,25 @@ import document.OperationEngineException;
 import document.Pair;
 
 /*
- * Thread safety: The server spawns multiple threads. Datatypes that are
- * editable by multiple threads (e.g. list of usernames) are all synchronized so
- * that only one thread may make an edit at any point. This prevents race
- * conditions. It is possible for operations from clients to be received
- * concurrently without locks - that is the entire purpose of the operational
- * transformation algorithm. The server simply relays the operations to the
- * operational transform engine, which will then handle all the concurrency
- * issues. The associated GUI is also made to be threadsafe within its own
- * process. For example, the server GUI is sychronized when it wants to switch
- * document views.
+ * Thread safety: The server runs a few selector threads that each read from
+ * many clients, see SelectorLoop, or a thread per client in the
+ * THREAD_PER_CLIENT mode. Datatypes that are editable by multiple threads (e.g.
+ * list of usernames) are all synchronized so that only one thread may make an
+ * edit at any point. This prevents race conditions. It is possible for
+ * operations from clients to be received concurrently without locks - that is
+ * the entire purpose of the operational transformation algorithm. The server
+ * simply relays the operations to the operational transform engine, which will
+ * then handle all the concurrency issues. Each document is a ServerDocument,
+ * whose lock is held while an operation for it is ordered, relayed and applied,
+ * and while a new client gets its text, so that everyone sees the operations of
+ * a document in the same order. Relaying only queues frames, see Connection, so
+ * the lock is never held while waiting for a client. The server's own lock
+ * guards the clients, the users and the IDs of the clients that left. Picking a
+ * new ID may take a document's lock inside it, but nothing takes the server's
+ * lock while holding a document's, so there is no deadlock, and edits on
+ * different documents never wait for each other. The associated GUI is also
+ * made to be threadsafe within its own process: it is only told about the
+ * changes, and switches document views from its own thread.
  * 
  * Rep invariant: port, IP, gui is not none
  * 
@@ -56,10 +78,20 @@ import document.Pair;
  * 
  * Creates a server that will store the main copy of each document. It will block
  * until a client connects, and then send a copy of the requested document to the client.
- * It will start a new thread to handle each new client connection. Each time a
+ * The connections are non-blocking, and a few SelectorLoop threads handle all
+ * of them, so an idle client costs a socket and a small buffer, not a thread.
+ * In the THREAD_PER_CLIENT mode, the connections are blocking instead, each
+ * handled by its own threads, a reader and a writer: virtual threads on Java
+ * 21 and later, which are cheap enough for as many clients as the selectors,
+ * or platform threads with a small stack before that. The messages are frames, see FrameCodec. Each time a
  * client makes a change to the document, it will send it to the server, which
  * will process the change using the operational transform algorithm, and then
- * relay it to the rest of the clients.
+ * relay it to the clients editing the same document. The clients of other
+ * documents never get it.
+ * 
+ * The documents are kept as plain text, so the server can also run headless,
+ * without any GUI, e.g. with main. Otherwise the GUI shows one document at a
+ * time.
  * 
  * Note: a server must be present before a client can connect. A server's 
  * document is not editable by the user
@@ -68,14 +100,42 @@ import document.Pair;
  * 
  */
 public class CollabServer implements CollabInterface {
-    /** maximum number of clients allowed at a time */
-	private static final int MAX_CLIENTS = 30;
+	/**
+	 * How the server handles the connections to the clients
+	 */
+	public enum Mode {
+		/** non-blocking, a few selector threads for all of the clients */
+		SELECTOR,
+		/** blocking, a thread (virtual if available) for each client */
+		THREAD_PER_CLIENT
+	}
+
+    /** stack size of a platform thread for a client, if there are no
+     * virtual threads */
+	private static final long CLIENT_STACK_SIZE = 256 * 1024;
+    /** seconds shutdown waits for the client threads to finish */
+	private static final int SHUTDOWN_TIMEOUT = 5;
+    /** number of selector threads */
+	private static final int SELECTOR_THREADS = Math.max(1, Math.min(4,
+			Runtime.getRuntime().availableProcessors()));
     /** default document name */
     private static final String DEFAULT_DOC_NAME = "default";
-    /** lock object*/
+    /** default port number, for main */
+    private static final int DEFAULT_PORT = 4444;
+    /** The text every new document starts with */
+    private static final String WELCOME_MESSAGE = "Welcome to Collab Edit";
+    /** lock of the clients, users, usernames and departed, not of the documents */
 	Object lock = new Object();
-    /** server socket that accepts client connections*/
-	private ServerSocket serverSocket;
+    /** server channel that accepts client connections*/
+	private ServerSocketChannel serverChannel;
+    /** how the connections are handled */
+	private Mode mode = Mode.SELECTOR;
+    /** selector threads handling the connections, set by serve */
+	private SelectorLoop[] loops;
+    /** runs the client threads in the THREAD_PER_CLIENT mode, set by serve */
+	private ExecutorService clientThreads;
+    /** open connections in the THREAD_PER_CLIENT mode */
+	private final Set<StreamConnection> streams = ConcurrentHashMap.newKeySet();
     /** number of clients actively connected*/
 	private int users = 0;
     /** port number of the server*/
@@ -86,27 +146,51 @@ public class CollabServer implements CollabInterface {
 	private String serverName;
     /** JFrame used by the server GUI for display */
 	private JFrame frame;
-    /** GUI object for the server */
-	private ServerGui displayGui;
-    /** order of the operations */
-	private int order;
-	/** Data structure to keep track of clients */
-	private final ArrayList<Pair<Socket, Boolean>> clientSockets = new ArrayList<Pair<Socket, Boolean>>();
-
-	/** A hash of socket to its associated input/output streams. We want to use these
-	 * two streams each time we need to communicate between a particular client and the server
+    /** GUI object for the server, null if headless. Switched by the GUI's thread */
+	private volatile ServerGui displayGui;
+	/** true if the server has no GUI */
+	private final boolean headless;
+    /**
+     * order of the next operation of a document the server doesn't have. The
+     * operations of a document are ordered by it, see ServerDocument.stamp
+     */
+	private final AtomicLong order = new AtomicLong();
+	/** Data structure to keep track of clients, by client ID. Clients are
+	 * added under the lock, and the list is read by updateUsers */
+	private final CopyOnWriteArrayList<Connection> clients = new CopyOnWriteArrayList<Connection>();
+	/**
+	 * Client IDs of the clients that left, with the document each one left,
+	 * lowest first. Guarded by the lock. See nextClientID
 	 */
-	private final HashMap<Socket, Pair<ObjectInputStream, ObjectOutputStream>> socketStreams = new HashMap<Socket, Pair<ObjectInputStream, ObjectOutputStream>>();
+	private final TreeMap<Integer, String> departed = new TreeMap<Integer, String>();
 
 	/** List of all users */
 	private final ArrayList<String> usernames = new ArrayList<String>();
+	/** number of clients subscribed to a document, over all documents */
+	private final AtomicInteger subscribed = new AtomicInteger();
+	/** number of operations sent to clients */
+	private final AtomicLong opsSent = new AtomicLong();
+	/** number of operations not sent to clients of other documents */
+	private final AtomicLong opsAvoided = new AtomicLong();
+	/** bytes queued to a client that make it catch up, see Connection */
+	private int catchUpBytes = Connection.CATCH_UP_BYTES;
+	/** bytes queued to a client that get it disconnected, see Connection */
+	private int maxQueuedBytes = Connection.MAX_QUEUED_BYTES;
+	/** shortest frame deflated to clients that can inflate, 0 for none */
+	private int deflateBytes = Connection.DEFLATE_BYTES;
+
+	/** All documents, by name. Each one has its own lock, see thread safety */
+	private final ConcurrentHashMap<String, ServerDocument> documents = new ConcurrentHashMap<String, ServerDocument>();
 
-	/** List of all documents */
-	private final HashMap<String, ServerGui> documents = new HashMap<String, ServerGui>();
+	/** Numbers of the documents, sent instead of their names, see FrameCodec */
+	private final DocumentKeys keys = new DocumentKeys();
+
+	/** The GUI of each document, empty if headless */
+	private final ConcurrentHashMap<String, ServerGui> views = new ConcurrentHashMap<String, ServerGui>();
 
 	/**
 	 * Constructor for making a server. It will set the port number, create a
-	 * server socket, and generate a central GUI.
+	 * server socket, and generate a central GUI unless there is no display.
 	 * List of documents and socket names are also initialized
 	 *  
 	 * @param port
@@ -116,205 +200,478 @@ public class CollabServer implements CollabInterface {
 	 * 
 	 */
 	public CollabServer(String IP, int port, String name) {
+		this(IP, port, name, GraphicsEnvironment.isHeadless());
+	}
+
+	/**
+	 * Constructor for making a server. It will set the port number, create a
+	 * server socket, and generate a central GUI if asked to.
+	 * List of documents and socket names are also initialized
+	 *  
+	 * @param port
+	 *            - targeted port number
+	 * @param IP
+	 *            - targeted IP address
+	 * @param headless
+	 *            - true to run without any GUI
+	 * 
+	 */
+	public CollabServer(String IP, int port, String name, boolean headless) {
 		// Sets server info
+		this.headless = headless;
 		this.port = port;
 		this.serverName = DEFAULT_DOC_NAME;
 		this.ip = IP;
 		// Create a server socket for clients to connect to
+		ServerSocketChannel channel = null;
 		try {
-			this.serverSocket = new ServerSocket(this.port);
+			channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(this.port));
+			// the port that was picked, if 0 was asked
+			this.port = channel.socket().getLocalPort();
+			this.serverChannel = channel;
 		} catch (IOException e) {
 			System.err.println("Cannot create server socket at IP: " + this.ip
 					+ ", port: " + this.port);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
 			return;
 		}
 		// Add default document to document list
 		try {
-			documents.put(DEFAULT_DOC_NAME,
-					new ServerGui(this, this.serverName));
+			getOrAddDocument(DEFAULT_DOC_NAME);
 		} catch (OperationEngineException e) {
 			e.printStackTrace();
 		}
 		// Update document list, set the current display GUI to be the default document
-		this.displayGui = documents.get(DEFAULT_DOC_NAME);
-		ArrayList<String> docs = new ArrayList<String>();
-		docs.addAll(documents.keySet());
-		this.displayGui.updateDocumentsList(docs.toArray());
+		this.displayGui = views.get(DEFAULT_DOC_NAME);
+		if (this.displayGui != null) {
+			ArrayList<String> docs = new ArrayList<String>();
+			docs.addAll(documents.keySet());
+			this.displayGui.updateDocumentsList(docs.toArray());
+		}
 
 		// The server is viewed as the zeroth socket
-		clientSockets.add(null);
+		clients.add(null);
 		System.out.println("Server created.");
 	}
 
+	/**
+	 * Gets a document, or makes it, and its GUI unless the server is
+	 * headless, if it does not exist. Clients making the same document at
+	 * the same time all get the same one. Holds no lock: making a document
+	 * never waits for the clients of the others.
+	 * 
+	 * @param documentID
+	 *            - the name of the document
+	 * @return the document
+	 * @throws OperationEngineException
+	 */
+	private ServerDocument getOrAddDocument(String documentID)
+			throws OperationEngineException {
+		ServerDocument document = getDocument(documentID);
+		if (document != null) {
+			return document;
+		}
+		// numbered first, so its frames are never sent with an unknown number
+		keys.add(documentID);
+		document = new ServerDocument(documentID, WELCOME_MESSAGE);
+		ServerDocument existing = documents.putIfAbsent(documentID, document);
+		if (existing != null) {
+			// another client made it first
+			return existing;
+		}
+		if (!headless) {
+			views.put(documentID, new ServerGui(this, document));
+		}
+		return document;
+	}
+
+	/**
+	 * @param documentID
+	 *            - the name of a document, may be null
+	 * @return the document, null if there is none with that name
+	 */
+	private ServerDocument getDocument(String documentID) {
+		return documentID == null ? null : documents.get(documentID);
+	}
+
 	/**
 	 * Run the server, listening for client connections and handling them.
-	 * Starts up a non-editable GUI dedicated to handling client connections.
-	 * Never returns unless an exception is thrown. Creates a new thread for
-	 * every new connection.
+	 * Starts up a non-editable GUI dedicated to handling client connections,
+	 * unless the server is headless. Never returns unless an exception is
+	 * thrown or shutdown is called. Accepted connections are handed to the
+	 * selector threads in turn, or to a new thread each in the
+	 * THREAD_PER_CLIENT mode.
 	 * 
 	 * @throws IOException
 	 *             if the main server socket is broken (IOExceptions from
 	 *             individual clients do *not* terminate serve()).
 	 */
 	public void serve() throws IOException {
-		frame = new JFrame("Collab Edit Demo");
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		// Add content to the window.
-		frame.add(this.displayGui);
+		if (this.displayGui != null) {
+			frame = new JFrame("Collab Edit Demo");
+			frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+			// Add content to the window.
+			frame.add(this.displayGui);
 
-		// Display the window.
-		frame.pack();
-		frame.setVisible(true);
+			// Display the window.
+			frame.pack();
+			frame.setVisible(true);
+		}
+		if (mode == Mode.THREAD_PER_CLIENT) {
+			serveThreads();
+			return;
+		}
 
+		loops = new SelectorLoop[SELECTOR_THREADS];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new SelectorLoop(this);
+			Thread thread = new Thread(loops[i], "selector-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		int next = 0;
 		while (true) {
-			if (this.users > MAX_CLIENTS) {
-				throw new RuntimeException("Too many clients!");
-			}
 			// block until a client connects
+			SocketChannel channel;
 			try {
-				final Socket socket = serverSocket.accept();
-
-				// New client detected; create new thread to handle each connection
-				Thread thread = new Thread(new Runnable() {
-					@Override
-					public void run() {
-						try {
-							handleConnection(socket);
-						} catch (IOException e) {
-
-						} finally {
-							try {
-								socket.close();
-							} catch (IOException e) {
-								new ErrorDialog(e.toString());
-							}
-						}
-					}
-				});
-				thread.start();
-			} catch (Exception e) {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				// shutdown was called
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				// frames are small and written one at a time, send them right
+				// away rather than waiting to fill a packet
+				channel.socket().setTcpNoDelay(true);
+				loops[next].add(channel);
+				next = (next + 1) % loops.length;
+			} catch (IOException e) {
 				System.err.println("An exception occured. See below.");
 				e.printStackTrace();
+				channel.close();
 			}
 		}
 	}
 
 	/**
-	 * Handle a single client connection. Returns when client disconnects, after
-	 * closing all the appropriate sockets and streams. This is where various
-	 * information passing will be done between the client and server.
+	 * The accept loop of the THREAD_PER_CLIENT mode: each connection is
+	 * blocking, and is handled by its own thread from clientThreads.
 	 * 
-	 * @param socket
-	 *            socket via which the client is connected
 	 * @throws IOException
-	 *             if connection has an error or terminates unexpectedly
+	 *             if the main server socket is broken
 	 */
-	public void handleConnection(Socket socket) throws IOException {
-		int clientID = -1;
-		String documentID = "";
-		String clientName = "";
-		ObjectOutputStream out = new ObjectOutputStream(
-				socket.getOutputStream());
-		ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-		// Add stream to HashMap
-		socketStreams.put(socket,
-				new Pair<ObjectInputStream, ObjectOutputStream>(in, out));
+	private void serveThreads() throws IOException {
+		clientThreads = newClientExecutor();
+		while (true) {
+			// block until a client connects
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				// shutdown was called
+				return;
+			}
+			StreamConnection c = new StreamConnection(channel.socket(), this,
+					clientThreads);
+			streams.add(c);
+			try {
+				clientThreads.execute(c);
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				streams.remove(c);
+				channel.close();
+			}
+		}
+	}
 
+	/**
+	 * Makes the executor running the client threads: virtual threads if the
+	 * JVM has them (Java 21 and later), otherwise platform threads with a
+	 * small stack. Virtual threads are looked up by
+	 * reflection, so the server still builds and runs on older JVMs.
+	 * 
+	 * @return a new executor
+	 */
+	static ExecutorService newClientExecutor() {
 		try {
-			// Sends list of documents to client
-			ArrayList<String> temp = new ArrayList<String>();
-			temp.addAll(documents.keySet());
-			out.writeObject(temp);
-			out.flush();
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(null, r, "client-"
+							+ count.incrementAndGet(), CLIENT_STACK_SIZE);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
 
-			// Receives which document to edit
-			Object input = in.readObject();
-			if (!(input instanceof String)) {
-				throw new RuntimeException("Expected document name");
+	/**
+	 * Stops accepting clients, and closes all the connections. In the
+	 * THREAD_PER_CLIENT mode, waits up to SHUTDOWN_TIMEOUT seconds for the
+	 * client threads to clean up after their clients, then interrupts the
+	 * ones that are left.
+	 */
+	public void shutdown() {
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
 			}
-
-			synchronized (lock) {
-				// If document does not exist, create it
-				documentID = (String) input;
-				if (!documents.containsKey(documentID)) {
-					ServerGui newGui = new ServerGui(this, documentID);
-					newGui.setModelKey(documentID);
-					documents.put(documentID, newGui);
-				}				
-				this.users++;
-				// Add to ArrayList of sockets
-				clientSockets.add(new Pair<Socket, Boolean>(socket, true));
-				// sets client ID
-				clientID = clientSockets.size() - 1;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (loops != null) {
+			for (SelectorLoop loop : loops) {
+				loop.shutdown();
 			}
-			if (!documents.containsKey(documentID)) {
-				throw new RuntimeException("Missing document ID in map");
+		}
+		if (clientThreads != null) {
+			clientThreads.shutdown();
+			// a closed socket ends the blocked read of its thread
+			for (StreamConnection c : streams) {
+				c.abort();
 			}
-			// Sends to client the client ID
-			out.writeObject(clientID);
-			out.flush();
-			System.out.println("Client #" + clientID + " connected");
-			// Sends to client the initial String in the document
-			out.writeObject(documents.get(documentID).getText());
-			out.flush();
-			// Sends to client the ContextVector of the document model
 			try {
-				out.writeObject(documents.get(documentID).getCollabModel()
-						.copyOfCV());
-			} catch (OperationEngineException e1) {
-				e1.printStackTrace();
+				if (!clientThreads.awaitTermination(SHUTDOWN_TIMEOUT,
+						TimeUnit.SECONDS)) {
+					System.err.println("Client threads still running");
+					clientThreads.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				clientThreads.shutdownNow();
+				Thread.currentThread().interrupt();
 			}
-			out.flush();
+		}
+	}
 
+	/**
+	 * Called by the thread of a connection when a client connects. Sends it the list of
+	 * documents, it answers with the one it wants to edit.
+	 * 
+	 * @param c
+	 *            - the connection to the client
+	 * @throws IOException
+	 *             if the list can't be sent
+	 */
+	void connected(Connection c) throws IOException {
+		c.setLimits(catchUpBytes, maxQueuedBytes);
+		ArrayList<String> temp = new ArrayList<String>(documents.keySet());
+		c.send(temp);
+	}
+
+	/**
+	 * Called by the thread of a connection for each message a client sends,
+	 * in order.
+	 * This is where various information passing will be done between the
+	 * client and server: first the client picks a document, then it sends its
+	 * username, and from then on only operations and acknowledgements. Before
+	 * picking a document it may send a Hello, saying it can read DEFLATED
+	 * frames, see FrameCodec.
+	 * 
+	 * @param c
+	 *            - the connection to the client
+	 * @param input
+	 *            - the message
+	 * @throws IOException
+	 *             if a message to the client can't be sent
+	 */
+	void receive(Connection c, Object input) throws IOException {
+		if (c.getClientID() == -1 && input instanceof Hello) {
+			// What the client can read, before it picks a document
+			if (((Hello) input).has(Hello.DEFLATE)) {
+				c.setDeflate(deflateBytes);
+			}
+		} else if (c.getClientID() == -1) {
+			// Receives which document to edit
+			if (!(input instanceof String)) {
+				throw new RuntimeException("Expected document name");
+			}
+			join(c, (String) input);
+		} else if (c.getName() == null) {
 			// Receives username of client. Updates users.
-			input = in.readObject();
 			if (!(input instanceof String)) {
 				throw new RuntimeException("Expected client username");
 			}
-			clientName = (String) input;
+			c.setName((String) input);
 			synchronized (lock) {
-				usernames.add(clientName);
-
+				usernames.add(c.getName());
 			}
 			updateUsers();
-
+		} else if (input instanceof CatchUp) {
+			// Has sent all of its operations, after falling behind
+			catchUp(c);
+		} else {
 			// Receives operations from client. That's all the server is
-			// expecting from
-			// the client from now on.
-			input = in.readObject();
-			while (input != null) {
-				parseInput(input, documentID, clientID);
-				input = in.readObject();
-			}
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
+			// expecting from the client from now on.
+			parseInput(input, c.getDocumentID(), c.getClientID());
+		}
+	}
+
+	/**
+	 * Sends a client that fell behind the text of its document, and relays
+	 * the operations of the document to it again. The client answered the
+	 * empty CatchUp, so every operation it made is applied to the text, and
+	 * it starts over from the text like when it joined. The list of users may
+	 * have been dropped with its queue, so it is sent again too.
+	 * 
+	 * @param c
+	 *            - the connection to the client
+	 * @throws IOException
+	 *             if a message to the client can't be sent
+	 */
+	private void catchUp(Connection c) throws IOException {
+		if (!c.isBehind()) {
+			throw new RuntimeException("Unexpected CatchUp");
+		}
+		ServerDocument document = getDocument(c.getDocumentID());
+		// No operation of the document can be applied in between
+		document.getLock().lock();
+		try {
+			Pair<String, ClientState> snapshot = document.join(c.getClientID());
+			c.sendText(new CatchUp(snapshot.first, snapshot.second));
+			c.caughtUp();
 		} catch (OperationEngineException e) {
 			e.printStackTrace();
-		} catch (Exception e) {
-			// Client closed
-			return;
 		} finally {
-			// Clean up, close connections
-			if (clientID == -1)
-				return;
-			// set connection as closed
-			System.out.println("Connection to client #" + clientID + " lost.");
+			document.getLock().unlock();
+		}
+		c.send(usersAndDocuments());
+	}
+
+	/**
+	 * Gives a client the document it picked, creating it if it does not exist
+	 * 
+	 * @param c
+	 *            - the connection to the client
+	 * @param documentID
+	 *            - the document
+	 * @throws IOException
+	 *             if a message to the client can't be sent
+	 */
+	private void join(Connection c, String documentID) throws IOException {
+		int clientID;
+		try {
+			// If document does not exist, create it
+			ServerDocument document = getOrAddDocument(documentID);
 			synchronized (lock) {
-				try {
-					clientSockets.get(clientID).second = false;
-					this.users--;
-					usernames.remove(clientName);
-					// need to update the view of who still in the edit room
-					documents.get(documentID).updateUsers(
-							this.usernames.toArray());
-				} catch (Exception e) {
-					System.err.println("Client not found");
+				this.users++;
+				// Add to the list of clients. Nothing is relayed to it until
+				// it has the document
+				clientID = nextClientID();
+				if (clientID == clients.size()) {
+					clients.add(c);
+				} else {
+					clients.set(clientID, c);
 				}
+				c.setDocument(clientID, documentID);
+			}
+			// No operation of the document can be applied while the client
+			// gets it: the client gets every operation either in the text or
+			// relayed afterwards
+			document.getLock().lock();
+			try {
+				// Sends to client the client ID, and the number of its
+				// document, which it doesn't know if it just made it
+				c.sendFrame(FrameCodec.encodeSite(clientID, documentID, keys));
+				System.out.println("Client #" + clientID + " connected");
+				// Sends to client the initial String in the document, then
+				// the ContextVector of the document model. That is also the
+				// first state the client acknowledges
+				Pair<String, ClientState> initial = document.join(clientID);
+				c.sendText(initial.first);
+				c.send(initial.second);
+				c.setActive(true);
+				// from now on it gets the operations of the document
+				document.subscribe(c);
+				subscribed.incrementAndGet();
+			} finally {
+				document.getLock().unlock();
+			}
+		} catch (OperationEngineException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Picks the ID of a new client. Every operation carries a ClientState with
+	 * a sequence number for each client ID, so the ID of a client that left
+	 * is given again, the lowest first, and the ClientStates only grow with
+	 * the clients editing at once, not with every client that ever joined.
+	 * An ID is only given again once every client of the document it left
+	 * has acknowledged its operations. The new client then gets the state of
+	 * its document, with the last sequence number of the ID in it, and goes
+	 * on from there, so the operations of the two are never mixed up. Takes
+	 * the lock of a document while holding the server's lock, never the other
+	 * way round. Call it holding the lock.
+	 * 
+	 * @return the ID of the new client, clients.size() if none can be given
+	 *         again
+	 * @throws OperationEngineException
+	 */
+	private int nextClientID() throws OperationEngineException {
+		for (Iterator<Map.Entry<Integer, String>> it = departed.entrySet()
+				.iterator(); it.hasNext();) {
+			Map.Entry<Integer, String> left = it.next();
+			ServerDocument document = getDocument(left.getValue());
+			if (document == null || document.isAcknowledged(left.getKey())) {
+				it.remove();
+				return left.getKey();
+			}
+		}
+		return clients.size();
+	}
+
+	/**
+	 * Called by the thread of a connection when it is closed. Cleans up after
+	 * the client.
+	 * 
+	 * @param c
+	 *            - the connection to the client
+	 */
+	void disconnected(Connection c) {
+		streams.remove(c);
+		int clientID = c.getClientID();
+		if (clientID == -1)
+			return;
+		// set connection as closed
+		System.out.println("Connection to client #" + clientID + " lost.");
+		String documentID = c.getDocumentID();
+		synchronized (lock) {
+			this.users--;
+			if (c.getName() != null) {
+				usernames.remove(c.getName());
+			}
+		}
+		try {
+			// the document no longer has to keep history for it, nor relay
+			// its operations to it
+			ServerDocument document = getDocument(documentID);
+			if (document.unsubscribe(c)) {
+				subscribed.decrementAndGet();
+			}
+			document.removeSite(clientID);
+			synchronized (lock) {
+				departed.put(clientID, documentID);
+			}
+			// need to update the view of who still in the edit room
+			if (views.containsKey(documentID)) {
+				views.get(documentID).updateUsers(usersAndDocuments().first.toArray());
 			}
 			updateUsers();
-			out.close();
-			in.close();
+		} catch (Exception e) {
+			System.err.println("Client not found");
 		}
 	}
 
@@ -336,15 +693,55 @@ public class CollabServer implements CollabInterface {
 	public void parseInput(Object input, String documentID, int clientID)
 			throws IOException {
 		if (input instanceof Operation) {
-			transmit((Operation) input); // also mutates the input
-			updateDoc((Operation) input);
+			Operation o = (Operation) input;
+			ServerDocument document = getDocument(o.getKey());
+			if (document == null) {
+				transmit(o);
+				updateDoc(o);
+				return;
+			}
+			// ordered, relayed and applied as one step, see thread safety
+			document.getLock().lock();
+			try {
+				transmit(o); // also mutates the input
+				updateDoc(o);
+			} finally {
+				document.getLock().unlock();
+			}
+		} else if (input instanceof ClientState) {
+			acknowledge((ClientState) input, documentID, clientID);
 		} else
 			throw new RuntimeException("Unrecognized object type");
 	}
 
+	/**
+	 * Records a client's acknowledged ClientState in the engine of the
+	 * document it is editing, then throws away the history every client of
+	 * the document has processed.
+	 * 
+	 * @param state
+	 *            - the ClientState the client reported
+	 * @param documentID
+	 *            - the document that the client is editing
+	 * @param clientID
+	 *            - the identification of the client sending the state
+	 */
+	public void acknowledge(ClientState state, String documentID,
+			int clientID) {
+		ServerDocument current = getDocument(documentID);
+		if (current == null) {
+			return;
+		}
+		try {
+			current.acknowledge(clientID, state);
+		} catch (OperationEngineException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Updates the copy of the document using operational transform through a
-	 * call to the CollabModel's remoteInsert/remoteDelete
+	 * call to the ServerDocument's apply. That does not wait for the GUI.
 	 * 
 	 * @param o
 	 *            - the operation that was received from the client to apply to
@@ -354,34 +751,19 @@ public class CollabServer implements CollabInterface {
 	public void updateDoc(Operation o) {
 		// Gets the document to apply the operation to
 		String documentID = o.getKey();
+		if (!(o instanceof InsertOperation || o instanceof DeleteOperation)) {
+			throw new RuntimeException("Shouldn't reach here");
+		}
+		ServerDocument current = getDocument(documentID);
+		if (current == null) {
+			o.setKey(o instanceof InsertOperation ? "Insert tested"
+					: "Delete tested");
+			return;
+		}
 		try {
-			if (o instanceof InsertOperation) {
-				ServerGui current = documents.get(documentID);
-				if (current == null) {
-					o.setKey("Insert tested");
-					return;
-				}
-				current.setModelKey(documentID);
-				current.getCollabModel().remoteInsert(o);
-				current.getTextArea().setEditable(false);
-			} else if (o instanceof DeleteOperation) {
-
-				ServerGui current = documents.get(documentID);
-				if (current == null) {
-					o.setKey("Delete tested");
-					return;
-				}
-				current.setModelKey(documentID);
-				current.getCollabModel().remoteDelete(o);
-				current.getTextArea().setEditable(false);
-			} else {
-				throw new RuntimeException("Shouldn't reach here");
-			}
-
+			current.apply(o);
 		} catch (OperationEngineException e) {
 			e.printStackTrace();
-		} catch (BadLocationException e) {
-			e.printStackTrace();
 		}
 	}
 
@@ -399,33 +781,51 @@ public class CollabServer implements CollabInterface {
 	 * clients, who will then apply their own OT algorithm to generate the most
 	 * recent copy of the document.
 	 * 
+	 * Only the subscribers of the operation's document get it. The clients
+	 * of other documents would only drop it, see CollabModel.remoteInsert,
+	 * so with many documents open that is most of the traffic. The
+	 * operations that are not sent are counted, see getOpsAvoided.
+	 * 
+	 * The client that made the change gets it back too. Its engine ignores the
+	 * change itself, but learns the change's place in the total order. Without
+	 * it, a client's own operations stay at the end of its order forever, and
+	 * with three or more clients a later operation that already includes one
+	 * of them can be ordered before it, which breaks the transform.
+	 * 
 	 * @throws IOException if the input/output stream is corrupt
 	 */
 	@Override
 	public void transmit(Operation o) throws IOException {
-		ObjectOutputStream out = null;
 		// Increment the order so the Operation Engine can determine 
 		// the relative position of all the operations
-		synchronized (lock) {
-		    o.setOrder(order);
-		    order++;
+		ServerDocument document = getDocument(o.getKey());
+		if (document == null) {
+			// nobody is editing it
+			o.setOrder(order.getAndIncrement());
+			opsAvoided.addAndGet(subscribed.get());
+			return;
 		}
-
-		for (int i = 1; i < clientSockets.size(); i++) {
-			Pair<Socket, Boolean> p = clientSockets.get(i);
-			Socket currentSocket = p.first;
-			Boolean activeSocket = p.second;
-			// Connection is already closed, or this is the operation that was
-			// originally sent by that client. So we don't send.
-			if (!activeSocket || i == o.getSiteId())
+		document.stamp(o);
+		List<Connection> subscribers = document.getSubscribers();
+		int sent = subscribers.size();
+		opsSent.addAndGet(sent);
+		opsAvoided.addAndGet(Math.max(0, subscribed.get() - sent));
+		// the same frame goes to every subscriber, and if it is long, the
+		// same deflated frame to every subscriber that inflates
+		byte[] frame = FrameCodec.encode(o, keys);
+		byte[] deflated = null;
+		for (Connection c : subscribers) {
+			// Connection is already closed, so we don't send.
+			if (!c.isActive())
+				continue;
+			// It gets the text instead, once it answered the CatchUp
+			if (c.isBehind()) {
+				c.skipped();
 				continue;
+			}
 			// Otherwise we send the operation
-			out = socketStreams.get(currentSocket).second;
-
-			out.writeObject(o);
-			out.flush();
+			deflated = c.sendFrame(frame, deflated);
 		}
-
 	}
 
 	/**
@@ -435,61 +835,64 @@ public class CollabServer implements CollabInterface {
 	 * @throws IOException
 	 *             - if the socket connection is corrupted
 	 */
-	@SuppressWarnings("unchecked")
 	public void updateUsers() throws IOException {
-		ObjectOutputStream out = null;
-		this.displayGui.updateUsers(((ArrayList<String>) usernames.clone())
-				.toArray());
-		ArrayList<String> docs = new ArrayList<String>();
-		docs.addAll(documents.keySet());
-		// Sorts the document list in alphabetical order
-		Collections.sort(docs);
-		this.displayGui.updateDocumentsList(docs.toArray());
+		Pair<ArrayList<String>, ArrayList<String>> usersAndDocuments = usersAndDocuments();
+		if (this.displayGui != null) {
+			this.displayGui.updateUsers(usersAndDocuments.first.toArray());
+			this.displayGui.updateDocumentsList(usersAndDocuments.second.toArray());
+		}
 
+		// The pair of usernames and documents is the same for every client
+		byte[] frame = FrameCodec.encode(usersAndDocuments, keys);
+		byte[] deflated = null;
 		// For each client
-		for (int i = 1; i < clientSockets.size(); i++) {
-			// retrieve the sockets for the client
-			Pair<Socket, Boolean> p = clientSockets.get(i);
-			Socket currentSocket = p.first;
-			Boolean activeSocket = p.second;
+		for (int i = 1; i < clients.size(); i++) {
+			Connection c = clients.get(i);
 			// Connection is already closed, So we don't send.
-			if (!activeSocket)
+			if (!c.isActive())
 				continue;
-			// Makes sure socket exists in map
-			if (!socketStreams.containsKey(currentSocket))
-				throw new RuntimeException("Socket not found in HashMap");
-			out = socketStreams.get(currentSocket).second;
-			// Creates a cloned pair of usernames and documents
-			Pair<ArrayList<String>, ArrayList<String>> pair = new Pair<ArrayList<String>, ArrayList<String>>(
-					(ArrayList<String>) usernames.clone(),
-					(ArrayList<String>) docs.clone());
 			// Sends it to the client
-			out.writeObject(pair);
-			out.flush();
+			deflated = c.sendFrame(frame, deflated);
 		}
 	}
 
+	/**
+	 * @return a Pair of the users and the documents, in alphabetical order
+	 */
+	@SuppressWarnings("unchecked")
+	private Pair<ArrayList<String>, ArrayList<String>> usersAndDocuments() {
+		ArrayList<String> users;
+		ArrayList<String> docs = new ArrayList<String>();
+		synchronized (lock) {
+			users = (ArrayList<String>) usernames.clone();
+		}
+		docs.addAll(documents.keySet());
+		// Sorts the document list in alphabetical order
+		Collections.sort(docs);
+		return new Pair<ArrayList<String>, ArrayList<String>>(users, docs);
+	}
+
 	/**
 	 * Switches between documents to be displayed on the server. This happens
-	 * when a user clicks on a document name on the server GUI.
+	 * when a user clicks on a document name on the server GUI, so it is only
+	 * called by the GUI's thread, and holds none of the server's locks.
 	 * 
 	 * @param document
 	 *            - the document name to be switched
 	 */
-	public synchronized void switchScreen(String document) {
-		if (!documents.containsKey(document))
+	public void switchScreen(String document) {
+		ServerGui view = views.get(document);
+		if (view == null)
 			throw new RuntimeException("Document not found!");
-		this.displayGui = documents.get(document);
-		this.displayGui.updateUsers(this.usernames.toArray());
-		ArrayList<String> temp = new ArrayList<String>();
-        temp.addAll(this.getDocumentsName());
-        // Sorts the document list in alphabetical order
-        Collections.sort(temp);       
-		this.displayGui.updateDocumentsList(temp.toArray());
-		this.displayGui.repaint();
-		this.displayGui.revalidate();
-
-		frame.setContentPane(displayGui);
+		this.displayGui = view;
+		// users and documents, in alphabetical order
+		Pair<ArrayList<String>, ArrayList<String>> usersAndDocuments = usersAndDocuments();
+		view.updateUsers(usersAndDocuments.first.toArray());
+		view.updateDocumentsList(usersAndDocuments.second.toArray());
+		view.repaint();
+		view.revalidate();
+
+		frame.setContentPane(view);
 		frame.setVisible(true);
 
 	}
@@ -517,19 +920,29 @@ public class CollabServer implements CollabInterface {
 		return this.serverName;
 	}
 
-	/** @return HashMap of documents to ServerGuis */
-	public HashMap<String, ServerGui> getDocuments() {
+	/** @return map of document names to documents, safe to read from any thread */
+	public Map<String, ServerDocument> getDocuments() {
 		return this.documents;
 	}
 
+	/** @return numbers of the documents, sent instead of their names */
+	public DocumentKeys getKeys() {
+		return this.keys;
+	}
+
+	/** @return true if the server has no GUI */
+	public boolean isHeadless() {
+		return this.headless;
+	}
+
 	/** @return serverSockets */
 	public ServerSocket getServerSocket() {
-		return this.serverSocket;
+		return this.serverChannel == null ? null : this.serverChannel.socket();
 	}
 
-	/** @return order of server */
-	public int getOrder() {
-		return this.order;
+	/** @return order of server, for the operations of no document */
+	public long getOrder() {
+		return this.order.get();
 	}
 
 	/** @return number of users */
@@ -544,4 +957,91 @@ public class CollabServer implements CollabInterface {
 		this.users = users;
 	}
 
+	/** @return the number of operations sent to clients */
+	public long getOpsSent() {
+		return opsSent.get();
+	}
+
+	/**
+	 * @return the number of operations not sent to clients, because they were
+	 *         editing another document
+	 */
+	public long getOpsAvoided() {
+		return opsAvoided.get();
+	}
+
+	/**
+	 * Sets the limits of the queue of frames to each client, see Connection.
+	 * Call it before serve.
+	 * 
+	 * @param catchUpBytes
+	 *            - bytes queued that make a client catch up from the text of
+	 *            its document. At least maxQueuedBytes to never catch up.
+	 * @param maxQueuedBytes
+	 *            - bytes queued that get a client disconnected
+	 */
+	public void setQueueLimits(int catchUpBytes, int maxQueuedBytes) {
+		this.catchUpBytes = catchUpBytes;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * Sets the shortest frame deflated to the clients that can inflate, see
+	 * Connection. Call it before serve.
+	 * 
+	 * @param deflateBytes
+	 *            - length of the shortest frame deflated, 0 to deflate none
+	 */
+	public void setDeflateBytes(int deflateBytes) {
+		this.deflateBytes = deflateBytes;
+	}
+
+	/**
+	 * @return the clients that have their document, with the lag of each
+	 *         one, see Connection
+	 */
+	public List<Connection> getClients() {
+		ArrayList<Connection> active = new ArrayList<Connection>();
+		for (int i = 1; i < clients.size(); i++) {
+			if (clients.get(i).isActive()) {
+				active.add(clients.get(i));
+			}
+		}
+		return active;
+	}
+
+	/**
+	 * Sets how the connections are handled. Call it before serve.
+	 * 
+	 * @param mode
+	 *            - SELECTOR (the default) or THREAD_PER_CLIENT
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	/** @return how the connections are handled */
+	public Mode getMode() {
+		return this.mode;
+	}
+
+	/**
+	 * Runs a headless server, which needs no display.
+	 * 
+	 * @param args
+	 *            - optional port number, 4444 by default, then optionally
+	 *            "threads" for the THREAD_PER_CLIENT mode
+	 * @throws IOException
+	 *             if the main server socket is broken
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		CollabServer server = new CollabServer("localhost", port,
+				DEFAULT_DOC_NAME, true);
+		if (args.length > 1 && args[1].equals("threads")) {
+			server.setMode(Mode.THREAD_PER_CLIENT);
+		}
+		server.serve();
+	}
+
 }
@@ -2,6 +2,8 @@ package server_client;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -12,12 +14,15 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 
 import org.junit.Test;
 
+import document.ClientState;
 import document.DeleteOperation;
 import document.InsertOperation;
+import document.OpType;
 import document.Operation;
 import document.OperationEngineException;
 
@@ -58,6 +63,11 @@ public class CollabServerTest {
     private static final String DEFAULT_IP = "localhost";
     /** Default document name */
     private static final String DEFAULT_DOC_NAME = "default";
+    /**
+     * Numbers of the documents, learned from the server by the sockets of a
+     * test. They all connect to the same server, so they can share them.
+     */
+    private final DocumentKeys keys = new DocumentKeys();
     
     // Make sure all fields are initialized correctly
     @Test
@@ -214,5 +224,575 @@ public class CollabServerTest {
         server.parseInput(o, "default", 2);
     }
 
-    
+    // Many clients connected to a headless server at once, handled by a few
+    // threads. One of them edits, and every one of them gets the edit.
+    @Test
+    public void manyClients() throws Exception {
+        int threads = Thread.activeCount();
+        manyClients(CollabServer.Mode.SELECTOR, 100);
+        // the connections have no threads of their own
+        assertTrue(Thread.activeCount() - threads < 10);
+    }
+
+    // Same, with a thread for each client
+    @Test
+    public void manyClientsThreads() throws Exception {
+        manyClients(CollabServer.Mode.THREAD_PER_CLIENT, 100);
+    }
+
+    // Two clients on different documents. Each one only gets the
+    // operations of its own document, and the ones it does not get are
+    // counted.
+    @Test
+    public void routesByDocument() throws Exception {
+        final CollabServer server = new CollabServer(DEFAULT_IP, 0, DEFAULT_USERNAME, true);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+
+        String[] docs = { DEFAULT_DOC_NAME, "other" };
+        Socket[] sockets = new Socket[2];
+        DataInputStream[] ins = new DataInputStream[2];
+        int[] ids = new int[2];
+        ClientState[] states = new ClientState[2];
+        for (int i = 0; i < 2; i++) {
+            sockets[i] = new Socket(DEFAULT_IP, server.getPort());
+            ins[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+            FrameCodec.readText(ins[i], keys);
+            FrameCodec.write(sockets[i].getOutputStream(), docs[i]);
+            ids[i] = (Integer) FrameCodec.readText(ins[i], keys);
+            FrameCodec.readText(ins[i], keys);
+            states[i] = (ClientState) FrameCodec.readText(ins[i], keys);
+            FrameCodec.write(sockets[i].getOutputStream(), "user" + i);
+        }
+
+        // each client edits its document, the first one first
+        String[] values = { "x", "y" };
+        for (int i = 0; i < 2; i++) {
+            FrameCodec.write(sockets[i].getOutputStream(), Operation.create(OpType.INSERT,
+                    docs[i], values[i], 0, ids[i], 1, states[i], 0, false));
+            Object o = FrameCodec.readText(ins[i], keys);
+            while (!(o instanceof Operation)) {
+                o = FrameCodec.readText(ins[i], keys);
+            }
+            // the second client never got the first one's operation
+            assertEquals(values[i], ((Operation) o).getValue());
+            assertEquals(docs[i], ((Operation) o).getKey());
+        }
+        assertEquals(2, server.getOpsSent());
+        assertEquals(2, server.getOpsAvoided());
+
+        for (Socket s : sockets) {
+            s.close();
+        }
+        server.shutdown();
+    }
+
+    // Clients that make the same new document at once all get the same one,
+    // with one number
+    @Test(timeout = 60000)
+    public void concurrentJoins() throws Exception {
+        final CollabServer server = new CollabServer(DEFAULT_IP, 0, DEFAULT_USERNAME, true);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+
+        final int n = 8;
+        final Socket[] sockets = new Socket[n];
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final int j = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        sockets[j] = new Socket(DEFAULT_IP, server.getPort());
+                        DataInputStream in = new DataInputStream(
+                                new BufferedInputStream(sockets[j].getInputStream()));
+                        DocumentKeys own = new DocumentKeys();
+                        FrameCodec.readText(in, own);
+                        FrameCodec.write(sockets[j].getOutputStream(), "shared");
+                        FrameCodec.readText(in, own);
+                        FrameCodec.readText(in, own);
+                        FrameCodec.readText(in, own);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(2, server.getDocuments().size());
+        assertEquals(n, server.getDocuments().get("shared").getSubscribers().size());
+        assertEquals(2, server.getKeys().idOf("shared"));
+
+        for (Socket s : sockets) {
+            s.close();
+        }
+        server.shutdown();
+    }
+
+    // The ID of a client that left is given again once the other clients of
+    // its document have acknowledged its operations, and the new client goes
+    // on from the last operation of the old one
+    @Test(timeout = 60000)
+    public void recycledClientID() throws Exception {
+        final CollabServer server = new CollabServer(DEFAULT_IP, 0, DEFAULT_USERNAME, true);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+        ServerDocument document = server.getDocuments().get(DEFAULT_DOC_NAME);
+
+        Socket[] sockets = new Socket[4];
+        DataInputStream[] ins = new DataInputStream[4];
+        int[] ids = new int[4];
+        ClientState[] states = new ClientState[4];
+        for (int i = 0; i < 4; i++) {
+            if (i == 2) {
+                // the first client types, then leaves before the second
+                // acknowledged what it typed
+                FrameCodec.write(sockets[0].getOutputStream(), Operation.create(OpType.INSERT,
+                        DEFAULT_DOC_NAME, "x", 0, ids[0], 1, states[0], 0, false));
+                Object o = FrameCodec.readText(ins[1], keys);
+                while (!(o instanceof Operation)) {
+                    o = FrameCodec.readText(ins[1], keys);
+                }
+                sockets[0].close();
+                while (server.getNumOfUsers() != 1) {
+                    Thread.sleep(10);
+                }
+            }
+            if (i == 3) {
+                FrameCodec.write(sockets[1].getOutputStream(),
+                        ClientState.fromArray(new int[] { 0, 1 }));
+                while (!document.isAcknowledged(ids[0])) {
+                    Thread.sleep(10);
+                }
+            }
+            sockets[i] = new Socket(DEFAULT_IP, server.getPort());
+            ins[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+            FrameCodec.readText(ins[i], keys);
+            FrameCodec.write(sockets[i].getOutputStream(), DEFAULT_DOC_NAME);
+            ids[i] = (Integer) FrameCodec.readText(ins[i], keys);
+            FrameCodec.readText(ins[i], keys);
+            states[i] = (ClientState) FrameCodec.readText(ins[i], keys);
+            FrameCodec.write(sockets[i].getOutputStream(), "user" + i);
+        }
+        assertEquals(1, ids[0]);
+        assertEquals(2, ids[1]);
+        assertEquals(3, ids[2]);
+        assertEquals(1, ids[3]);
+        assertEquals(1, states[3].seqAt(1));
+
+        // the second one sees the operations of both as different ones
+        FrameCodec.write(sockets[3].getOutputStream(), Operation.create(OpType.INSERT,
+                DEFAULT_DOC_NAME, "y", 0, ids[3], 2, states[3], 0, false));
+        Object o = FrameCodec.readText(ins[1], keys);
+        while (!(o instanceof Operation)) {
+            o = FrameCodec.readText(ins[1], keys);
+        }
+        assertEquals("y", ((Operation) o).getValue());
+        assertEquals(2, ((Operation) o).getSeqId());
+        while (!document.getText().startsWith("y")) {
+            Thread.sleep(10);
+        }
+        assertEquals("yxWelcome to Collab Edit", document.getText());
+
+        for (int i = 1; i < 4; i++) {
+            sockets[i].close();
+        }
+        server.shutdown();
+    }
+
+    // A client that can inflate gets the text of a long document deflated,
+    // and operations as they are. The bytes before and after are counted.
+    @Test
+    public void deflatedJoin() throws Exception {
+        final CollabServer server = new CollabServer(DEFAULT_IP, 0, DEFAULT_USERNAME, true);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+
+        // the first client writes a long text
+        Socket writer = new Socket(DEFAULT_IP, server.getPort());
+        DataInputStream writerIn = new DataInputStream(new BufferedInputStream(writer.getInputStream()));
+        FrameCodec.readText(writerIn, keys);
+        FrameCodec.write(writer.getOutputStream(), DEFAULT_DOC_NAME);
+        int id = (Integer) FrameCodec.readText(writerIn, keys);
+        FrameCodec.readText(writerIn, keys);
+        ClientState state = (ClientState) FrameCodec.readText(writerIn, keys);
+        FrameCodec.write(writer.getOutputStream(), "writer");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("line ").append(i).append(" of the document\n");
+        }
+        FrameCodec.write(writer.getOutputStream(), Operation.create(OpType.INSERT,
+                DEFAULT_DOC_NAME, text.toString(), 0, id, 1, state, 0, false));
+        Object o = FrameCodec.readText(writerIn, keys);
+        while (!(o instanceof Operation)) {
+            o = FrameCodec.readText(writerIn, keys);
+        }
+
+        Socket reader = new Socket(DEFAULT_IP, server.getPort());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(reader.getInputStream()));
+        FrameCodec.readText(in, keys);
+        FrameCodec.write(reader.getOutputStream(), new Hello(Hello.DEFLATE));
+        FrameCodec.write(reader.getOutputStream(), DEFAULT_DOC_NAME);
+        FrameCodec.readText(in, keys);
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        assertEquals(FrameCodec.DEFLATED, body[0]);
+        assertEquals(server.getDocuments().get(DEFAULT_DOC_NAME).getText(),
+                FrameCodec.decode(body, 0, body.length, keys));
+        FrameCodec.readText(in, keys);
+        FrameCodec.write(reader.getOutputStream(), "reader");
+
+        Connection c = null;
+        for (Connection client : server.getClients()) {
+            if (client.isDeflating()) {
+                c = client;
+            }
+        }
+        assertTrue(c.getInflatedBytes() > 4 * c.getDeflatedBytes());
+        assertTrue(c.getDeflateNanos() > 0);
+
+        // a keystroke is not deflated
+        ClientState context = state.copy();
+        context.setSeqForClient(id, 1);
+        FrameCodec.write(writer.getOutputStream(), Operation.create(OpType.INSERT,
+                DEFAULT_DOC_NAME, "y", 0, id, 2, context, 0, false));
+        do {
+            body = new byte[in.readInt()];
+            in.readFully(body);
+        } while (body[0] != FrameCodec.INSERT);
+        assertEquals("y", ((Operation) FrameCodec.decode(body, 0, body.length, keys)).getValue());
+
+        writer.close();
+        reader.close();
+        server.shutdown();
+    }
+
+    // A client that stops reading does not hold up the others: another
+    // client of the same document sends more than the sockets to the first
+    // one can hold, and keeps getting its operations back right away
+    @Test(timeout = 60000)
+    public void stalledClient() throws Exception {
+        stalledClient(CollabServer.Mode.SELECTOR);
+        stalledClient(CollabServer.Mode.THREAD_PER_CLIENT);
+    }
+
+    // Same, with a server in the given mode
+    private void stalledClient(CollabServer.Mode mode) throws Exception {
+        final CollabServer server = new CollabServer(DEFAULT_IP, 0, DEFAULT_USERNAME, true);
+        server.setMode(mode);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+
+        // the first client never reads after joining
+        Socket stalled = new Socket();
+        stalled.setReceiveBufferSize(4096);
+        stalled.connect(new InetSocketAddress(DEFAULT_IP, server.getPort()));
+        DataInputStream stalledIn = new DataInputStream(stalled.getInputStream());
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.write(stalled.getOutputStream(), DEFAULT_DOC_NAME);
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.write(stalled.getOutputStream(), "stalled");
+
+        Socket s = new Socket(DEFAULT_IP, server.getPort());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        FrameCodec.readText(in, keys);
+        FrameCodec.write(s.getOutputStream(), DEFAULT_DOC_NAME);
+        int id = (Integer) FrameCodec.readText(in, keys);
+        String text = (String) FrameCodec.readText(in, keys);
+        ClientState state = (ClientState) FrameCodec.readText(in, keys);
+        FrameCodec.write(s.getOutputStream(), "user");
+
+        // about 8 MB, more than the socket buffers
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        int position = text.length();
+        for (int seq = 1; seq <= 8000; seq++) {
+            ClientState context = state.copy();
+            context.setSeqForClient(id, seq - 1);
+            FrameCodec.write(s.getOutputStream(), Operation.create(OpType.INSERT,
+                    DEFAULT_DOC_NAME, value, position, id, seq, context, 0, false));
+            position += value.length();
+            Object o = FrameCodec.readText(in, keys);
+            while (!(o instanceof Operation)) {
+                o = FrameCodec.readText(in, keys);
+            }
+            assertEquals(seq, ((Operation) o).getSeqId());
+        }
+
+        s.close();
+        stalled.close();
+        server.shutdown();
+    }
+
+    // The text a client is sent doesn't count against the limits while it
+    // is queued, and no longer makes room for the frames after it once it is
+    // written
+    @Test
+    public void textExemptUntilWritten() throws Exception {
+        HeldConnection c = new HeldConnection(keys);
+        c.setLimits(1024, 4096);
+        c.setActive(true);
+        String text = new String(new char[3000]).replace('\0', 'a');
+        c.sendText(text);
+        c.send("short");
+        assertFalse(c.isBehind());
+
+        c.writeAll();
+        String op = new String(new char[600]).replace('\0', 'b');
+        c.send(op);
+        assertFalse(c.isBehind());
+        c.send(op);
+        assertTrue(c.isBehind());
+    }
+
+    // A connection that holds its frames until writeAll
+    private static class HeldConnection extends Connection {
+        private final ArrayList<byte[]> frames = new ArrayList<byte[]>();
+
+        HeldConnection(DocumentKeys keys) {
+            super(keys);
+        }
+
+        void writeAll() {
+            for (byte[] frame : frames) {
+                written(frame.length);
+            }
+            frames.clear();
+        }
+
+        @Override
+        void queue(byte[] frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        long dropQueued() {
+            long dropped = 0;
+            for (byte[] frame : frames) {
+                dropped += frame.length;
+            }
+            frames.clear();
+            return dropped;
+        }
+
+        @Override
+        void abort() {
+        }
+
+        @Override
+        boolean close() {
+            return true;
+        }
+    }
+
+    // A client that stops reading gets the text of its document once it
+    // reads again, instead of the operations it missed. With no catch up, it
+    // is disconnected.
+    @Test(timeout = 120000)
+    public void slowConsumer() throws Exception {
+        for (CollabServer.Mode mode : CollabServer.Mode.values()) {
+            slowConsumer(mode, true);
+            slowConsumer(mode, false);
+        }
+    }
+
+    // Same, with a server in the given mode
+    private void slowConsumer(CollabServer.Mode mode, boolean catchUp) throws Exception {
+        final CollabServer server = new CollabServer(DEFAULT_IP, 0, DEFAULT_USERNAME, true);
+        server.setMode(mode);
+        server.setQueueLimits(catchUp ? 64 * 1024 : 256 * 1024, 256 * 1024);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+
+        Socket stalled = new Socket();
+        stalled.setReceiveBufferSize(4096);
+        stalled.connect(new InetSocketAddress(DEFAULT_IP, server.getPort()));
+        DataInputStream stalledIn = new DataInputStream(new BufferedInputStream(
+                stalled.getInputStream()));
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.write(stalled.getOutputStream(), DEFAULT_DOC_NAME);
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.readText(stalledIn, keys);
+        FrameCodec.write(stalled.getOutputStream(), "stalled");
+
+        Socket s = new Socket(DEFAULT_IP, server.getPort());
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        FrameCodec.readText(in, keys);
+        FrameCodec.write(s.getOutputStream(), DEFAULT_DOC_NAME);
+        int id = (Integer) FrameCodec.readText(in, keys);
+        String text = (String) FrameCodec.readText(in, keys);
+        ClientState state = (ClientState) FrameCodec.readText(in, keys);
+        FrameCodec.write(s.getOutputStream(), "user");
+
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String value = new String(chars);
+        int position = text.length();
+        int ops = 6000;
+        for (int seq = 1; seq <= ops; seq++) {
+            ClientState context = state.copy();
+            context.setSeqForClient(id, seq - 1);
+            FrameCodec.write(s.getOutputStream(), Operation.create(OpType.INSERT,
+                    DEFAULT_DOC_NAME, value, position, id, seq, context, 0, false));
+            position += value.length();
+            Object o = FrameCodec.readText(in, keys);
+            while (!(o instanceof Operation)) {
+                o = FrameCodec.readText(in, keys);
+            }
+        }
+
+        if (!catchUp) {
+            for (int wait = 0; wait < 100 && server.getNumOfUsers() > 1; wait++) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, server.getNumOfUsers());
+        } else {
+            Connection lagging = server.getClients().get(0);
+            assertTrue(lagging.isBehind());
+            assertEquals(1, lagging.getCatchUps());
+            assertTrue(lagging.getOpsSkipped() > 0);
+            assertTrue(lagging.getPeakQueuedBytes() <= 64 * 1024);
+
+            // reads what was sent before it fell behind, then answers
+            Object o = FrameCodec.readText(stalledIn, keys);
+            while (!(o instanceof CatchUp)) {
+                o = FrameCodec.readText(stalledIn, keys);
+            }
+            assertFalse(((CatchUp) o).hasText());
+            FrameCodec.write(stalled.getOutputStream(), new CatchUp());
+            o = FrameCodec.readText(stalledIn, keys);
+            while (!(o instanceof CatchUp)) {
+                o = FrameCodec.readText(stalledIn, keys);
+            }
+            assertEquals(server.getDocuments().get(DEFAULT_DOC_NAME).getText(),
+                    ((CatchUp) o).text);
+            assertEquals(ops, ((CatchUp) o).state.getSeqForClient(id));
+
+            // and gets the operations again
+            ClientState context = state.copy();
+            context.setSeqForClient(id, ops);
+            FrameCodec.write(s.getOutputStream(), Operation.create(OpType.INSERT,
+                    DEFAULT_DOC_NAME, "y", 0, id, ops + 1, context, 0, false));
+            o = FrameCodec.readText(stalledIn, keys);
+            while (!(o instanceof Operation)) {
+                o = FrameCodec.readText(stalledIn, keys);
+            }
+            assertEquals("y", ((Operation) o).getValue());
+            assertFalse(lagging.isBehind());
+        }
+
+        s.close();
+        stalled.close();
+        server.shutdown();
+    }
+
+    // Connects n clients to a new headless server in the given mode, makes
+    // the first one edit and checks that they all get it, then disconnects
+    // them and shuts the server down
+    private void manyClients(CollabServer.Mode mode, int n) throws Exception {
+        final CollabServer server = new CollabServer(DEFAULT_IP, 0, DEFAULT_USERNAME, true);
+        server.setMode(mode);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+
+        Socket[] sockets = new Socket[n];
+        DataInputStream[] ins = new DataInputStream[n];
+        int firstID = 0;
+        ClientState firstState = null;
+        for (int i = 0; i < n; i++) {
+            sockets[i] = new Socket(DEFAULT_IP, server.getPort());
+            ins[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+            assertTrue(FrameCodec.readText(ins[i], keys)
+                    instanceof ArrayList<?>);
+            FrameCodec.write(sockets[i].getOutputStream(), DEFAULT_DOC_NAME);
+            int id = (Integer) FrameCodec.readText(ins[i], keys);
+            assertEquals("Welcome to Collab Edit",
+                    FrameCodec.readText(ins[i], keys));
+            ClientState state = (ClientState) FrameCodec.readText(ins[i], keys);
+            FrameCodec.write(sockets[i].getOutputStream(), "user" + i);
+            if (i == 0) {
+                firstID = id;
+                firstState = state;
+            }
+        }
+        assertEquals(n, server.getNumOfUsers());
+
+        FrameCodec.write(sockets[0].getOutputStream(), Operation.create(OpType.INSERT,
+                DEFAULT_DOC_NAME, "x", 0, firstID, 1, firstState, 0, false));
+        for (int i = 0; i < n; i++) {
+            Object o = FrameCodec.readText(ins[i], keys);
+            while (!(o instanceof Operation)) {
+                o = FrameCodec.readText(ins[i], keys);
+            }
+            assertEquals("x", ((Operation) o).getValue());
+            assertEquals(0, ((Operation) o).getOrder());
+        }
+        assertEquals("xWelcome to Collab Edit",
+                server.getDocuments().get(DEFAULT_DOC_NAME).getText());
+
+        for (Socket s : sockets) {
+            s.close();
+        }
+        for (int wait = 0; wait < 100 && server.getNumOfUsers() > 0; wait++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, server.getNumOfUsers());
+        server.shutdown();
+    }
 }
@@ -0,0 +1,469 @@
+package server_client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Testing strategy: tested through CollabServerTest, with real clients
+ * connected to a headless server in each mode, some of them stalled, with
+ * small limits.
+ */
+
+/**
+ * The server's side of the connection to one client. How the bytes are read
+ * and written depends on the mode of the server, see SelectorConnection and
+ * StreamConnection. This remembers where the client is in the protocol:
+ * first it sends the name of its document, then its username, then only
+ * operations and acknowledgements.
+ *
+ * Sending a frame only queues it, the frames are written by a writer of
+ * their own: the SelectorLoop of the connection, or a thread of the
+ * connection. So relaying an operation never waits for a client, and a slow
+ * client only holds up itself. The queue has two limits, in bytes:
+ *
+ * - a client with more than catchUpBytes queued is behind. Its queue is
+ * dropped, and it is sent an empty CatchUp instead, then no operations until
+ * it answers and gets the text of its document, see CollabServer.catchUp.
+ *
+ * - a client with more than maxQueuedBytes queued, e.g. one that does not
+ * answer that, has stopped reading, and is disconnected.
+ *
+ * The text of the document, sent when the client joins or catches up, does
+ * not count, however long it is: the limits are on top of the last text
+ * sent.
+ *
+ * The lag of the client is kept in counters: the bytes queued now and at
+ * most, the number of catch ups and the operations it was not sent while it
+ * was behind.
+ *
+ * A client that can read DEFLATED frames is sent the ones of at least
+ * deflateBytes deflated, see FrameCodec. That is mostly the text of its
+ * document: operations and acknowledgements are far shorter. The bytes of
+ * those frames before and after, and the time spent deflating them, are
+ * counted too.
+ *
+ * Thread safety argument: the protocol state is only changed by the thread
+ * reading from the client. active and behind are volatile, since they are
+ * read by the threads relaying operations. Frames are queued one at a time
+ * under a ReentrantLock, so that the limits are checked against the frames
+ * before them; a virtual thread does not get pinned waiting for it. Writers
+ * take the frames out of the queue without it, and count them with an
+ * AtomicLong. Subclasses make queue, dropQueued, abort and close safe to
+ * call from any thread.
+ *
+ * @author youyanggu
+ *
+ */
+public abstract class Connection {
+
+    /** default catchUpBytes */
+    static final int CATCH_UP_BYTES = 1 << 20;
+
+    /** default maxQueuedBytes */
+    static final int MAX_QUEUED_BYTES = 8 << 20;
+
+    /** default deflateBytes */
+    static final int DEFLATE_BYTES = 1024;
+
+    /** the empty CatchUp, the same for every client */
+    private static final byte[] CATCH_UP;
+
+    static {
+        try {
+            CATCH_UP = FrameCodec.encode(new CatchUp());
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** numbers of the documents, the server's */
+    private final DocumentKeys keys;
+
+    /** true once the client has its document, and can be sent operations */
+    private volatile boolean active = false;
+
+    /** true from the empty CatchUp until the client gets the text */
+    private volatile boolean behind = false;
+
+    /** the client's site ID, -1 until it picked a document */
+    private int clientID = -1;
+
+    /** the document the client is editing */
+    private String documentID;
+
+    /** the username of the client, null until it sent it */
+    private String name;
+
+    /** bytes queued that make a client behind */
+    private int catchUpBytes = CATCH_UP_BYTES;
+
+    /** bytes queued that get a client disconnected */
+    private int maxQueuedBytes = MAX_QUEUED_BYTES;
+
+    /** length of the shortest frame deflated, 0 if the client can't inflate */
+    private volatile int deflateBytes = 0;
+
+    /** held while queueing a frame */
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /** bytes queued and not written yet */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * bytes of the last text sent, not counted against the limits while it
+     * is queued, 0 once it is written
+     */
+    private volatile long textBytes = 0;
+
+    /** bytes to write until the last text sent is written, see written */
+    private final AtomicLong textAhead = new AtomicLong();
+
+    /** most bytes that were queued at once */
+    private volatile long peakQueuedBytes = 0;
+
+    /** number of times the client fell behind */
+    private volatile int catchUps = 0;
+
+    /** operations not sent to the client because it was behind */
+    private final AtomicLong opsSkipped = new AtomicLong();
+
+    /** bytes of the frames sent deflated, before deflating them */
+    private final AtomicLong inflatedBytes = new AtomicLong();
+
+    /** bytes of the frames sent deflated */
+    private final AtomicLong deflatedBytes = new AtomicLong();
+
+    /** nanoseconds spent deflating frames for the client */
+    private final AtomicLong deflateNanos = new AtomicLong();
+
+    /**
+     * @param keys
+     *            - numbers of the documents, the server's. Frames to and from
+     *            the client are encoded with them.
+     */
+    Connection(DocumentKeys keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Puts a frame at the end of the queue, for the writer. Does nothing if
+     * the connection is closed.
+     *
+     * @param frame
+     *            - the frame, not modified
+     */
+    abstract void queue(byte[] frame);
+
+    /**
+     * Drops the frames that are queued and not being written yet
+     *
+     * @return the number of bytes dropped
+     */
+    abstract long dropQueued();
+
+    /**
+     * Closes the connection without waiting for anything: the thread reading
+     * from the client then closes it and tells the server
+     */
+    abstract void abort();
+
+    /**
+     * Closes the connection
+     *
+     * @return true if the connection was open
+     */
+    abstract boolean close();
+
+    /**
+     * Queues a frame to the client, without waiting for it to be written.
+     * Does nothing if the connection is closed. If the limits are passed,
+     * sends the client an empty CatchUp instead, or aborts the connection.
+     *
+     * @param frame
+     *            - the frame, from FrameCodec.encode. Not modified, so the
+     *            same frame can be sent to several clients
+     */
+    void sendFrame(byte[] frame) {
+        this.sendLock.lock();
+        try {
+            long queued = this.queuedBytes.get() + frame.length
+                    - this.textBytes;
+            if (queued > this.catchUpBytes && isActive() && !this.behind
+                    && this.catchUpBytes < this.maxQueuedBytes) {
+                // the client can have the text instead of what it missed
+                this.behind = true;
+                this.catchUps++;
+                this.queuedBytes.addAndGet(-dropQueued());
+                // the text may have been dropped with the rest
+                this.textAhead.set(0);
+                this.textBytes = 0;
+                frame = CATCH_UP;
+                queued = this.queuedBytes.get() + frame.length
+                        - this.textBytes;
+            }
+            if (queued > this.maxQueuedBytes) {
+                // the client stopped reading, don't keep its frames
+                setActive(false);
+                abort();
+                return;
+            }
+            this.queuedBytes.addAndGet(frame.length);
+            this.peakQueuedBytes = Math.max(this.peakQueuedBytes, queued);
+            queue(frame);
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame to the client like sendFrame, deflated if the client
+     * can inflate it and it is long enough
+     *
+     * @param frame
+     *            - the frame, from FrameCodec.encode. Not modified.
+     * @param deflated
+     *            - the frame, already deflated for another client, or null
+     * @return the frame deflated, if it was, to send to the next client,
+     *         else deflated
+     * @throws IOException
+     *             never, the frame is always valid
+     */
+    byte[] sendFrame(byte[] frame, byte[] deflated) throws IOException {
+        byte[] sent = deflate(frame, deflated);
+        sendFrame(sent);
+        return sent != frame ? sent : deflated;
+    }
+
+    /**
+     * Deflates a frame if the client can inflate it and it is long enough,
+     * and counts it
+     *
+     * @param frame
+     *            - the frame
+     * @param deflated
+     *            - the frame, already deflated for another client, or null
+     * @return the frame to send
+     * @throws IOException
+     *             never, the frame is always valid
+     */
+    private byte[] deflate(byte[] frame, byte[] deflated) throws IOException {
+        int threshold = this.deflateBytes;
+        if (threshold <= 0 || frame.length < threshold) {
+            return frame;
+        }
+        if (deflated == null) {
+            long start = System.nanoTime();
+            deflated = FrameCodec.deflate(frame);
+            this.deflateNanos.addAndGet(System.nanoTime() - start);
+        }
+        this.inflatedBytes.addAndGet(frame.length);
+        this.deflatedBytes.addAndGet(deflated.length);
+        return deflated;
+    }
+
+    /**
+     * Encodes a message with the text of the document and sends it to the
+     * client, whatever its length, in several frames if it is long, see
+     * FrameCodec.encodeText. The limits don't count it until it is written.
+     *
+     * @param o
+     *            - the message
+     * @throws IOException
+     *             if the object is not a message
+     */
+    void sendText(Object o) throws IOException {
+        byte[][] frames = FrameCodec.encodeText(o, this.keys);
+        long length = 0;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = deflate(frames[i], null);
+            length += frames[i].length;
+        }
+        this.sendLock.lock();
+        try {
+            this.textAhead.set(this.queuedBytes.get() + length);
+            this.textBytes = length;
+            this.queuedBytes.addAndGet(length);
+            for (byte[] frame : frames) {
+                queue(frame);
+            }
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the writer after it wrote a frame, or dropped it with the
+     * connection
+     *
+     * @param bytes
+     *            - the length of the frame
+     */
+    void written(long bytes) {
+        this.queuedBytes.addAndGet(-bytes);
+        // the frames are written in order, so the text is out once the
+        // bytes queued up to it are
+        if (this.textAhead.get() > 0 && this.textAhead.addAndGet(-bytes) <= 0) {
+            this.textAhead.set(0);
+            this.textBytes = 0;
+        }
+    }
+
+    /**
+     * Encodes a message and sends it to the client
+     *
+     * @param o
+     *            - the message
+     * @throws IOException
+     *             if the object is not a message
+     */
+    void send(Object o) throws IOException {
+        sendFrame(FrameCodec.encode(o, this.keys), null);
+    }
+
+    /**
+     * Sets the limits of the queue, see the class comment
+     *
+     * @param catchUpBytes
+     *            - bytes queued that make the client behind. At least
+     *            maxQueuedBytes to never catch up.
+     * @param maxQueuedBytes
+     *            - bytes queued that get the client disconnected
+     */
+    void setLimits(int catchUpBytes, int maxQueuedBytes) {
+        this.catchUpBytes = catchUpBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /** @return the numbers of the documents frames are encoded with */
+    DocumentKeys getKeys() {
+        return this.keys;
+    }
+
+    /**
+     * Deflates the frames to the client from now on, see the class comment
+     *
+     * @param deflateBytes
+     *            - length of the shortest frame deflated, 0 to deflate none
+     */
+    void setDeflate(int deflateBytes) {
+        this.deflateBytes = deflateBytes;
+    }
+
+    /** @return true if the client is sent long frames deflated */
+    public boolean isDeflating() {
+        return this.deflateBytes > 0;
+    }
+
+    /** @return the bytes of the frames sent deflated, before deflating */
+    public long getInflatedBytes() {
+        return this.inflatedBytes.get();
+    }
+
+    /** @return the bytes of the frames sent deflated */
+    public long getDeflatedBytes() {
+        return this.deflatedBytes.get();
+    }
+
+    /**
+     * @return the nanoseconds spent deflating frames for the client. A frame
+     *         sent to several clients is only deflated once, for the first.
+     */
+    public long getDeflateNanos() {
+        return this.deflateNanos.get();
+    }
+
+    /** @return true if the client has its document */
+    public boolean isActive() {
+        return this.active;
+    }
+
+    /**
+     * @param active
+     *            - true once the client has its document
+     */
+    void setActive(boolean active) {
+        this.active = active;
+    }
+
+    /**
+     * @return true if the client was sent an empty CatchUp and has not got the
+     *         text yet. It is not sent operations.
+     */
+    public boolean isBehind() {
+        return this.behind;
+    }
+
+    /**
+     * Called once the client was sent the text of its document
+     */
+    void caughtUp() {
+        this.behind = false;
+    }
+
+    /**
+     * Counts an operation the client was not sent because it is behind
+     */
+    void skipped() {
+        this.opsSkipped.incrementAndGet();
+    }
+
+    /** @return the number of bytes queued to the client now */
+    public long getQueuedBytes() {
+        return this.queuedBytes.get();
+    }
+
+    /** @return the most bytes that were queued to the client at once */
+    public long getPeakQueuedBytes() {
+        return this.peakQueuedBytes;
+    }
+
+    /** @return the number of times the client fell behind */
+    public int getCatchUps() {
+        return this.catchUps;
+    }
+
+    /**
+     * @return the number of operations the client was not sent because it
+     *         was behind
+     */
+    public long getOpsSkipped() {
+        return this.opsSkipped.get();
+    }
+
+    /** @return the site ID of the client, -1 until it picked a document */
+    public int getClientID() {
+        return this.clientID;
+    }
+
+    /** @return the document the client is editing */
+    public String getDocumentID() {
+        return this.documentID;
+    }
+
+    /**
+     * Records the document the client picked and the site ID it was given
+     *
+     * @param clientID
+     *            - the site ID
+     * @param documentID
+     *            - the document
+     */
+    void setDocument(int clientID, String documentID) {
+        this.clientID = clientID;
+        this.documentID = documentID;
+    }
+
+    /** @return the username of the client, null until it sent it */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @param name
+     *            - the username of the client
+     */
+    void setName(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,74 @@
+package server_client;
+
+import java.util.HashMap;
+
+/**
+ * Numbers for the names of the documents, so that an operation carries a
+ * small number instead of the name of its document, see FrameCodec. The
+ * server numbers its documents from 1 as they are created, and the clients
+ * learn the numbers from the lists of documents it sends them. 0 is no
+ * number: the name itself is sent, e.g. by a client that just created its
+ * document.
+ *
+ * Thread safety argument: all methods are synchronized. The server's keys are
+ * shared by the threads of all the connections.
+ *
+ * @author youyanggu
+ *
+ */
+public class DocumentKeys {
+
+    /** number of each name */
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    /** name of each number */
+    private final HashMap<Integer, String> names = new HashMap<Integer, String>();
+
+    /**
+     * Numbers a name, if it has no number yet
+     *
+     * @param name
+     *            - name of a document
+     * @return the number of the name
+     */
+    public synchronized int add(String name) {
+        Integer id = this.ids.get(name);
+        if (id == null) {
+            id = this.ids.size() + 1;
+            put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Records the number of a name, as told by the server
+     *
+     * @param name
+     *            - name of a document
+     * @param id
+     *            - its number, more than 0
+     */
+    public synchronized void put(String name, int id) {
+        this.ids.put(name, id);
+        this.names.put(id, name);
+    }
+
+    /**
+     * @param name
+     *            - name of a document
+     * @return the number of the name, 0 if it has none
+     */
+    public synchronized int idOf(String name) {
+        Integer id = this.ids.get(name);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * @param id
+     *            - number of a document
+     * @return the name with that number, null if none
+     */
+    public synchronized String nameOf(int id) {
+        return this.names.get(id);
+    }
+}
@@ -0,0 +1,897 @@
+package server_client;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import document.ClientState;
+import document.DeleteOperation;
+import document.InsertOperation;
+import document.OpType;
+import document.Operation;
+import document.Pair;
+
+/*
+ * Testing strategy: see FrameCodecTest. Encode objects of every type the
+ * server and client send and decode them again, from a stream and from a
+ * buffer that holds no frame, part of a frame, or several frames. Lengths
+ * that can't be right are errors, and so are bodies that are cut short or of
+ * an unknown type. Keys are sent as numbers once both sides know them, and as
+ * names before. Deflated frames decode to the same messages.
+ */
+
+/**
+ * The messages between the server and the clients are frames: a 4-byte
+ * length, then the body. Every frame can be decoded by itself, so the server
+ * can read whatever part of a message has arrived without blocking, and hold
+ * it until the rest comes. The client reads and writes them with blocking
+ * streams, the server with ByteBuffers, see Connection.
+ *
+ * The body is the type of the message in one byte, then its fields. Numbers
+ * are varints: 7 bits a byte, low bits first, so the site, sequence numbers
+ * and order of an operation usually take a byte or two each. Strings are
+ * their UTF-8 bytes after their length. The name of the document of an
+ * operation is sent as its number in the DocumentKeys, once the other side
+ * knows it, so a keystroke is a frame of a few dozen bytes. The messages
+ * are, with the object they are decoded to:
+ *
+ * - DOCUMENTS, an ArrayList of names of documents, each with its number: the
+ * documents a new client can pick
+ *
+ * - TEXT, a String: the name of the document a client picks, its username, or
+ * the text of its document
+ *
+ * - SITE, an Integer: the site ID of a new client, with the name and number
+ * of the document it picked, which it may not know yet if it just made it
+ *
+ * - STATE, a ClientState: the state of the document of a new client, or an
+ * acknowledgement
+ *
+ * - INSERT and DELETE, an Operation
+ *
+ * - PRESENCE, a Pair of the users and the DOCUMENTS
+ *
+ * - CATCH_UP, a CatchUp: the snapshot of a client that fell behind
+ *
+ * - HELLO, a Hello: what a client can read, before it picks a document
+ *
+ * - PART, a piece of the text of the next TEXT or CATCH_UP. A text longer
+ * than TEXT_PART characters is cut in pieces, so that the text of a document
+ * of any length can be sent in frames of at most MAX_FRAME, see encodeText.
+ * Only the server sends them: the client reads them with readText, which
+ * puts the pieces back together, and anywhere else a PART is an error.
+ *
+ * - DEFLATED: any other message, compressed with the JDK's Deflater, after
+ * its length. A client that can read them says so in its HELLO, before it
+ * picks a document; the server then deflates the frames to it that
+ * are long enough, see Connection. The text of a document is sent in under a
+ * third of the bytes, but a keystroke would not get any shorter.
+ *
+ * Unlike the Java serialization used before, nothing is kept between
+ * frames, and there are no class descriptors.
+ *
+ * Thread safety argument: there is no state, the keys are thread-safe, so
+ * this is thread-safe.
+ *
+ * @author youyanggu
+ *
+ */
+public class FrameCodec {
+
+    /** Size of the length at the start of a frame */
+    public static final int HEADER = 4;
+
+    /**
+     * Largest frame accepted, anything longer is a broken stream. Texts
+     * longer than that are sent in parts, see encodeText.
+     */
+    public static final int MAX_FRAME = 16 << 20;
+
+    /**
+     * Most characters of text in one frame, see encodeText. A character takes
+     * at most 3 bytes of UTF-8, so the frame is well under MAX_FRAME.
+     */
+    public static final int TEXT_PART = 1 << 20;
+
+    /** Most characters readText puts back together */
+    public static final int MAX_TEXT = 256 << 20;
+
+    /** types of the messages, the first byte of a body */
+    static final byte DOCUMENTS = 1;
+    static final byte TEXT = 2;
+    static final byte SITE = 3;
+    static final byte STATE = 4;
+    static final byte INSERT = 5;
+    static final byte DELETE = 6;
+    static final byte PRESENCE = 7;
+    static final byte CATCH_UP = 8;
+    static final byte DEFLATED = 9;
+    static final byte PART = 10;
+    static final byte HELLO = 11;
+
+    /**
+     * level of the Deflater. The fastest: it still deflates about 50 MB of
+     * text a second, faster than any network it saves time on, and the text
+     * of a document is deflated with the document locked.
+     */
+    private static final int DEFLATE_LEVEL = Deflater.BEST_SPEED;
+
+    /** flags of an operation */
+    private static final int LOCAL = 1;
+    private static final int VALUE = 2;
+
+    /** order of an operation the server hasn't stamped, Operation.infinity */
+    private static final long UNORDERED = Long.MAX_VALUE;
+
+    /**
+     * Encodes a message into a frame, with the names of the documents
+     *
+     * @param o
+     *            - the message, of one of the types in the class comment
+     * @return the frame, length first
+     * @throws IOException
+     *             if the object is not a message
+     */
+    public static byte[] encode(Object o) throws IOException {
+        return encode(o, null);
+    }
+
+    /**
+     * Encodes a message into a frame
+     *
+     * @param o
+     *            - the message, of one of the types in the class comment
+     * @param keys
+     *            - numbers of the documents, null to send the names
+     * @return the frame, length first
+     * @throws IOException
+     *             if the object is not a message
+     */
+    public static byte[] encode(Object o, DocumentKeys keys)
+            throws IOException {
+        Writer out;
+        if (o instanceof Operation) {
+            Operation op = (Operation) o;
+            out = new Writer(64);
+            writeOperation(out, op, keys);
+        } else if (o instanceof String) {
+            String text = (String) o;
+            out = new Writer(16 + 3 * text.length());
+            out.writeByte(TEXT);
+            out.writeString(text);
+        } else if (o instanceof ClientState) {
+            out = new Writer(64);
+            out.writeByte(STATE);
+            writeState(out, (ClientState) o);
+        } else if (o instanceof Integer) {
+            return encodeSite((Integer) o, null, keys);
+        } else if (o instanceof ArrayList<?>) {
+            out = new Writer(256);
+            out.writeByte(DOCUMENTS);
+            writeDocuments(out, (ArrayList<?>) o, keys);
+        } else if (o instanceof Pair<?, ?>) {
+            Pair<?, ?> pair = (Pair<?, ?>) o;
+            out = new Writer(256);
+            out.writeByte(PRESENCE);
+            writeStrings(out, (ArrayList<?>) pair.first);
+            writeDocuments(out, (ArrayList<?>) pair.second, keys);
+        } else if (o instanceof Hello) {
+            out = new Writer(8);
+            out.writeByte(HELLO);
+            out.writeVarint(((Hello) o).features);
+        } else if (o instanceof CatchUp) {
+            CatchUp catchUp = (CatchUp) o;
+            out = new Writer(catchUp.hasText() ? 64 + 3 * catchUp.text
+                    .length() : 16);
+            out.writeByte(CATCH_UP);
+            out.writeByte(catchUp.hasText() ? 1 : 0);
+            if (catchUp.hasText()) {
+                out.writeString(catchUp.text);
+                writeState(out, catchUp.state);
+            }
+        } else {
+            throw new IOException("Not a message: " + o);
+        }
+        return out.toFrame();
+    }
+
+    /**
+     * Encodes a message with the text of a document, a String or a CatchUp,
+     * into frames. A text of more than TEXT_PART characters is cut in parts:
+     * a PART frame for each but the last, which goes in the message itself.
+     * Any other message is a single frame, as from encode.
+     *
+     * @param o
+     *            - the message
+     * @param keys
+     *            - numbers of the documents, see encode
+     * @return the frames, in the order they have to be sent
+     * @throws IOException
+     *             if the object is not a message
+     */
+    public static byte[][] encodeText(Object o, DocumentKeys keys)
+            throws IOException {
+        String text = null;
+        if (o instanceof String) {
+            text = (String) o;
+        } else if (o instanceof CatchUp) {
+            text = ((CatchUp) o).text;
+        }
+        if (text == null || text.length() <= TEXT_PART) {
+            return new byte[][] { encode(o, keys) };
+        }
+        ArrayList<byte[]> frames = new ArrayList<byte[]>();
+        int start = 0;
+        while (text.length() - start > TEXT_PART) {
+            int end = start + TEXT_PART;
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                // don't cut a character in two
+                end--;
+            }
+            Writer out = new Writer(16 + 3 * (end - start));
+            out.writeByte(PART);
+            out.writeString(text.substring(start, end));
+            frames.add(out.toFrame());
+            start = end;
+        }
+        String last = text.substring(start);
+        frames.add(encode(o instanceof CatchUp ? new CatchUp(last,
+                ((CatchUp) o).state) : last, keys));
+        return frames.toArray(new byte[frames.size()][]);
+    }
+
+    /**
+     * Encodes the site ID of a new client into a frame, with the document it
+     * picked
+     *
+     * @param siteId
+     *            - the site ID
+     * @param documentID
+     *            - the document, null to not send it
+     * @param keys
+     *            - numbers of the documents, null to not send the document
+     * @return the frame, length first
+     * @throws IOException
+     *             never, the message is always valid
+     */
+    public static byte[] encodeSite(int siteId, String documentID,
+            DocumentKeys keys) throws IOException {
+        int id = keys == null || documentID == null ? 0 : keys
+                .idOf(documentID);
+        Writer out = new Writer(id == 0 ? 8 : 8 + 3 * documentID.length());
+        out.writeByte(SITE);
+        out.writeVarint(siteId);
+        out.writeString(id == 0 ? null : documentID);
+        out.writeVarint(id);
+        return out.toFrame();
+    }
+
+    /**
+     * Writes an operation, as made by its site. A transformed delete, that
+     * removes several ranges, is never sent.
+     */
+    private static void writeOperation(Writer out, Operation op,
+            DocumentKeys keys) throws IOException {
+        boolean delete = op instanceof DeleteOperation;
+        if (!delete && !(op instanceof InsertOperation)) {
+            throw new IOException("Not a message: " + op);
+        }
+        if (delete && ((DeleteOperation) op).getRanges().length > 2) {
+            throw new IOException("Can't send a split delete: " + op);
+        }
+        out.writeByte(delete ? DELETE : INSERT);
+        String key = op.getKey();
+        int id = keys == null || key == null ? 0 : keys.idOf(key);
+        out.writeVarint(id);
+        if (id == 0) {
+            out.writeString(key);
+        }
+        out.writeVarint(op.getSiteId());
+        out.writeVarint(op.getSeqId());
+        out.writeVarlong(writeOrder(op.getOrder()));
+        out.writeVarint(op.getPosition());
+        String value = op.getValue();
+        out.writeByte((op.isLocal() ? LOCAL : 0) | (value != null ? VALUE : 0));
+        if (value != null) {
+            out.writeString(value);
+        } else {
+            out.writeVarint(op.getLength());
+        }
+        writeState(out, op.getClientState());
+    }
+
+    /**
+     * @return the order of an operation as it is sent: 0 if the server hasn't
+     *         stamped it yet, so a client's operation takes a single byte for
+     *         it, and one more than the order if it has
+     */
+    private static long writeOrder(long order) {
+        return order == UNORDERED ? 0 : order + 1;
+    }
+
+    /** @return the order of an operation, from what writeOrder sent */
+    private static long readOrder(long sent) {
+        return sent == 0 ? UNORDERED : sent - 1;
+    }
+
+    /**
+     * Writes the sequence numbers of a ClientState, after their count. The
+     * zeros at the end are left out, they are read back as the same state.
+     */
+    private static void writeState(Writer out, ClientState state) {
+        int[] sites = state.getState();
+        int n = sites.length;
+        while (n > 0 && sites[n - 1] == 0) {
+            n--;
+        }
+        out.writeVarint(n);
+        for (int i = 0; i < n; i++) {
+            out.writeVarint(sites[i]);
+        }
+    }
+
+    /** Writes strings after their count */
+    private static void writeStrings(Writer out, ArrayList<?> strings) {
+        out.writeVarint(strings.size());
+        for (Object s : strings) {
+            out.writeString((String) s);
+        }
+    }
+
+    /** Writes names of documents after their count, each with its number */
+    private static void writeDocuments(Writer out, ArrayList<?> names,
+            DocumentKeys keys) {
+        out.writeVarint(names.size());
+        for (Object name : names) {
+            out.writeString((String) name);
+            out.writeVarint(keys == null ? 0 : keys.idOf((String) name));
+        }
+    }
+
+    /**
+     * Compresses a frame into a DEFLATED frame
+     *
+     * @param frame
+     *            - the frame, from encode. Not modified.
+     * @return the DEFLATED frame, or the frame itself if compressing does not
+     *         make it shorter
+     * @throws IOException
+     *             never, the message is always valid
+     */
+    public static byte[] deflate(byte[] frame) throws IOException {
+        int length = frame.length - HEADER;
+        Deflater deflater = new Deflater(DEFLATE_LEVEL, true);
+        try {
+            deflater.setInput(frame, HEADER, length);
+            deflater.finish();
+            Writer out = new Writer(length / 4 + 16);
+            out.writeByte(DEFLATED);
+            out.writeVarint(length);
+            while (!deflater.finished() && out.size < frame.length) {
+                out.ensure(Math.max(64, length / 8));
+                out.size += deflater.deflate(out.bytes, out.size,
+                        out.bytes.length - out.size);
+            }
+            return out.size < frame.length ? out.toFrame() : frame;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses the body of a DEFLATED frame, after its type
+     */
+    private static byte[] inflate(ByteBuffer in) throws IOException {
+        byte[] body = new byte[length(readVarint(in))];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(in.array(), in.arrayOffset() + in.position(),
+                    in.remaining());
+            int n = inflater.inflate(body);
+            if (n != body.length || !inflater.finished()
+                    || inflater.getRemaining() > 0) {
+                throw new IOException("Broken deflated frame");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Broken deflated frame: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        if (body[0] == DEFLATED) {
+            throw new IOException("Frame deflated twice");
+        }
+        return body;
+    }
+
+    /**
+     * Decodes the body of a frame, with the names of the documents
+     *
+     * @param body
+     *            - array holding the body
+     * @param offset
+     *            - start of the body in the array
+     * @param length
+     *            - length of the body
+     * @return the message
+     * @throws IOException
+     *             if the body is not a message
+     */
+    public static Object decode(byte[] body, int offset, int length)
+            throws IOException {
+        return decode(body, offset, length, null);
+    }
+
+    /**
+     * Decodes the body of a frame
+     *
+     * @param body
+     *            - array holding the body
+     * @param offset
+     *            - start of the body in the array
+     * @param length
+     *            - length of the body
+     * @param keys
+     *            - numbers of the documents. The numbers in the lists of
+     *            documents are added to them. Null if numbers are not used.
+     * @return the message
+     * @throws IOException
+     *             if the body is not a message, or has a number that is not
+     *             in the keys, or is a PART
+     */
+    public static Object decode(byte[] body, int offset, int length,
+            DocumentKeys keys) throws IOException {
+        return decode(body, offset, length, keys, false);
+    }
+
+    /**
+     * Decodes the body of a frame, a Part if parts is true and it is one
+     */
+    private static Object decode(byte[] body, int offset, int length,
+            DocumentKeys keys, boolean parts) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(body, offset, length);
+        try {
+            Object o;
+            byte type = in.get();
+            if (type == DEFLATED) {
+                byte[] inflated = inflate(in);
+                return decode(inflated, 0, inflated.length, keys, parts);
+            }
+            if (type == PART && !parts) {
+                throw new IOException("Part of a text out of readText");
+            }
+            switch (type) {
+            case INSERT:
+            case DELETE:
+                o = readOperation(in, type, keys);
+                break;
+            case TEXT:
+                o = readString(in);
+                break;
+            case STATE:
+                o = readState(in);
+                break;
+            case SITE:
+                o = Integer.valueOf(readVarint(in));
+                String name = readString(in);
+                int id = readVarint(in);
+                if (name != null && id != 0 && keys != null) {
+                    keys.put(name, id);
+                }
+                break;
+            case DOCUMENTS:
+                o = readDocuments(in, keys);
+                break;
+            case PRESENCE:
+                ArrayList<String> users = readStrings(in);
+                o = new Pair<ArrayList<String>, ArrayList<String>>(users,
+                        readDocuments(in, keys));
+                break;
+            case CATCH_UP:
+                if (in.get() == 0) {
+                    o = new CatchUp();
+                } else {
+                    String text = readString(in);
+                    o = new CatchUp(text, readState(in));
+                }
+                break;
+            case PART:
+                o = new Part(readString(in));
+                break;
+            case HELLO:
+                o = new Hello(readVarint(in));
+                break;
+            default:
+                throw new IOException("Unknown message type " + type);
+            }
+            if (in.hasRemaining()) {
+                throw new IOException("Frame longer than its message");
+            }
+            return o;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Frame shorter than its message");
+        }
+    }
+
+    /** Reads an operation, after its type */
+    private static Operation readOperation(ByteBuffer in, byte type,
+            DocumentKeys keys) throws IOException {
+        int id = readVarint(in);
+        String key;
+        if (id == 0) {
+            key = readString(in);
+        } else {
+            key = keys == null ? null : keys.nameOf(id);
+            if (key == null) {
+                throw new IOException("Unknown document number " + id);
+            }
+        }
+        int siteId = readVarint(in);
+        int seqId = readVarint(in);
+        long order = readOrder(readVarlong(in));
+        int position = readVarint(in);
+        int flags = in.get();
+        boolean local = (flags & LOCAL) != 0;
+        String value = null;
+        int deleted = 0;
+        if ((flags & VALUE) != 0) {
+            value = readString(in);
+        } else {
+            deleted = readVarint(in);
+        }
+        ClientState state = readState(in);
+        if (type == DELETE && value == null) {
+            return Operation.createDelete(key, position, deleted, siteId,
+                    seqId, state, order, local);
+        }
+        return Operation.create(type == DELETE ? OpType.DELETE
+                : OpType.INSERT, key, value, position, siteId, seqId, state,
+                order, local);
+    }
+
+    /** Reads a ClientState */
+    private static ClientState readState(ByteBuffer in) throws IOException {
+        int[] sites = new int[count(in)];
+        for (int i = 0; i < sites.length; i++) {
+            sites[i] = readVarint(in);
+        }
+        return ClientState.fromArray(sites);
+    }
+
+    /** Reads strings, after their count */
+    private static ArrayList<String> readStrings(ByteBuffer in)
+            throws IOException {
+        int n = count(in);
+        ArrayList<String> strings = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    /** Reads names of documents, and adds their numbers to the keys */
+    private static ArrayList<String> readDocuments(ByteBuffer in,
+            DocumentKeys keys) throws IOException {
+        int n = count(in);
+        ArrayList<String> names = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            String name = readString(in);
+            int id = readVarint(in);
+            if (id != 0 && keys != null) {
+                keys.put(name, id);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    /** Reads a string, null if its length is -1 */
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readVarint(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Frame shorter than its message");
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(),
+                length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /** Reads a count, which can't be more than the bytes left */
+    private static int count(ByteBuffer in) throws IOException {
+        int n = readVarint(in);
+        if (n < 0 || n > in.remaining()) {
+            throw new IOException("Bad count: " + n);
+        }
+        return n;
+    }
+
+    /** Reads a varint */
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /** Reads a varint of 64 bits */
+    private static long readVarlong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Takes the next whole frame out of a buffer, if there is one.
+     *
+     * @param buffer
+     *            - heap buffer, ready to be read from. Its position is moved
+     *            past the frame, or not moved if the frame is not all there
+     * @param keys
+     *            - numbers of the documents, see decode
+     * @return the message in the frame, or null if the buffer does not hold
+     *         a whole frame yet
+     * @throws IOException
+     *             if the frame is broken
+     */
+    public static Object next(ByteBuffer buffer, DocumentKeys keys)
+            throws IOException {
+        if (buffer.remaining() < HEADER) {
+            return null;
+        }
+        int length = length(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < HEADER + length) {
+            return null;
+        }
+        int start = buffer.arrayOffset() + buffer.position() + HEADER;
+        buffer.position(buffer.position() + HEADER + length);
+        return decode(buffer.array(), start, length, keys);
+    }
+
+    /**
+     * Same as next(buffer, null)
+     *
+     * @param buffer
+     *            - heap buffer, ready to be read from
+     * @return the message in the frame, or null
+     * @throws IOException
+     *             if the frame is broken
+     */
+    public static Object next(ByteBuffer buffer) throws IOException {
+        return next(buffer, null);
+    }
+
+    /**
+     * Checks the length read at the start of a frame
+     *
+     * @param length
+     *            - the length
+     * @return the length
+     * @throws IOException
+     *             if it can't be the length of a frame
+     */
+    public static int length(int length) throws IOException {
+        if (length <= 0 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes a message as a frame to a stream, and flushes it
+     *
+     * @param out
+     *            - the stream
+     * @param o
+     *            - the message
+     * @param keys
+     *            - numbers of the documents, see encode
+     * @throws IOException
+     *             if the stream is broken
+     */
+    public static void write(OutputStream out, Object o, DocumentKeys keys)
+            throws IOException {
+        out.write(encode(o, keys));
+        out.flush();
+    }
+
+    /**
+     * Same as write(out, o, null)
+     *
+     * @param out
+     *            - the stream
+     * @param o
+     *            - the message
+     * @throws IOException
+     *             if the stream is broken
+     */
+    public static void write(OutputStream out, Object o) throws IOException {
+        write(out, o, null);
+    }
+
+    /**
+     * Reads the next frame from a stream, blocking until it is all there
+     *
+     * @param in
+     *            - the stream
+     * @param keys
+     *            - numbers of the documents, see decode
+     * @return the message in the frame
+     * @throws IOException
+     *             if the stream is broken or ends, or the frame is a PART
+     */
+    public static Object read(DataInputStream in, DocumentKeys keys)
+            throws IOException {
+        return readFrame(in, keys, false);
+    }
+
+    /**
+     * Reads the next message from a stream like read, putting a text sent in
+     * PART frames back together. For the client, which the server sends the
+     * text of its document to.
+     *
+     * @param in
+     *            - the stream
+     * @param keys
+     *            - numbers of the documents, see decode
+     * @return the message, with the whole text if it came in parts
+     * @throws IOException
+     *             if the stream is broken or ends, or the text is longer
+     *             than MAX_TEXT
+     */
+    public static Object readText(DataInputStream in, DocumentKeys keys)
+            throws IOException {
+        Object o = readFrame(in, keys, true);
+        if (!(o instanceof Part)) {
+            return o;
+        }
+        // the text of the next message, in parts
+        StringBuilder text = new StringBuilder();
+        while (o instanceof Part) {
+            text.append(((Part) o).text);
+            if (text.length() > MAX_TEXT) {
+                throw new IOException("Text longer than " + MAX_TEXT);
+            }
+            o = readFrame(in, keys, true);
+        }
+        if (o instanceof String) {
+            return text.append((String) o).toString();
+        } else if (o instanceof CatchUp && ((CatchUp) o).hasText()) {
+            CatchUp catchUp = (CatchUp) o;
+            return new CatchUp(text.append(catchUp.text).toString(),
+                    catchUp.state);
+        }
+        throw new IOException("Parts of a text before " + o);
+    }
+
+    /** Reads the next frame from a stream, a Part if parts is true */
+    private static Object readFrame(DataInputStream in, DocumentKeys keys,
+            boolean parts) throws IOException {
+        int length = length(in.readInt());
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(body, 0, length, keys, parts);
+    }
+
+    /**
+     * Same as read(in, null)
+     *
+     * @param in
+     *            - the stream
+     * @return the message in the frame
+     * @throws IOException
+     *             if the stream is broken or ends
+     */
+    public static Object read(DataInputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * A PART of a text, decoded. Only readText gets them, and puts them back
+     * together.
+     */
+    static final class Part {
+
+        /** the piece of text */
+        final String text;
+
+        Part(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * A frame being written: room for the length, then the body. Grows as
+     * needed.
+     */
+    private static class Writer {
+
+        /** the frame so far */
+        private byte[] bytes;
+
+        /** length of the frame so far */
+        private int size = HEADER;
+
+        /**
+         * @param capacity
+         *            - expected length of the body
+         */
+        Writer(int capacity) {
+            this.bytes = new byte[HEADER + capacity];
+        }
+
+        /** Makes room for n more bytes */
+        private void ensure(int n) {
+            if (this.size + n > this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, Math.max(
+                        this.size + n, 2 * this.bytes.length));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            this.bytes[this.size++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                this.bytes[this.size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            this.bytes[this.size++] = (byte) value;
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                this.bytes[this.size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            this.bytes[this.size++] = (byte) value;
+        }
+
+        /** Writes the length of the string plus one, 0 for null, then it */
+        void writeString(String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length + 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+            this.size += utf8.length;
+        }
+
+        /** @return the frame, with its length */
+        byte[] toFrame() throws IOException {
+            length(this.size - HEADER);
+            byte[] frame = this.size == this.bytes.length ? this.bytes
+                    : Arrays.copyOf(this.bytes, this.size);
+            ByteBuffer.wrap(frame).putInt(0, this.size - HEADER);
+            return frame;
+        }
+    }
+}
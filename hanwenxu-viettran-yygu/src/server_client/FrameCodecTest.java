@@ -0,0 +1,395 @@
+package server_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import document.ClientState;
+import document.DeleteOperation;
+import document.OpType;
+import document.Operation;
+import document.Pair;
+
+/**
+ * This will test the FrameCodec.
+ *
+ * Testing strategy: write every kind of message the server and client send
+ * (document list, client ID, text, ClientState, insert, delete, users and
+ * documents, catch ups, hellos) to a stream and read them back. Feed frames
+ * to next a few bytes at a time, so the buffer holds nothing, part of a
+ * frame, or a frame and the start of the next. A negative or huge length is an error, and so is
+ * a body that is cut short, too long or of an unknown type. With keys,
+ * documents are sent as numbers the other side learns from the lists of
+ * documents and the client ID, and an unknown number is an error. Long
+ * frames deflate to shorter ones that decode to the same message, short ones
+ * are left alone, and a broken deflated frame is an error. The zeros at the
+ * end of a ClientState are not sent. A text longer than a frame is sent in
+ * parts, without cutting a character in two, and readText reads it back
+ * whole; anywhere else a part is an error.
+ *
+ * @author youyanggu
+ *
+ */
+public class FrameCodecTest {
+
+    /**
+     * @return one of each kind of message
+     */
+    private static Object[] messages() {
+        ArrayList<String> docs = new ArrayList<String>(Arrays.asList("a",
+                "b"));
+        Operation op = Operation.create(OpType.INSERT, "a", "hello", 3, 2, 5,
+                ClientState.fromArray(new int[] { 0, 4, 1 }), 7, false);
+        Operation delete = Operation.createDelete("b", 300, 2, 1, 200,
+                ClientState.fromArray(new int[] { 0, 199, 70000 }),
+                Integer.MAX_VALUE, true);
+        Operation late = Operation.create(OpType.INSERT, "b", "!", 0, 3, 9,
+                ClientState.fromArray(new int[] { 0, 0, 0, 8 }),
+                (1L << 40) + 3, false);
+        return new Object[] { docs, Integer.valueOf(12), "some text",
+                ClientState.fromArray(new int[] { 3, 1 }), op, delete, late,
+                new Pair<ArrayList<String>, ArrayList<String>>(docs, docs),
+                new CatchUp(), new CatchUp("caf\u00e9 \u2603",
+                        ClientState.fromArray(new int[] { 9 })),
+                new Hello(Hello.DEFLATE), new Hello(0) };
+    }
+
+    /**
+     * Checks that a message came back the same
+     */
+    private static void assertSame(Object actual, Object expected) {
+        if (expected instanceof Operation) {
+            Operation a = (Operation) actual;
+            Operation e = (Operation) expected;
+            assertEquals(a.getClass(), e.getClass());
+            assertEquals(a.getKey(), e.getKey());
+            assertEquals(a.isLocal(), e.isLocal());
+            assertEquals(a.getLength(), e.getLength());
+            assertEquals(a.getValue(), e.getValue());
+            assertEquals(a.getPosition(), e.getPosition());
+            assertEquals(a.getSiteId(), e.getSiteId());
+            assertEquals(a.getSeqId(), e.getSeqId());
+            assertEquals(a.getOrder(), e.getOrder());
+            assertTrue(a.getClientState().equals(e.getClientState()));
+        } else if (expected instanceof Hello) {
+            assertEquals(((Hello) actual).features, ((Hello) expected).features);
+        } else if (expected instanceof CatchUp) {
+            CatchUp a = (CatchUp) actual;
+            CatchUp e = (CatchUp) expected;
+            assertEquals(a.text, e.text);
+            assertEquals(String.valueOf(a.state), String.valueOf(e.state));
+        } else if (expected instanceof ClientState
+                || expected instanceof Pair<?, ?>) {
+            assertEquals(actual.toString(), expected.toString());
+        } else {
+            assertEquals(actual, expected);
+        }
+    }
+
+    /**
+     * Every message through a stream
+     *
+     * @throws Exception
+     */
+    @Test
+    public void FrameCodecTest1() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Object o : messages()) {
+            FrameCodec.write(bytes, o);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        for (Object o : messages()) {
+            assertSame(FrameCodec.read(in), o);
+        }
+        assertEquals(in.available(), 0);
+    }
+
+    /**
+     * Frames arriving a few bytes at a time, like on a non-blocking channel
+     *
+     * @throws Exception
+     */
+    @Test
+    public void FrameCodecTest2() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Object o : messages()) {
+            bytes.write(FrameCodec.encode(o));
+        }
+        byte[] all = bytes.toByteArray();
+        for (int chunk : new int[] { 1, 3, 50, all.length }) {
+            ByteBuffer buffer = ByteBuffer.allocate(all.length);
+            ArrayList<Object> read = new ArrayList<Object>();
+            for (int i = 0; i < all.length; i += chunk) {
+                buffer.put(all, i, Math.min(chunk, all.length - i));
+                buffer.flip();
+                Object o;
+                while ((o = FrameCodec.next(buffer)) != null) {
+                    read.add(o);
+                }
+                buffer.compact();
+            }
+            assertEquals(buffer.position(), 0);
+            Object[] expected = messages();
+            assertEquals(read.size(), expected.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertSame(read.get(i), expected[i]);
+            }
+        }
+    }
+
+    /**
+     * Part of a frame is not decoded, and not consumed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void FrameCodecTest3() throws Exception {
+        byte[] frame = FrameCodec.encode("text");
+        ByteBuffer buffer = ByteBuffer.wrap(frame, 0, frame.length - 1);
+        assertNull(FrameCodec.next(buffer));
+        assertEquals(buffer.position(), 0);
+        assertEquals(ByteBuffer.wrap(frame).getInt(), frame.length
+                - FrameCodec.HEADER);
+    }
+
+    /**
+     * Lengths that can't be right
+     *
+     * @throws Exception
+     */
+    @Test
+    public void FrameCodecTest4() throws Exception {
+        for (int length : new int[] { -1, 0, FrameCodec.MAX_FRAME + 1 }) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putInt(length).putInt(0).flip();
+            try {
+                FrameCodec.next(buffer);
+                assertTrue("length " + length, false);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Bodies that are not messages
+     *
+     * @throws Exception
+     */
+    @Test
+    public void FrameCodecTest5() throws Exception {
+        byte[] op = FrameCodec.encode(messages()[4]);
+        byte[][] bodies = { { 0 }, { 42, 1 },
+                Arrays.copyOfRange(op, FrameCodec.HEADER, op.length - 1),
+                Arrays.copyOfRange(op, FrameCodec.HEADER, op.length + 1),
+                // a string longer than the frame
+                { FrameCodec.TEXT, 100, 'a' } };
+        for (byte[] body : bodies) {
+            try {
+                FrameCodec.decode(body, 0, body.length);
+                assertTrue(Arrays.toString(body), false);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        try {
+            FrameCodec.encode(new Object());
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Documents sent as numbers, learned from the lists of documents and the
+     * client ID
+     *
+     * @throws Exception
+     */
+    @Test
+    public void FrameCodecTest6() throws Exception {
+        DocumentKeys server = new DocumentKeys();
+        server.add("a");
+        server.add("b");
+        DocumentKeys client = new DocumentKeys();
+        Object[] messages = messages();
+        Operation op = (Operation) messages[4];
+
+        // before the client knows the numbers, they can't be read
+        byte[] frame = FrameCodec.encode(op, server);
+        try {
+            FrameCodec.decode(frame, FrameCodec.HEADER, frame.length
+                    - FrameCodec.HEADER, client);
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(frame.length < FrameCodec.encode(op).length);
+
+        // the list of documents has them
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Object o : messages) {
+            FrameCodec.write(bytes, o, server);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        for (Object o : messages) {
+            assertSame(FrameCodec.read(in, client), o);
+        }
+        assertEquals(client.idOf("a"), server.idOf("a"));
+        assertEquals(client.idOf("b"), server.idOf("b"));
+
+        // a document made after the list comes with the client ID
+        int c = server.add("c");
+        frame = FrameCodec.encodeSite(5, "c", server);
+        assertEquals(FrameCodec.decode(frame, FrameCodec.HEADER, frame.length
+                - FrameCodec.HEADER, client), 5);
+        assertEquals(client.nameOf(c), "c");
+
+        // the client sends names it doesn't know the number of
+        DeleteOperation delete = Operation.createDelete("d", 0, 1, 5, 1,
+                ClientState.fromArray(new int[] { 0 }), 0, true);
+        frame = FrameCodec.encode(delete, client);
+        assertSame(FrameCodec.decode(frame, FrameCodec.HEADER, frame.length
+                - FrameCodec.HEADER, server), delete);
+    }
+
+    /**
+     * Deflated frames
+     *
+     * @throws Exception
+     */
+    @Test
+    public void FrameCodecTest7() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("line ").append(i).append(" of the document\n");
+        }
+        Object[] messages = { text.toString(),
+                new CatchUp(text.toString(), ClientState.fromArray(new int[] { 4 })),
+                Operation.create(OpType.INSERT, "a", text.toString(), 0, 1, 1,
+                        ClientState.fromArray(new int[] { 0, 0 }), 3, false) };
+        for (Object o : messages) {
+            byte[] frame = FrameCodec.encode(o);
+            byte[] deflated = FrameCodec.deflate(frame);
+            assertEquals(deflated[FrameCodec.HEADER], FrameCodec.DEFLATED);
+            assertTrue(deflated.length < frame.length / 4);
+            ByteBuffer buffer = ByteBuffer.wrap(deflated);
+            assertSame(FrameCodec.next(buffer), o);
+            assertEquals(buffer.remaining(), 0);
+        }
+
+        // a keystroke would only get longer
+        byte[] frame = FrameCodec.encode(messages()[4]);
+        assertTrue(FrameCodec.deflate(frame) == frame);
+
+        byte[] deflated = FrameCodec.deflate(FrameCodec.encode(text.toString()));
+        byte[] longer = Arrays.copyOfRange(deflated, FrameCodec.HEADER,
+                deflated.length);
+        // one more byte than there is: the length is a varint of 3 bytes
+        longer[1]++;
+        byte[][] bodies = {
+                Arrays.copyOfRange(deflated, FrameCodec.HEADER, deflated.length - 1),
+                longer, { FrameCodec.DEFLATED, 5, 1, 2, 3 } };
+        for (byte[] body : bodies) {
+            try {
+                FrameCodec.decode(body, 0, body.length);
+                assertTrue(Arrays.toString(body), false);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * The zeros at the end of a ClientState are not sent, and it reads back
+     * as an equal state
+     */
+    @Test
+    public void FrameCodecTest8() throws Exception {
+        ClientState padded = ClientState.fromArray(new int[] { 0, 3, 0, 0, 0 });
+        byte[] frame = FrameCodec.encode(padded);
+        assertEquals(frame.length,
+                FrameCodec.encode(ClientState.fromArray(new int[] { 0, 3 })).length);
+        ClientState read = (ClientState) FrameCodec.next(ByteBuffer.wrap(frame));
+        assertEquals(read.getSize(), 2);
+        assertTrue(read.equals(padded));
+        assertEquals(((ClientState) FrameCodec.next(ByteBuffer.wrap(
+                FrameCodec.encode(ClientState.withSize(4))))).getSize(), 0);
+    }
+
+    /**
+     * A text longer than TEXT_PART is sent in parts, cut between characters,
+     * and read back whole, alone or in a CatchUp
+     */
+    @Test
+    public void FrameCodecTest9() throws Exception {
+        StringBuilder b = new StringBuilder();
+        while (b.length() < 5 * FrameCodec.TEXT_PART / 2) {
+            b.append("caf\u00e9 \u2603 ");
+        }
+        // a character of two chars across the first cut
+        b.setLength(FrameCodec.TEXT_PART - 1);
+        b.append("\ud83d\ude00");
+        while (b.length() < 5 * FrameCodec.TEXT_PART / 2) {
+            b.append("line of text\n");
+        }
+        String text = b.toString();
+        Object[] messages = { text,
+                new CatchUp(text, ClientState.fromArray(new int[] { 0, 3 })) };
+        for (Object o : messages) {
+            byte[][] frames = FrameCodec.encodeText(o, null);
+            assertEquals(frames.length, 3);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (byte[] frame : frames) {
+                assertTrue(frame.length <= FrameCodec.MAX_FRAME);
+                bytes.write(frame);
+            }
+            bytes.write(FrameCodec.encode("next"));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray()));
+            assertSame(FrameCodec.readText(in, null), o);
+            assertEquals(FrameCodec.readText(in, null), "next");
+        }
+        assertEquals(FrameCodec.encodeText("short", null).length, 1);
+
+        // parts of a text before a message without one
+        byte[] part = FrameCodec.encodeText(text, null)[0];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(part);
+        bytes.write(FrameCodec.encode(ClientState.fromArray(new int[] { 1 })));
+        try {
+            FrameCodec.readText(new DataInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray())), null);
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the server reads no parts, from a stream or a buffer
+        try {
+            FrameCodec.read(new DataInputStream(new ByteArrayInputStream(
+                    bytes.toByteArray())));
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            FrameCodec.next(ByteBuffer.wrap(part));
+            assertTrue(false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
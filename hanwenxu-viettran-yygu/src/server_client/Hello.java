@@ -0,0 +1,37 @@
+package server_client;
+
+/**
+ * The first message of a client, before it picks a document: what it can
+ * read besides the plain frames. A client that doesn't send it gets plain
+ * frames only.
+ *
+ * @author youyanggu
+ *
+ */
+public class Hello {
+
+    /** The client can read DEFLATED frames, see FrameCodec */
+    public static final int DEFLATE = 1;
+
+    /** what the client can read, a combination of the flags above */
+    public final int features;
+
+    /**
+     * Makes the message
+     *
+     * @param features
+     *            - what the client can read, e.g. DEFLATE
+     */
+    public Hello(int features) {
+        this.features = features;
+    }
+
+    /**
+     * @param feature
+     *            - one of the flags
+     * @return true if the client can read it
+     */
+    public boolean has(int feature) {
+        return (this.features & feature) != 0;
+    }
+}
@@ -0,0 +1,265 @@
+package server_client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Testing strategy: the buffering is tested through CollabServerTest, with
+ * real clients connected to a headless server, and the framing in
+ * FrameCodecTest.
+ */
+
+/**
+ * Connection to a client in the SELECTOR mode of the server. The channel is
+ * non-blocking and belongs to one SelectorLoop, which calls read when there is
+ * something to read and flush when there are frames to write and the channel
+ * can take more. Frames that are only partly there wait in the read buffer,
+ * frames that are not written yet in the write queue. Each queued frame is a
+ * view of the array the server encoded once for all the clients it goes to, so
+ * queueing and writing it copies nothing. The read buffer starts small and
+ * grows for a big frame, so an idle client costs little more than its socket.
+ *
+ * Thread safety argument: read and flush are only called by the thread of
+ * the loop, which is the only one touching the channel's key. sendFrame can
+ * be called by any thread, e.g. the one handling another client's operation,
+ * so the write queue is guarded by the connection's monitor. queue only
+ * holds it to add the frame, never while writing.
+ *
+ * @author youyanggu
+ *
+ */
+public class SelectorConnection extends Connection {
+
+    /** size of the read buffer when no frame is waiting */
+    private static final int INITIAL_BUFFER = 1024;
+
+    /** the channel to the client, non-blocking */
+    private final SocketChannel channel;
+
+    /** loop the channel is registered with */
+    private final SelectorLoop loop;
+
+    /** key of the channel in the loop's selector, set when registered */
+    private SelectionKey key;
+
+    /** bytes read that are not a whole frame yet, ready to be written to */
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+
+    /** frames not written yet, the first one maybe partly written */
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+    /** true once closed */
+    private boolean closed = false;
+
+    /**
+     * Makes the connection for a channel
+     *
+     * @param channel
+     *            - the channel, non-blocking
+     * @param loop
+     *            - the loop that will handle the channel
+     * @param keys
+     *            - numbers of the documents, the server's
+     */
+    SelectorConnection(SocketChannel channel, SelectorLoop loop,
+            DocumentKeys keys) {
+        super(keys);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Sets the key of the channel in the loop's selector
+     *
+     * @param key
+     *            - the key
+     */
+    synchronized void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Reads what the client sent and decodes the frames that are all there.
+     *
+     * @param into
+     *            - the decoded objects are added to it, in order
+     * @return false if the client closed the connection
+     * @throws IOException
+     *             if the connection or a frame is broken
+     */
+    boolean read(List<Object> into) throws IOException {
+        while (true) {
+            if (!this.in.hasRemaining()) {
+                grow();
+            }
+            int n = this.channel.read(this.in);
+            if (n < 0) {
+                return false;
+            }
+            this.in.flip();
+            Object o;
+            while ((o = FrameCodec.next(this.in, getKeys())) != null) {
+                into.add(o);
+            }
+            this.in.compact();
+            if (this.in.position() == 0
+                    && this.in.capacity() > INITIAL_BUFFER) {
+                // done with a big frame, don't hold on to its buffer
+                this.in = ByteBuffer.allocate(INITIAL_BUFFER);
+            }
+            if (n == 0 || this.in.hasRemaining()) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Makes the read buffer big enough for the frame at its start
+     *
+     * @throws IOException
+     *             if the frame is too long
+     */
+    private void grow() throws IOException {
+        int size = 2 * this.in.capacity();
+        if (this.in.position() >= FrameCodec.HEADER) {
+            size = Math.max(size, FrameCodec.HEADER
+                    + FrameCodec.length(this.in.getInt(0)));
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(size);
+        this.in.flip();
+        bigger.put(this.in);
+        this.in = bigger;
+    }
+
+    /**
+     * Queues a frame to the client, for the loop to write. Does nothing if
+     * the connection is closed.
+     *
+     * @param frame
+     *            - the frame, not modified
+     */
+    @Override
+    void queue(byte[] frame) {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.out.add(ByteBuffer.wrap(frame));
+            if (this.out.size() > 1) {
+                // the loop writes it after the ones before it
+                return;
+            }
+        }
+        this.loop.flushLater(this);
+    }
+
+    /**
+     * Drops the queued frames, except the one that is partly written
+     *
+     * @return the number of bytes dropped
+     */
+    @Override
+    synchronized long dropQueued() {
+        ByteBuffer first = this.out.peek();
+        if (first != null && first.position() > 0) {
+            // the client has the start of it, it needs the rest
+            this.out.poll();
+        } else {
+            first = null;
+        }
+        long dropped = 0;
+        for (ByteBuffer frame : this.out) {
+            dropped += frame.capacity();
+        }
+        this.out.clear();
+        if (first != null) {
+            this.out.add(first);
+        }
+        return dropped;
+    }
+
+    /**
+     * Has the loop close the connection
+     */
+    @Override
+    void abort() {
+        this.loop.closeLater(this);
+    }
+
+    /**
+     * Writes the queued frames the channel can take. Called by the loop when
+     * frames were queued, and when the channel can take more.
+     *
+     * @throws IOException
+     *             if the connection is broken
+     */
+    synchronized void flush() throws IOException {
+        if (!this.closed) {
+            write();
+        }
+    }
+
+    /**
+     * Writes queued frames until the channel takes no more, and asks the
+     * loop to tell when it can if there are frames left. The frames are
+     * written straight from their arrays, which other clients may be sent
+     * too, several of them in one call.
+     *
+     * @throws IOException
+     *             if the connection is broken
+     */
+    private void write() throws IOException {
+        ByteBuffer[] frames = this.loop.gather();
+        while (!this.out.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer frame : this.out) {
+                frames[n++] = frame;
+                if (n == frames.length) {
+                    break;
+                }
+            }
+            this.channel.write(frames, 0, n);
+            boolean full = frames[n - 1].hasRemaining();
+            Arrays.fill(frames, 0, n, null);
+            while (!this.out.isEmpty() && !this.out.peek().hasRemaining()) {
+                written(this.out.poll().capacity());
+            }
+            if (full) {
+                break;
+            }
+        }
+        if (this.key != null && this.key.isValid()) {
+            int ops = this.out.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (this.key.interestOps() != ops) {
+                this.key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * Closes the channel, and drops the frames not written yet
+     *
+     * @return true if the connection was open
+     */
+    @Override
+    synchronized boolean close() {
+        if (this.closed) {
+            return false;
+        }
+        this.closed = true;
+        setActive(false);
+        this.out.clear();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,231 @@
+package server_client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Testing strategy: tested through CollabServerTest, with many clients
+ * connected to a headless server at once.
+ */
+
+/**
+ * One selector thread of the server. It waits on the channels of many
+ * clients at once, reads the frames they send and hands the decoded messages
+ * to the CollabServer, in the order they were received. It is also the writer
+ * of those clients: it writes the frames queued to them, as fast as each of
+ * them takes them. The server only has a few of these, however many clients
+ * are connected.
+ *
+ * Thread safety argument: only the loop's thread uses the selector and the
+ * channels. Other threads hand it new channels, connections with frames to
+ * write and connections to close through concurrent queues, then wake it up.
+ * Shutting down also only asks the loop's thread to close everything.
+ *
+ * @author youyanggu
+ *
+ */
+public class SelectorLoop implements Runnable {
+
+    /** most frames written to a channel in one call */
+    static final int GATHER = 64;
+
+    /** the server the messages are for */
+    private final CollabServer server;
+
+    /** the selector of the loop */
+    private final Selector selector;
+
+    /** channels to register */
+    private final ConcurrentLinkedQueue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+
+    /** connections with newly queued frames */
+    private final ConcurrentLinkedQueue<SelectorConnection> writing = new ConcurrentLinkedQueue<SelectorConnection>();
+
+    /** connections to close */
+    private final ConcurrentLinkedQueue<SelectorConnection> closing = new ConcurrentLinkedQueue<SelectorConnection>();
+
+    /** false once shutdown was called */
+    private volatile boolean running = true;
+
+    /** messages read from one channel, reused */
+    private final ArrayList<Object> messages = new ArrayList<Object>();
+
+    /** frames written to one channel at once, reused, see gather */
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+
+    /**
+     * Makes a loop, run it in its own thread
+     *
+     * @param server
+     *            - the server the messages are for
+     * @throws IOException
+     *             if the selector can't be opened
+     */
+    public SelectorLoop(CollabServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * The array a connection of the loop fills with the frames it writes in
+     * one call. Only for the loop's thread, the only one writing.
+     *
+     * @return the array, of length GATHER
+     */
+    ByteBuffer[] gather() {
+        return this.gather;
+    }
+
+    /**
+     * Hands a newly accepted channel to the loop
+     *
+     * @param channel
+     *            - the channel, non-blocking
+     */
+    public void add(SocketChannel channel) {
+        this.added.add(channel);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Has the loop write the frames queued to a connection, which had none
+     * before
+     *
+     * @param c
+     *            - the connection
+     */
+    void flushLater(SelectorConnection c) {
+        this.writing.add(c);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Closes a connection from the loop's thread, e.g. after another thread
+     * failed to write to it
+     *
+     * @param c
+     *            - the connection
+     */
+    void closeLater(SelectorConnection c) {
+        this.closing.add(c);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Stops the loop, which then closes all of its channels
+     */
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Runs until shutdown is called
+     */
+    @Override
+    public void run() {
+        try {
+            while (this.running) {
+                this.selector.select();
+                SocketChannel channel;
+                while ((channel = this.added.poll()) != null) {
+                    register(channel);
+                }
+                SelectorConnection c;
+                while ((c = this.writing.poll()) != null) {
+                    try {
+                        c.flush();
+                    } catch (IOException e) {
+                        close(c);
+                    }
+                }
+                while ((c = this.closing.poll()) != null) {
+                    close(c);
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // shut down
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            for (SelectionKey key : this.selector.keys()) {
+                key.channel().close();
+            }
+            this.selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers a new channel and tells the server about it
+     *
+     * @param channel
+     *            - the channel
+     */
+    private void register(SocketChannel channel) {
+        SelectorConnection c = new SelectorConnection(channel, this,
+                this.server.getKeys());
+        try {
+            c.setKey(channel.register(this.selector, SelectionKey.OP_READ, c));
+            this.server.connected(c);
+        } catch (IOException e) {
+            close(c);
+        }
+    }
+
+    /**
+     * Reads from and writes to the channel of a key that is ready
+     *
+     * @param key
+     *            - the key
+     */
+    private void handle(SelectionKey key) {
+        SelectorConnection c = (SelectorConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                c.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                this.messages.clear();
+                boolean open = c.read(this.messages);
+                for (Object input : this.messages) {
+                    this.server.receive(c, input);
+                }
+                if (!open) {
+                    close(c);
+                }
+            }
+        } catch (Exception e) {
+            // broken connection or unexpected message, drop the client
+            close(c);
+        }
+    }
+
+    /**
+     * Closes a connection, and tells the server the first time
+     *
+     * @param c
+     *            - the connection
+     */
+    private void close(SelectorConnection c) {
+        if (c.close()) {
+            this.server.disconnected(c);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package server_client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import document.ClientState;
+import document.DeleteOperation;
+import document.Operation;
+import document.OperationEngine;
+import document.OperationEngineException;
+import document.Pair;
+
+/*
+ * Testing strategy: see ServerDocumentTest. Apply inserts and deletes, in
+ * order and concurrent, and check the text against what the clients would
+ * have. Check that a listener gets the text when it is added and then every
+ * operation, and that the snapshot and acknowledgements go to the engine.
+ */
+
+/**
+ * The server's copy of one document: the text, kept in a plain StringBuilder,
+ * and the OperationEngine that transforms the operations of the clients
+ * against each other. Nothing in here touches Swing, so the server can run
+ * without a display, and applying an operation never waits for the event
+ * thread.
+ *
+ * A GUI that shows the document is a Listener. It gets the text when it is
+ * added, then every operation in the order it was applied to the text. Those
+ * calls are made while holding the lock of the document, so a listener should
+ * not do any work in them, only hand it off (e.g. with
+ * SwingUtilities.invokeLater).
+ *
+ * The clients editing the document are its subscribers, the only clients its
+ * operations are relayed to.
+ *
+ * Each document orders its own operations: the first operation of a document
+ * is 0, whatever the other documents are at. The orders are 64 bits, so even
+ * a document edited for years can't run out of them.
+ *
+ * Thread safety argument: every method that reads or changes the text, the
+ * engine or the order holds the lock of the document. The order is stamped
+ * under that lock, it is not lock-free: CollabServer takes the lock before
+ * stamp, and holds it until the operation is relayed and applied, so that the
+ * order of the operations is the order they are applied in. It is a
+ * ReentrantLock rather than the document's monitor, so that a virtual thread
+ * holding it does not pin its carrier thread. The subscribers are a
+ * CopyOnWriteArrayList, read on every operation and only changed when a client
+ * comes or goes.
+ *
+ * @author youyanggu
+ *
+ */
+public class ServerDocument {
+
+    /**
+     * Something that shows a document, and has to be told when it changes.
+     */
+    public interface Listener {
+        /**
+         * Called once, when the listener is added
+         *
+         * @param text
+         *            the whole text of the document at that point
+         */
+        void documentReset(String text);
+
+        /**
+         * Called after an operation was applied to the text
+         *
+         * @param op
+         *            the transformed operation, a copy the listener may keep
+         */
+        void operationApplied(Operation op);
+    }
+
+    /** name of the document, the key of its operations */
+    private final String name;
+
+    /** text of the document */
+    private final StringBuilder text;
+
+    /** engine of the document, the server is site 0 */
+    private final OperationEngine oe;
+
+    /** order of the next operation of the document */
+    private long order;
+
+    /** lock of the document, see thread safety */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** listeners, usually none or one */
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+    /** connections of the clients editing the document */
+    private final CopyOnWriteArrayList<Connection> subscribers = new CopyOnWriteArrayList<Connection>();
+
+    /**
+     * Makes a new document
+     *
+     * @param name
+     *            the name of the document
+     * @param init
+     *            the text the document starts with
+     * @throws OperationEngineException
+     */
+    public ServerDocument(String name, String init)
+            throws OperationEngineException {
+        this.name = name;
+        this.text = new StringBuilder(init);
+        this.oe = new OperationEngine(0);
+    }
+
+    /**
+     * Transforms an operation from a client and applies it to the text. Does
+     * nothing if the operation was already applied.
+     *
+     * @param op
+     *            the operation received from a client, with its place in the
+     *            total order set
+     * @return the transformed operation that was applied, or null
+     * @throws OperationEngineException
+     *             if the transformed operation does not fit in the text
+     */
+    public Operation apply(Operation op) throws OperationEngineException {
+        this.lock.lock();
+        try {
+            Operation top = this.oe.pushRemoteOp(op);
+            if (top == null) {
+                return null;
+            }
+            try {
+                if (top instanceof DeleteOperation) {
+                    // a concurrent insert may have split the delete in
+                    // several ranges, remove them from the last one
+                    int[] ranges = ((DeleteOperation) top).getRanges();
+                    for (int i = ranges.length - 2; i >= 0; i -= 2) {
+                        int end = ranges[i] + ranges[i + 1];
+                        if (end > this.text.length()) {
+                            throw new StringIndexOutOfBoundsException(end);
+                        }
+                        this.text.delete(ranges[i], end);
+                    }
+                } else {
+                    this.text.insert(top.getPosition(), top.getValue());
+                }
+            } catch (StringIndexOutOfBoundsException e) {
+                throw new OperationEngineException("Operation " + top
+                        + " is out of the bounds of document " + this.name
+                        + " of length " + this.text.length());
+            }
+            for (Listener l : this.listeners) {
+                l.operationApplied(top.copy());
+            }
+            return top;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gives an operation from a client its place in the total order of the
+     * document. Hold the lock of the document until the operation is applied,
+     * so that it is applied in that order.
+     *
+     * @param op
+     *            the operation received from a client
+     * @return its order
+     */
+    public long stamp(Operation op) {
+        this.lock.lock();
+        try {
+            op.setOrder(this.order);
+            return this.order++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Takes what a new client of the document needs: the text, and the
+     * ClientState of the engine for it. The client's operations will be made
+     * in that state, so it is the first state the client acknowledges.
+     *
+     * @param site
+     *            the site ID of the new client
+     * @return the text and the ClientState it corresponds to
+     * @throws OperationEngineException
+     */
+    public Pair<String, ClientState> join(int site)
+            throws OperationEngineException {
+        this.lock.lock();
+        try {
+            ClientState state = this.oe.copyClientState();
+            this.oe.acknowledge(site, state);
+            return new Pair<String, ClientState>(this.text.toString(),
+                    state.copy());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Records a client's acknowledged ClientState, then throws away the
+     * history every client of the document has processed.
+     *
+     * @param site
+     *            the site ID of the client
+     * @param state
+     *            the ClientState it reported
+     * @throws OperationEngineException
+     */
+    public void acknowledge(int site, ClientState state)
+            throws OperationEngineException {
+        this.lock.lock();
+        try {
+            this.oe.acknowledge(site, state);
+            this.oe.collectGarbage();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The document no longer has to keep history for a client that left
+     *
+     * @param site
+     *            the site ID of the client
+     */
+    public void removeSite(int site) {
+        this.lock.lock();
+        try {
+            this.oe.removeSite(site);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Tells if a client that left can give its site ID to a new client: every
+     * client still editing the document has acknowledged all of its
+     * operations.
+     *
+     * @param site
+     *            the site ID of the client that left
+     * @return true if no client is missing one of its operations
+     * @throws OperationEngineException
+     */
+    public boolean isAcknowledged(int site) throws OperationEngineException {
+        this.lock.lock();
+        try {
+            return this.oe.isAcknowledged(site);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a client the operations of the document are relayed to. Subscribe
+     * it while holding the lock of the document, in the same step as it gets
+     * the text, so that it gets every operation once.
+     *
+     * @param c
+     *            the connection to the client
+     */
+    void subscribe(Connection c) {
+        this.subscribers.add(c);
+    }
+
+    /**
+     * Removes a client that left
+     *
+     * @param c
+     *            the connection to the client
+     * @return true if it was a subscriber
+     */
+    boolean unsubscribe(Connection c) {
+        return this.subscribers.remove(c);
+    }
+
+    /**
+     * @return the clients editing the document. It can be iterated while
+     *         clients come and go.
+     */
+    List<Connection> getSubscribers() {
+        return this.subscribers;
+    }
+
+    /**
+     * Adds a listener, and gives it the current text
+     *
+     * @param l
+     *            the listener
+     */
+    public void addListener(Listener l) {
+        this.lock.lock();
+        try {
+            this.listeners.add(l);
+            l.documentReset(this.text.toString());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** @return the name of the document */
+    public String getName() {
+        return this.name;
+    }
+
+    /** @return the order the next operation of the document will get */
+    public long getOrder() {
+        this.lock.lock();
+        try {
+            return this.order;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** @return the current text of the document */
+    public String getText() {
+        this.lock.lock();
+        try {
+            return this.text.toString();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return a copy of the ClientState of the document's engine
+     * @throws OperationEngineException
+     */
+    public ClientState copyOfCV() throws OperationEngineException {
+        this.lock.lock();
+        try {
+            return this.oe.copyClientState();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the lock of the document. Hold it to make several calls as one
+     *         step.
+     */
+    public ReentrantLock getLock() {
+        return this.lock;
+    }
+
+    /**
+     * @return the engine of the document. Only use it while holding the lock
+     *         of the document.
+     */
+    public OperationEngine getOE() {
+        return this.oe;
+    }
+}
@@ -0,0 +1,178 @@
+package server_client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import document.ClientState;
+import document.OpType;
+import document.Operation;
+import document.OperationEngineException;
+import document.Pair;
+
+/**
+ * This will test the ServerDocument, the server's copy of a document.
+ *
+ * Testing strategy: apply inserts and deletes made one after the other, and
+ * concurrent ones from two clients, including a delete split by a concurrent
+ * insert, and compare the text with what the clients end up with. A
+ * listener gets the text when it is added and then every operation. A new
+ * client gets the text and the ClientState it goes with. Each document
+ * orders its own operations from 0.
+ *
+ * @author youyanggu
+ *
+ */
+public class ServerDocumentTest {
+
+    /** name of the document in the tests */
+    private static final String KEY = "doc";
+
+    /**
+     * Makes an operation from a client
+     */
+    private static Operation op(OpType type, String value, int position,
+            int site, int seq, int[] context, int order) {
+        return Operation.create(type, KEY, value, position, site, seq,
+                ClientState.fromArray(context), order, false);
+    }
+
+    /**
+     * Listener that writes down what it is told
+     */
+    private static class Recorder implements ServerDocument.Listener {
+        String text;
+        final ArrayList<Operation> ops = new ArrayList<Operation>();
+
+        @Override
+        public void documentReset(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void operationApplied(Operation op) {
+            this.ops.add(op);
+        }
+    }
+
+    /**
+     * Operations made one after the other
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ServerDocumentTest1() throws OperationEngineException {
+        ServerDocument doc = new ServerDocument(KEY, "abc");
+        doc.apply(op(OpType.INSERT, "xy", 1, 1, 1, new int[] { 0, 0 }, 0));
+        assertEquals(doc.getText(), "axybc");
+        doc.apply(op(OpType.DELETE, "yb", 2, 1, 2, new int[] { 0, 1 }, 1));
+        assertEquals(doc.getText(), "axc");
+        doc.apply(op(OpType.INSERT, "!", 3, 2, 1, new int[] { 0, 2, 0 }, 2));
+        assertEquals(doc.getText(), "axc!");
+    }
+
+    /**
+     * Concurrent operations from two clients: site 2 deletes "bcd" while
+     * site 1 inserts in the middle of it, so the delete is split
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ServerDocumentTest2() throws OperationEngineException {
+        ServerDocument doc = new ServerDocument(KEY, "abcde");
+        doc.apply(op(OpType.INSERT, "XY", 2, 1, 1, new int[] { 0, 0 }, 0));
+        assertEquals(doc.getText(), "abXYcde");
+        Operation top = doc.apply(op(OpType.DELETE, "bcd", 1, 2, 1,
+                new int[] { 0, 0, 0 }, 1));
+        assertEquals(doc.getText(), "aXYe");
+        assertEquals(top.getLength(), 3);
+
+        // both clients went on after seeing everything
+        doc.apply(op(OpType.INSERT, "1", 4, 1, 2, new int[] { 0, 1, 1 }, 2));
+        doc.apply(op(OpType.INSERT, "2", 0, 2, 2, new int[] { 0, 1, 1 }, 3));
+        assertEquals(doc.getText(), "2aXYe1");
+    }
+
+    /**
+     * A listener gets the text, then the operations in order, and what it
+     * gets adds up to the text
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ServerDocumentTest3() throws OperationEngineException {
+        ServerDocument doc = new ServerDocument(KEY, "hello");
+        doc.apply(op(OpType.INSERT, "!", 5, 1, 1, new int[] { 0, 0 }, 0));
+        Recorder r = new Recorder();
+        doc.addListener(r);
+        assertEquals(r.text, "hello!");
+
+        doc.apply(op(OpType.DELETE, "he", 0, 1, 2, new int[] { 0, 1 }, 1));
+        doc.apply(op(OpType.INSERT, "J", 0, 1, 3, new int[] { 0, 2 }, 2));
+        assertEquals(r.ops.size(), 2);
+        StringBuilder shown = new StringBuilder(r.text);
+        shown.delete(r.ops.get(0).getPosition(), r.ops.get(0).getPosition()
+                + r.ops.get(0).getLength());
+        shown.insert(r.ops.get(1).getPosition(), r.ops.get(1).getValue());
+        assertEquals(shown.toString(), doc.getText());
+        assertEquals(doc.getText(), "Jllo!");
+    }
+
+    /**
+     * A new client gets the text and the state it goes with, and its
+     * operations are made in that state
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ServerDocumentTest4() throws OperationEngineException {
+        ServerDocument doc = new ServerDocument(KEY, "ab");
+        doc.apply(op(OpType.INSERT, "c", 2, 1, 1, new int[] { 0, 0 }, 0));
+        Pair<String, ClientState> joined = doc.join(2);
+        assertEquals(joined.first, "abc");
+
+        doc.apply(Operation.create(OpType.INSERT, KEY, "d", 3, 2, 1,
+                joined.second, 1, false));
+        assertEquals(doc.getText(), "abcd");
+    }
+
+    /**
+     * An operation that does not fit in the text is an error
+     *
+     * @throws OperationEngineException
+     */
+    @Test(expected = OperationEngineException.class)
+    public void ServerDocumentTest5() throws OperationEngineException {
+        ServerDocument doc = new ServerDocument(KEY, "ab");
+        doc.apply(op(OpType.DELETE, "abc", 0, 1, 1, new int[] { 0, 0 }, 0));
+    }
+
+    /**
+     * Each document stamps its operations in its own order, whatever the
+     * other documents are at
+     *
+     * @throws OperationEngineException
+     */
+    @Test
+    public void ServerDocumentTest6() throws OperationEngineException {
+        ServerDocument a = new ServerDocument(KEY, "");
+        ServerDocument b = new ServerDocument(KEY, "");
+        for (int i = 0; i < 3; i++) {
+            Operation op = op(OpType.INSERT, "a", 0, 1, i + 1, new int[] {
+                    0, i }, Integer.MAX_VALUE);
+            assertEquals(a.stamp(op), i);
+            assertEquals(op.getOrder(), i);
+            a.apply(op);
+        }
+        Operation op = op(OpType.INSERT, "b", 0, 1, 1, new int[] { 0, 0 },
+                Integer.MAX_VALUE);
+        assertEquals(b.stamp(op), 0);
+        b.apply(op);
+        assertEquals(a.getOrder(), 3);
+        assertEquals(b.getOrder(), 1);
+        assertEquals(a.getText(), "aaa");
+        assertEquals(b.getText(), "b");
+    }
+}
@@ -0,0 +1,208 @@
+package server_client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Testing strategy: tested through CollabServerTest, with many clients
+ * connected to a headless server in the THREAD_PER_CLIENT mode.
+ */
+
+/**
+ * Connection to a client in the THREAD_PER_CLIENT mode of the server. It is
+ * the server's blocking code: run reads one frame at a time from the socket
+ * and hands it to the CollabServer, until the client leaves. The frames sent
+ * to the client are queued, and written by a second thread of the
+ * connection, its writer. Each connection runs on its own threads, virtual
+ * threads when the JVM has them.
+ *
+ * Thread safety argument: only the connection's thread reads, and only its
+ * writer writes. Any thread can send, e.g. the one handling another client's
+ * operation: that only puts the frame in a LinkedBlockingQueue, so it never
+ * waits for the client, and holds no monitor a virtual thread could be
+ * pinned by. Closing does not wait for the writer: closing the socket makes
+ * a write that is stuck on a client that stopped reading fail.
+ *
+ * @author youyanggu
+ *
+ */
+public class StreamConnection extends Connection implements Runnable {
+
+    /** size of the read and write buffers, frames are usually a few dozen bytes */
+    private static final int BUFFER = 1024;
+
+    /** put in the queue to stop the writer */
+    private static final byte[] END = new byte[0];
+
+    /** the socket to the client */
+    private final Socket socket;
+
+    /** the server the messages are for */
+    private final CollabServer server;
+
+    /** runs the writer */
+    private final Executor threads;
+
+    /** frames not written yet, see Connection for their limits */
+    private final LinkedBlockingQueue<byte[]> out = new LinkedBlockingQueue<byte[]>();
+
+    /** true once close was called */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Makes the connection for a socket
+     *
+     * @param socket
+     *            - the socket, blocking
+     * @param server
+     *            - the server the messages are for
+     * @param threads
+     *            - runs the writer of the connection
+     */
+    StreamConnection(Socket socket, CollabServer server, Executor threads) {
+        super(server.getKeys());
+        this.socket = socket;
+        this.server = server;
+        this.threads = threads;
+    }
+
+    /**
+     * Starts the writer, then handles the client until it leaves or the
+     * connection breaks, then tells the server.
+     */
+    @Override
+    public void run() {
+        try {
+            // frames are small and written one at a time, send them right
+            // away rather than waiting to fill a packet
+            this.socket.setTcpNoDelay(true);
+            this.threads.execute(new Runnable() {
+                public void run() {
+                    write();
+                }
+            });
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    this.socket.getInputStream(), BUFFER));
+            this.server.connected(this);
+            while (!this.closed.get()) {
+                this.server.receive(this, FrameCodec.read(in, getKeys()));
+            }
+        } catch (Exception e) {
+            // Client closed, broken connection, unexpected message or
+            // shutting down
+        } finally {
+            if (close()) {
+                this.server.disconnected(this);
+            }
+        }
+    }
+
+    /**
+     * The writer: writes the queued frames until the connection is closed.
+     * Frames queued while it was writing are written together. Closes the
+     * socket if a write fails, the reading thread then fails too and closes
+     * the connection.
+     */
+    private void write() {
+        try {
+            OutputStream stream = new BufferedOutputStream(
+                    this.socket.getOutputStream(), BUFFER);
+            while (true) {
+                byte[] frame = this.out.take();
+                while (frame != null) {
+                    if (frame == END) {
+                        return;
+                    }
+                    stream.write(frame);
+                    written(frame.length);
+                    frame = this.out.poll();
+                }
+                stream.flush();
+            }
+        } catch (IOException e) {
+            closeSocket();
+        } catch (InterruptedException e) {
+            // shutting down
+            closeSocket();
+        }
+    }
+
+    /**
+     * Queues a frame to the client, for the writer
+     *
+     * @param frame
+     *            - the frame, not modified
+     */
+    @Override
+    void queue(byte[] frame) {
+        if (!this.closed.get()) {
+            this.out.add(frame);
+        }
+    }
+
+    /**
+     * Drops the queued frames. The writer finishes the one it took.
+     *
+     * @return the number of bytes dropped
+     */
+    @Override
+    long dropQueued() {
+        ArrayList<byte[]> dropped = new ArrayList<byte[]>();
+        this.out.drainTo(dropped);
+        long bytes = 0;
+        for (byte[] frame : dropped) {
+            if (frame == END) {
+                // closing, keep stopping the writer
+                this.out.add(END);
+            }
+            bytes += frame.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Closes the socket. The reading thread, blocked on it, then stops.
+     *
+     * @return true if the connection was open
+     */
+    @Override
+    boolean close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return false;
+        }
+        closeSocket();
+        return true;
+    }
+
+    /**
+     * Closes the socket, so the reading thread stops and closes the
+     * connection itself
+     */
+    @Override
+    void abort() {
+        closeSocket();
+    }
+
+    /**
+     * Stops sending to the client, drops the frames not written yet, stops
+     * the writer and closes the socket
+     */
+    private void closeSocket() {
+        setActive(false);
+        this.out.clear();
+        this.out.offer(END);
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package ui;
 
 import javax.swing.JList;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.StyledDocument;
 
-import model.CollabModel;
-import server_client.CollabInterface;
 import server_client.CollabServer;
+import server_client.ServerDocument;
 import controller.DocumentSelectionListener;
-import controller.TextChangeListener;
+import document.DeleteOperation;
+import document.Operation;
 import document.OperationEngineException;
 
 /*
@@ -20,82 +23,107 @@ import document.OperationEngineException;
  * This follows the MVC design pattern too*/
 
 /**
- * ServerGui inherit from Edit Gui, it includes some methods to get the
- * collabModel getSideID and setModelKey. Thread-safe argument This is
- * thread-safe for the same reason as Client GUI since it is run in the seperate
- * swing thread which won't interfere with the main thread. See Client GUI
+ * ServerGui inherit from Edit Gui. It is a read-only view of a ServerDocument:
+ * the server keeps the document and applies the operations to it without the
+ * GUI, and the GUI is told about them as a ServerDocument.Listener. Thread-safe
+ * argument This is thread-safe for the same reason as Client GUI since it is
+ * run in the seperate swing thread which won't interfere with the main thread.
+ * The listener methods are called by the server's threads, so they only queue
+ * the change with invokeLater, in the order they are called. See Client GUI
  * thread-safe argument for more information
  * 
  * @author
  * 
  */
 
-public class ServerGui extends ClientGui {
+public class ServerGui extends ClientGui implements ServerDocument.Listener {
 
 	private static final long serialVersionUID = -1426186299786063098L;
-	/** The underlying model of both client and server */
-	private final CollabModel collabModel;
 	//private final DocumentSelectionListener controller;
 	private final CollabServer collabServer;
-	/** The initial String to show in the Documents */
-	private static final String WELCOME_MESSAGE = "Welcome to Collab Edit";
 	/**
 	 * The name to show on top of the documents to see whose document belong to
 	 */
 	private static final String PROMPT_FOR_SERVER = "Server for document: ";
 
 	/**
-	 * ServerGui sets up the GUI for the local client
+	 * ServerGui sets up the GUI showing one document of the server
 	 * 
 	 * @param cs
-	 *            : The CollabInterface which is implemented by both
-	 *            CollabClient and CollabServer
-	 * @param serverName
-	 *            : The name of the Server modifies: TextPane of the
-	 *            collabServer is uneditable
+	 *            : The CollabServer holding the document
+	 * @param document
+	 *            : The document to show modifies: adds this GUI as a listener
+	 *            of the document. TextPane of the collabServer is uneditable
 	 * @throws OperationEngineException
 	 * 
 	 */
-	public ServerGui(CollabInterface cs, String serverName)
+	public ServerGui(CollabServer cs, ServerDocument document)
 			throws OperationEngineException {
-		super(WELCOME_MESSAGE, PROMPT_FOR_SERVER + serverName);
-		collabServer = (CollabServer) cs;
-		collabModel = new CollabModel(textArea, collabServer);
-		// listen to change in the document
-		textArea.getDocument().addDocumentListener(
-				new TextChangeListener(this, collabModel));
+		super("", PROMPT_FOR_SERVER + document.getName());
+		collabServer = cs;
 		textArea.setEditable(false);
 
 		// add the controller here and add model to view
 		new DocumentSelectionListener(this, collabServer);
-
+		document.addListener(this);
 	}
 
 	/**
-	 * @return the default sizeID of the server is 0
+	 * Shows the text of the document, replacing what is shown
+	 * 
+	 * @param text
+	 *            the whole text of the document
 	 */
 	@Override
-	public int getSiteID() {
-		return 0;
+	public void documentReset(final String text) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					StyledDocument doc = textArea.getStyledDocument();
+					doc.remove(0, doc.getLength());
+					setTextToDocument(text, 0);
+				} catch (BadLocationException e) {
+					e.printStackTrace();
+				}
+			}
+		});
 	}
 
 	/**
-	 * @return the REFERENCE to the underlying CollabModel of the server
+	 * Shows an operation the server applied to the document
+	 * 
+	 * @param op
+	 *            the transformed operation
 	 */
 	@Override
-	public CollabModel getCollabModel() {
-		return this.collabModel;
+	public void operationApplied(final Operation op) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (op instanceof DeleteOperation) {
+						int[] ranges = ((DeleteOperation) op).getRanges();
+						for (int i = ranges.length - 2; i >= 0; i -= 2) {
+							textArea.getDocument().remove(ranges[i],
+									ranges[i + 1]);
+						}
+					} else {
+						setTextToDocument(op.getValue(), op.getPosition());
+					}
+				} catch (BadLocationException e) {
+					e.printStackTrace();
+				}
+			}
+		});
 	}
 
 	/**
-	 * This will access the CollabModel and set the document key
-	 * 
-	 * @param str
-	 *            Modifies collabModel by changing its siteID
+	 * @return the default sizeID of the server is 0
 	 */
 	@Override
-	public void setModelKey(String str) {
-		this.collabModel.setKey(str);
+	public int getSiteID() {
+		return 0;
 	}
 
 	/**